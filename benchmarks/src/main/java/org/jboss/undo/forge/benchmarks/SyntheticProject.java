@@ -0,0 +1,379 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.forge.env.Configuration;
+import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.FileMode;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.lib.TreeFormatter;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.util.FileUtils;
+import org.jboss.forge.project.Project;
+import org.jboss.forge.resources.DirectoryResource;
+import org.jboss.forge.shell.Shell;
+import org.jboss.forge.shell.command.CommandMetadata;
+import org.jboss.forge.shell.events.CommandExecuted;
+import org.jboss.forge.shell.events.PreCommandExecution;
+import org.jboss.undo.forge.HistoryBranchUpdater;
+import org.jboss.undo.forge.HistorySnapshotWriter;
+import org.jboss.undo.forge.RepositoryPool;
+import org.jboss.undo.forge.UndoFacet;
+import org.jboss.undo.forge.UndoJournal;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Generated Maven project with the undo plugin installed, outside of a Forge container.
+ *
+ * The facet and the {@link HistoryBranchUpdater} are wired by hand: the project, the shell and the configuration are
+ * mocks, everything which touches git is the real plugin code.
+ */
+public class SyntheticProject
+{
+   private static final int FILES_PER_PACKAGE = 100;
+   /**
+    * Directory the generated history entries change. It sorts after every other top level entry of the project.
+    */
+   private static final String HISTORY_DIR = "undo-benchmark";
+   private static final String HISTORY_FILE = "entry.properties";
+
+   private final File root;
+   private final Map<String, Object> properties = new HashMap<String, Object>();
+   private final UndoFacet facet = new UndoFacet();
+   private final HistoryBranchUpdater updater = new HistoryBranchUpdater();
+   private final CommandExecuted commandExecuted;
+   private final PreCommandExecution preCommandExecution;
+   private int modifications = 0;
+
+   /**
+    * Creates a project of the given number of Java files in a temporary directory and installs the plugin.
+    */
+   public static SyntheticProject create(int files, String captureMode) throws Exception
+   {
+      File root = File.createTempFile("undo-benchmark", "");
+      FileUtils.delete(root);
+      FileUtils.mkdirs(root);
+
+      SyntheticProject project = new SyntheticProject(root);
+      project.properties.put(UndoFacet.CAPTURE_MODE_CONFIG_KEY, captureMode);
+      project.generateSources(files);
+      project.install();
+      return project;
+   }
+
+   private SyntheticProject(File root) throws Exception
+   {
+      this.root = root;
+
+      DirectoryResource projectRoot = mock(DirectoryResource.class);
+      when(projectRoot.getUnderlyingResourceObject()).thenReturn(root);
+
+      Project project = mock(Project.class);
+      when(project.getProjectRoot()).thenReturn(projectRoot);
+      when(project.getFacet(UndoFacet.class)).thenReturn(facet);
+      when(project.hasFacet(UndoFacet.class)).thenReturn(true);
+
+      Shell shell = mock(Shell.class);
+      when(shell.getCurrentProject()).thenReturn(project);
+
+      CommandMetadata command = mock(CommandMetadata.class, Mockito.RETURNS_DEEP_STUBS);
+      when(command.getName()).thenReturn("touch");
+      when(command.getParent().getName()).thenReturn("touch");
+
+      commandExecuted = mock(CommandExecuted.class);
+      when(commandExecuted.getStatus()).thenReturn(CommandExecuted.Status.SUCCESS);
+      when(commandExecuted.getCommand()).thenReturn(command);
+      preCommandExecution = mock(PreCommandExecution.class);
+      when(preCommandExecution.getCommand()).thenReturn(command);
+
+      facet.setProject(project);
+      setField(facet, "config", mock(Configuration.class, new ConfigurationAnswer(properties)));
+      setField(updater, "shell", shell);
+   }
+
+   public UndoFacet getFacet()
+   {
+      return facet;
+   }
+
+   public Git getGit() throws IOException
+   {
+      return facet.getGitObject();
+   }
+
+   /**
+    * Changes one of the generated files, as a forge command would.
+    */
+   public void modifyFile() throws IOException
+   {
+      modifications++;
+      write("src/main/java/org/example/p0/Type0.java", javaSource("p0", 0) + "// modification " + modifications
+               + "\n");
+   }
+
+   /**
+    * Stores the changes of the working tree the way they are stored after a forge command.
+    */
+   public void runCommand()
+   {
+      updater.beforeCommand(preCommandExecution);
+      updater.updateHistoryBranch(commandExecuted);
+   }
+
+   /**
+    * Appends the given number of entries to the history branch. Every entry changes a single file. The commits, their
+    * notes and the journal records are written directly instead of capturing each of them, so that histories of
+    * thousands of entries can be set up in seconds.
+    */
+   public void generateHistory(int entries) throws Exception
+   {
+      Repository repository = getGit().getRepository();
+      String historyRef = Constants.R_HEADS + facet.getUndoBranchName();
+      UndoJournal journal = facet.getJournal();
+
+      ObjectInserter inserter = repository.newObjectInserter();
+      RevWalk revWalk = new RevWalk(repository);
+      Map<ObjectId, String> notes = new LinkedHashMap<ObjectId, String>();
+      PersonIdent ident = new PersonIdent(repository);
+
+      try
+      {
+         ObjectId oldTip = repository.getRef(historyRef).getObjectId();
+         RevCommit tip = revWalk.parseCommit(oldTip);
+         TreeFormatter base = new TreeFormatter();
+         TreeWalk walk = new TreeWalk(repository);
+         walk.addTree(tip.getTree());
+         while (walk.next())
+         {
+            if (!HISTORY_DIR.equals(walk.getNameString()))
+               base.append(walk.getNameString(), walk.getFileMode(0), walk.getObjectId(0));
+         }
+         walk.release();
+         byte[] baseEntries = base.toByteArray();
+
+         ObjectId parent = oldTip;
+         String content = null;
+         for (int i = 0; i < entries; i++)
+         {
+            content = "entry=" + i + "\n";
+            TreeFormatter historyDir = new TreeFormatter();
+            historyDir.append(HISTORY_FILE, FileMode.REGULAR_FILE,
+                     inserter.insert(Constants.OBJ_BLOB, Constants.encode(content)));
+
+            TreeFormatter tree = new TreeFormatter(baseEntries.length + 64);
+            tree.append(HISTORY_DIR, FileMode.TREE, inserter.insert(historyDir));
+            byte[] historyEntry = tree.toByteArray();
+            byte[] rootTree = new byte[baseEntries.length + historyEntry.length];
+            System.arraycopy(baseEntries, 0, rootTree, 0, baseEntries.length);
+            System.arraycopy(historyEntry, 0, rootTree, baseEntries.length, historyEntry.length);
+
+            CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(inserter.insert(Constants.OBJ_TREE, rootTree));
+            commit.setParentId(parent);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + "\"generate\" command");
+            parent = inserter.insert(commit);
+
+            notes.put(parent, UndoFacet.DEFAULT_NOTE);
+            journal.append(parent, UndoJournal.NoteState.WORKING_TREE, "generate");
+         }
+         inserter.flush();
+
+         RefUpdate update = repository.updateRef(historyRef);
+         update.setNewObjectId(parent);
+         update.setExpectedOldObjectId(oldTip);
+         update.update();
+
+         facet.getNoteIndex().setNotes(notes);
+         if (content != null)
+            write(HISTORY_DIR + "/" + HISTORY_FILE, content);
+      }
+      finally
+      {
+         revWalk.release();
+         inserter.release();
+      }
+   }
+
+   /**
+    * Commits everything in the working tree on the current branch, leaving a clean working tree.
+    */
+   public void commitWorkingTree() throws Exception
+   {
+      getGit().add().addFilepattern(".").call();
+      getGit().commit().setMessage("benchmark commit").call();
+   }
+
+   /**
+    * Adds a commit on the current branch without changing any file.
+    */
+   public void commitNothing() throws Exception
+   {
+      Repository repository = getGit().getRepository();
+      RevWalk revWalk = new RevWalk(repository);
+      try
+      {
+         RevCommit head = revWalk.parseCommit(repository.resolve(Constants.HEAD));
+         new HistorySnapshotWriter(repository).commit(Constants.HEAD, head.getTree(), "empty benchmark commit");
+      }
+      finally
+      {
+         revWalk.release();
+      }
+   }
+
+   public void delete() throws IOException
+   {
+      RepositoryPool.clear();
+      FileUtils.delete(root, FileUtils.RECURSIVE | FileUtils.RETRY);
+   }
+
+   private void generateSources(int files) throws IOException
+   {
+      write("pom.xml", "<project><modelVersion>4.0.0</modelVersion><groupId>org.example</groupId>"
+               + "<artifactId>synthetic</artifactId><version>1.0</version></project>\n");
+      for (int i = 0; i < files; i++)
+      {
+         String pkg = "p" + (i / FILES_PER_PACKAGE);
+         int type = i % FILES_PER_PACKAGE;
+         write("src/main/java/org/example/" + pkg + "/Type" + type + ".java", javaSource(pkg, type));
+      }
+   }
+
+   private void install() throws Exception
+   {
+      Git.init().setDirectory(root).call();
+      write(".gitignore", "target/\n");
+      Git git = getGit();
+      git.add().addFilepattern(".gitignore").call();
+      git.commit().setMessage(UndoFacet.INITIAL_COMMIT_MSG).call();
+
+      if (!facet.install())
+         throw new IllegalStateException("the undo plugin could not be installed in " + root);
+      // the first check only remembers the branch tips
+      facet.checkAndUpdateRepositoryForNewCommits();
+   }
+
+   private String javaSource(String pkg, int type)
+   {
+      return "package org.example." + pkg + ";\n\npublic class Type" + type + "\n{\n   private int value = " + type
+               + ";\n\n   public int getValue()\n   {\n      return value;\n   }\n}\n";
+   }
+
+   private void write(String path, String content) throws IOException
+   {
+      File file = new File(root, path);
+      FileUtils.mkdirs(file.getParentFile(), true);
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+         out.write(Constants.encode(content));
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+
+   private static void setField(Object target, String name, Object value) throws Exception
+   {
+      for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass())
+      {
+         try
+         {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+            return;
+         }
+         catch (NoSuchFieldException e)
+         {
+            // declared by a superclass
+         }
+      }
+      throw new NoSuchFieldException(name);
+   }
+
+   /**
+    * Configuration backed by a map, getters return the given default for unset properties.
+    */
+   private static class ConfigurationAnswer implements Answer<Object>
+   {
+      private final Map<String, Object> properties;
+
+      ConfigurationAnswer(Map<String, Object> properties)
+      {
+         this.properties = properties;
+      }
+
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable
+      {
+         String method = invocation.getMethod().getName();
+         Object[] args = invocation.getArguments();
+
+         if (method.equals("setProperty") || method.equals("addProperty"))
+         {
+            properties.put((String) args[0], args[1]);
+            return null;
+         }
+         if (method.equals("clearProperty"))
+         {
+            properties.remove(args[0]);
+            return null;
+         }
+         if (!method.startsWith("get") || args.length == 0 || !(args[0] instanceof String))
+            return Mockito.RETURNS_DEFAULTS.answer(invocation);
+
+         Object value = properties.get(args[0]);
+         if (value == null)
+            return (args.length > 1) ? args[1] : Mockito.RETURNS_DEFAULTS.answer(invocation);
+
+         Class<?> type = invocation.getMethod().getReturnType();
+         if (type == int.class || type == Integer.class)
+            return Integer.valueOf(value.toString());
+         if (type == long.class || type == Long.class)
+            return Long.valueOf(value.toString());
+         if (type == boolean.class || type == Boolean.class)
+            return Boolean.valueOf(value.toString());
+         return value.toString();
+      }
+   }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.undo.forge.RepositoryCommitsMonitor;
+import org.jboss.undo.forge.RepositoryCommitsMonitor.RepositoryCommitState;
+import org.jboss.undo.forge.UndoFacet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the operations of the undo plugin on generated projects of 1k to 100k files with histories of 10 to 10k
+ * entries.
+ *
+ * Every benchmark method runs in its own fork on its own project. Run with {@code -prof gc} to get the allocation
+ * rates, see the README.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class UndoBenchmark
+{
+   @State(Scope.Benchmark)
+   public static class Fixture
+   {
+      @Param({ "1000", "10000", "100000" })
+      public int files;
+
+      @Param({ "10", "1000", "10000" })
+      public int entries;
+
+      @Param({ "STASH" })
+      public String captureMode;
+
+      SyntheticProject project;
+
+      @Setup(Level.Trial)
+      public void createProject() throws Exception
+      {
+         project = SyntheticProject.create(files, captureMode);
+         project.generateHistory(entries);
+      }
+
+      @TearDown(Level.Trial)
+      public void deleteProject() throws Exception
+      {
+         project.delete();
+      }
+   }
+
+   /**
+    * Stores a change before every undo, so that every invocation has something to revert.
+    */
+   @State(Scope.Benchmark)
+   public static class UndoFixture extends Fixture
+   {
+      @Setup(Level.Invocation)
+      public void storeChange() throws Exception
+      {
+         project.modifyFile();
+         project.runCommand();
+      }
+   }
+
+   /**
+    * Recreates the history before every reset. The working tree is committed, a reset needs a clean one.
+    */
+   @State(Scope.Benchmark)
+   public static class ResetFixture extends Fixture
+   {
+      @Setup(Level.Iteration)
+      public void fillHistory() throws Exception
+      {
+         if (project.getFacet().getHistoryBranchSize() == 0)
+            project.generateHistory(entries);
+         project.commitWorkingTree();
+      }
+   }
+
+   /**
+    * Adds a commit on the current branch before every check, the common case after a {@code git commit}.
+    */
+   @State(Scope.Benchmark)
+   public static class MonitorFixture extends Fixture
+   {
+      RepositoryCommitsMonitor monitor;
+
+      @Setup(Level.Trial)
+      public void createMonitor() throws Exception
+      {
+         monitor = new RepositoryCommitsMonitor();
+         monitor.setUndoBranchName(project.getFacet().getUndoBranchName());
+         monitor.updateCommitCounters(project.getGit());
+      }
+
+      @Setup(Level.Invocation)
+      public void commit() throws Exception
+      {
+         project.commitNothing();
+      }
+   }
+
+   @Benchmark
+   public void capture(Fixture fixture) throws Exception
+   {
+      fixture.project.modifyFile();
+      fixture.project.runCommand();
+   }
+
+   /**
+    * What {@code undo list} does, without the printing.
+    */
+   @Benchmark
+   public int list(Fixture fixture)
+   {
+      final int[] lines = new int[1];
+      fixture.project.getFacet().visitStoredCommits(0, Integer.MAX_VALUE, new UndoFacet.HistoryVisitor()
+      {
+         @Override
+         public void visit(ObjectId commitId, String note, String shortMessage)
+         {
+            lines[0] += shortMessage.length();
+         }
+      });
+      return lines[0];
+   }
+
+   @Benchmark
+   public int listFirstPage(Fixture fixture)
+   {
+      final int[] lines = new int[1];
+      fixture.project.getFacet().visitStoredCommits(0, 20, new UndoFacet.HistoryVisitor()
+      {
+         @Override
+         public void visit(ObjectId commitId, String note, String shortMessage)
+         {
+            lines[0] += shortMessage.length();
+         }
+      });
+      return lines[0];
+   }
+
+   @Benchmark
+   public boolean undoLastChange(UndoFixture fixture)
+   {
+      return fixture.project.getFacet().undoLastChange();
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @Measurement(iterations = 5, batchSize = 1)
+   public boolean reset(ResetFixture fixture)
+   {
+      return fixture.project.getFacet().reset();
+   }
+
+   @Benchmark
+   public RepositoryCommitState updateCommitCounters(MonitorFixture fixture) throws Exception
+   {
+      return fixture.monitor.updateCommitCounters(fixture.project.getGit());
+   }
+}
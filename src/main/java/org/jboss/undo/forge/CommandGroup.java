@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commands whose changes are stored as a single history entry once the group ends, e.g. the lines of a script.
+ *
+ * There is at most one open group per repository. Groups opened while another one is open (a script run by a script)
+ * are nested into it, the changes are stored when the outermost group ends.
+ */
+public class CommandGroup
+{
+   private static final Map<File, CommandGroup> groups = new HashMap<File, CommandGroup>();
+
+   private final String label;
+   private final List<String> commandNames = new ArrayList<String>();
+   private int depth = 1;
+
+   private CommandGroup(String label)
+   {
+      this.label = label;
+   }
+
+   /**
+    * Opens a group in the given repository, or nests into the group which is open already.
+    *
+    * @return the open group
+    */
+   public static synchronized CommandGroup open(File gitDir, String label) throws IOException
+   {
+      File key = gitDir.getCanonicalFile();
+      CommandGroup group = groups.get(key);
+      if (group == null)
+      {
+         group = new CommandGroup(label);
+         groups.put(key, group);
+      }
+      else
+      {
+         group.depth++;
+      }
+      return group;
+   }
+
+   /**
+    * @return the open group of the given repository, or null if there is none
+    */
+   public static synchronized CommandGroup get(File gitDir) throws IOException
+   {
+      return groups.get(gitDir.getCanonicalFile());
+   }
+
+   /**
+    * Ends the innermost group of the given repository.
+    *
+    * @return the group if it was the outermost one and its changes have to be stored now, null otherwise
+    */
+   public static synchronized CommandGroup close(File gitDir) throws IOException
+   {
+      File key = gitDir.getCanonicalFile();
+      CommandGroup group = groups.get(key);
+      if (group == null || --group.depth > 0)
+         return null;
+
+      groups.remove(key);
+      return group;
+   }
+
+   public String getLabel()
+   {
+      return label;
+   }
+
+   public synchronized void add(String commandName)
+   {
+      commandNames.add(commandName);
+   }
+
+   /**
+    * @return the commands executed in the group, in the order of their execution
+    */
+   public synchronized List<String> getCommandNames()
+   {
+      return new ArrayList<String>(commandNames);
+   }
+}
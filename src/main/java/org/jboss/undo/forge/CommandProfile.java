@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.storage.file.LockFile;
+import org.jboss.forge.jgit.util.FS;
+
+/**
+ * Remembers which commands changed the working tree during their latest runs, so that the working tree does not have
+ * to be scanned after commands which only read the project.
+ *
+ * A command is considered read-only once it ran {@link #MIN_CLEAN_RUNS} times and none of its latest
+ * {@link #TRACKED_RUNS} runs changed anything. Its run is still scanned if the modification time of the working tree
+ * root or of the git index moved during the command, and every {@link #VERIFY_INTERVAL}th run is scanned anyway. A
+ * scanned run which changed the working tree puts the command back into the scanned ones.
+ */
+public class CommandProfile
+{
+   /**
+    * How many of the latest runs of a command are remembered.
+    */
+   public static final int TRACKED_RUNS = 32;
+   /**
+    * How many runs without a change it takes to skip the scan after a command.
+    */
+   public static final int MIN_CLEAN_RUNS = 3;
+   /**
+    * Every n-th run of a read-only command is scanned nonetheless.
+    */
+   public static final int VERIFY_INTERVAL = 10;
+
+   private final File file;
+   private final Map<String, Runs> commands = new HashMap<String, Runs>();
+   private File workTree = null;
+   private File index = null;
+   private long workTreeModified = 0;
+   private long indexModified = 0;
+
+   private CommandProfile(File file)
+   {
+      this.file = file;
+   }
+
+   /**
+    * Opens the profile stored in the given file, the file does not have to exist yet.
+    */
+   public static CommandProfile load(File file) throws IOException
+   {
+      CommandProfile profile = new CommandProfile(file);
+      if (!file.isFile())
+         return profile;
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try
+      {
+         // "<runs> <changed runs as hex bits, newest lowest> <command>" per line
+         for (String line = reader.readLine(); line != null; line = reader.readLine())
+         {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 3)
+               continue;
+
+            try
+            {
+               Runs runs = new Runs();
+               runs.count = Math.min(Integer.parseInt(fields[0]), TRACKED_RUNS);
+               runs.changed = Long.parseLong(fields[1], 16);
+               profile.commands.put(fields[2], runs);
+            }
+            catch (NumberFormatException e)
+            {
+               // damaged line, the command is profiled again from scratch
+            }
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+      return profile;
+   }
+
+   /**
+    * Remembers the modification times of the working tree root and of the index before a command runs.
+    */
+   public synchronized void commandStarting(File workTree, File index)
+   {
+      this.workTree = workTree;
+      this.index = index;
+      this.workTreeModified = workTree.lastModified();
+      this.indexModified = index.lastModified();
+   }
+
+   /**
+    * @return true if the given command is known not to change the working tree and nothing hints otherwise, i.e. the
+    *         working tree does not have to be scanned after it
+    */
+   public synchronized boolean isReadOnly(String commandName)
+   {
+      Runs runs = commands.get(commandName);
+      if (runs == null || runs.count < MIN_CLEAN_RUNS || runs.changed != 0)
+         return false;
+
+      if (workTree == null || workTree.lastModified() != workTreeModified || index.lastModified() != indexModified)
+         return false;
+
+      // a sample of the runs is checked, in case the command changed only files deeper in the tree
+      runs.skipped++;
+      if (runs.skipped % VERIFY_INTERVAL == 0)
+         return false;
+      return true;
+   }
+
+   /**
+    * Records a scanned run of the given commands.
+    *
+    * @param changed whether the working tree was changed after the commands
+    */
+   public synchronized void recordRun(Collection<String> commandNames, boolean changed) throws IOException
+   {
+      for (String commandName : commandNames)
+      {
+         Runs runs = commands.get(commandName);
+         if (runs == null)
+         {
+            runs = new Runs();
+            commands.put(commandName, runs);
+         }
+         runs.record(changed);
+      }
+      store();
+   }
+
+   private void store() throws IOException
+   {
+      StringBuilder content = new StringBuilder();
+      for (Entry<String, Runs> command : commands.entrySet())
+         content.append(command.getValue().count).append(' ').append(Long.toHexString(command.getValue().changed))
+                  .append(' ').append(command.getKey()).append('\n');
+
+      File directory = file.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Failed to create " + directory);
+
+      LockFile lock = new LockFile(file, FS.DETECTED);
+      if (!lock.lock())
+         throw new IOException("Failed to lock " + file);
+
+      try
+      {
+         lock.write(Constants.encode(content.toString()));
+         if (!lock.commit())
+            throw new IOException("Failed to write " + file);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   private static class Runs
+   {
+      private static final long TRACKED_RUNS_MASK = (1L << TRACKED_RUNS) - 1;
+
+      private int count = 0;
+      /** one bit per run, the latest run in the lowest bit */
+      private long changed = 0;
+      /** runs not scanned since the profile was loaded */
+      private int skipped = 0;
+
+      void record(boolean changedWorkingTree)
+      {
+         count = Math.min(count + 1, TRACKED_RUNS);
+         changed = ((changed << 1) | (changedWorkingTree ? 1 : 0)) & TRACKED_RUNS_MASK;
+      }
+   }
+}
@@ -16,8 +16,14 @@
 
 package org.jboss.undo.forge;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import javax.enterprise.event.Observes;
 import javax.enterprise.inject.spi.BeanManager;
@@ -25,13 +31,26 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.api.Status;
 import org.jboss.forge.jgit.api.errors.GitAPIException;
 import org.jboss.forge.jgit.errors.NoWorkTreeException;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.IndexDiff;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Repository;
 import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.treewalk.FileTreeIterator;
+import org.jboss.forge.jgit.treewalk.filter.PathFilter;
 import org.jboss.forge.parser.java.util.Strings;
 import org.jboss.forge.project.Project;
 import org.jboss.forge.shell.Shell;
+import org.jboss.forge.shell.command.CommandMetadata;
 import org.jboss.forge.shell.events.CommandExecuted;
+import org.jboss.forge.shell.events.PreCommandExecution;
+import org.jboss.forge.shell.events.Shutdown;
+import org.jboss.undo.forge.UndoFacet.CaptureMode;
+import org.jboss.undo.forge.UndoStats.Phase;
 
 @Singleton
 public class HistoryBranchUpdater
@@ -40,49 +59,205 @@ public class HistoryBranchUpdater
             "ls", "cat", "wc", "pwr", "pwd", "pick-up", "grep", "find", "fingerprint", "alias", "unalias", "mkdir",
             "open", "set", "reset", "about", "echo", "help", "less", "more", "list-commands", "list-properties",
             "list-config", "version");
+   /**
+    * Commands running a script, the changes of the lines of the script are stored as one history entry.
+    */
+   private static final List<String> SCRIPT_COMMANDS = Arrays.asList("run");
+   /**
+    * Heads the list of the large files left out of a snapshot, in the body of its commit message.
+    */
+   public static final String SKIPPED_FILES_MSG = "Changes of large files not stored:";
+
    @Inject
    private BeanManager beanManager;
 
    @Inject
    private Shell shell;
 
+   /**
+    * Commands running on the current thread, the innermost command first: a command starting while another one runs
+    * is nested in it (e.g. a line of a script). Every shell session runs its commands on its own thread, the sessions
+    * never see the commands of each other.
+    */
+   private final ThreadLocal<LinkedList<RunningCommand>> runningCommands =
+            new ThreadLocal<LinkedList<RunningCommand>>()
+   {
+      @Override
+      protected LinkedList<RunningCommand> initialValue()
+      {
+         return new LinkedList<RunningCommand>();
+      }
+   };
+
+   public void beforeCommand(@Observes final PreCommandExecution command)
+   {
+      // the project is looked up once, the command may change the current project of the shell
+      RunningCommand running = new RunningCommand(getReadyFacet(shell.getCurrentProject()),
+               getCommandName(command.getCommand()), isScript(command.getCommand()));
+
+      // one entry per command, also for the commands which are not stored, nested commands of a script included
+      try
+      {
+         prepareCommand(running, command);
+      }
+      finally
+      {
+         runningCommands.get().push(running);
+      }
+   }
+
    public void updateHistoryBranch(@Observes final CommandExecuted command)
    {
-      if (command.getStatus() != CommandExecuted.Status.SUCCESS)
+      RunningCommand running = popRunningCommand(getCommandName(command.getCommand()));
+      if (running == null)
          return;
 
-      if (!UndoFacet.isReady)
+      try
+      {
+         storeChanges(running, command);
+      }
+      finally
+      {
+         // the history is not compacted while the changes of the command are being stored
+         running.finish();
+      }
+   }
+
+   /**
+    * Removes the innermost running command of the given name. The commands nested in it have ended, the ones which
+    * did not report back (e.g. the line a failing script stopped at) are finished without storing their changes,
+    * they are stored with the command running them.
+    *
+    * @return the running command, or null if no command of the given name is running
+    */
+   private RunningCommand popRunningCommand(String commandName)
+   {
+      LinkedList<RunningCommand> running = runningCommands.get();
+      RunningCommand reported = null;
+      for (RunningCommand candidate : running)
+      {
+         if (candidate.commandName.equals(commandName))
+         {
+            reported = candidate;
+            break;
+         }
+      }
+      if (reported == null)
+         return null;
+
+      while (running.peek() != reported)
+         running.poll().finish();
+      return running.poll();
+   }
+
+   /**
+    * Closes the files the plugin keeps open across commands, stops watching the working trees and removes its MBean.
+    */
+   public void shutdown(@Observes final Shutdown shutdown)
+   {
+      try
+      {
+         UndoStats.unregister();
+         WorkingTreeWatcher.stopAll();
+         UndoJournal.closeAll();
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to shut the undo plugin down: [" + e.getMessage() + "]", e);
+      }
+   }
+
+   /**
+    * Waits for a background snapshot of the project which is being written right now, and acquires the repository of
+    * the project from the {@link RepositoryPool} until the command finishes if the changes of the command are stored.
+    */
+   private void prepareCommand(RunningCommand running, final PreCommandExecution command)
+   {
+      UndoFacet undoFacet = running.undoFacet;
+      if (undoFacet == null)
          return;
 
-      Project project = shell.getCurrentProject();
+      try
+      {
+         Repository repository = undoFacet.getGitObject().getRepository();
+         SnapshotPipeline.commandStarting(repository.getDirectory());
+         running.gitDir = repository.getDirectory();
+
+         if (!validRequirements(command.getCommand()))
+            return;
+
+         if (running.script)
+         {
+            CommandGroup.open(repository.getDirectory(), getScriptLabel(command));
+            running.groupOpen = true;
+         }
+
+         if (undoFacet.skipsReadOnlyCommands())
+            undoFacet.getCommandProfile().commandStarting(repository.getWorkTree(), repository.getIndexFile());
+
+         running.lease = RepositoryPool.acquire(repository.getDirectory());
 
-      if (!validRequirements(project, command))
+         // the changes of a group and of background snapshots span several commands, one baseline does not tell them
+         if (undoFacet.usesStatBaseline() && !undoFacet.isAsyncCapture()
+                  && CommandGroup.get(repository.getDirectory()) == null)
+         {
+            long start = System.nanoTime();
+            running.baseline = StatBaseline.capture(repository, undoFacet.getModulePath());
+            UndoStats.record(Phase.BASELINE, start);
+         }
+      }
+      catch (IOException e)
+      {
+         // the command may never report back, nothing is kept for it
+         if (running.lease != null)
+            RepositoryPool.release(running.lease);
+         running.lease = null;
+         throw new RuntimeException("Failed to prepare the history branch for a command: [" + e.getMessage() + "]", e);
+      }
+   }
+
+   private void storeChanges(RunningCommand running, CommandExecuted command)
+   {
+      // only the commands prepared for it are stored
+      if (running.lease == null)
          return;
 
       try
       {
-         Git repo = project.getFacet(UndoFacet.class).getGitObject();
-         String undoBranch = project.getFacet(UndoFacet.class).getUndoBranchName();
+         UndoFacet undoFacet = running.undoFacet;
+         String commandName = getCommandName(command.getCommand());
+         File gitDir = running.gitDir;
+
+         // a failed script still leaves the changes of the lines which ran
+         if (running.script)
+         {
+            running.groupOpen = false;
+            storeGroup(undoFacet, CommandGroup.close(gitDir));
+            return;
+         }
+
+         if (command.getStatus() != CommandExecuted.Status.SUCCESS)
+            return;
 
-         if (anythingChanged(repo))
+         CommandGroup group = CommandGroup.get(gitDir);
+         if (group != null)
          {
-            project.getFacet(UndoFacet.class).checkAndUpdateRepositoryForNewCommits();
-
-            String previousBranch = repo.getRepository().getBranch();
-
-            repo.add().addFilepattern(".").call();
-            repo.stashCreate().call();
-            repo.checkout().setName(undoBranch).call();
-            repo.stashApply().call();
-            RevCommit commitWithChangeset = repo.commit().setMessage(prepareHistoryBranchCommitMsg(command)).call();
-            repo.notesAdd().setObjectId(commitWithChangeset).setMessage(UndoFacet.DEFAULT_NOTE).call();
-            repo.checkout().setName(previousBranch).call();
-            repo.stashApply().call();
-            repo.stashDrop().call();
-            repo.add().addFilepattern(".").call();
-
-            project.getFacet(UndoFacet.class).increaseHistoryBranchSizeByOne();
+            group.add(commandName);
+            return;
          }
+
+         // commands which never changed anything are not worth a scan of the working tree
+         if (undoFacet.skipsReadOnlyCommands() && undoFacet.getCommandProfile().isReadOnly(commandName))
+            return;
+
+         if (undoFacet.isAsyncCapture())
+            getSnapshotPipeline(undoFacet).submit(commandName);
+         else if (undoFacet.getCaptureMode() == CaptureMode.DIRECT)
+            storeSnapshot(undoFacet, Arrays.asList(commandName), null, running.baseline);
+         else
+            storeStashedChanges(undoFacet, Arrays.asList(commandName), null, running.baseline);
+
+         undoFacet.scheduleHistoryCompaction();
       }
       catch (Exception e)
       {
@@ -90,39 +265,442 @@ public class HistoryBranchUpdater
       }
    }
 
-   private String prepareHistoryBranchCommitMsg(final CommandExecuted command)
+   /**
+    * Defers storing the changes of the following commands until {@link #endGroup(UndoFacet)}.
+    */
+   public void beginGroup(UndoFacet undoFacet, String label) throws IOException
    {
-      String cmdParentName = command.getCommand().getParent() != null ? command.getCommand().getParent().getName() : "";
-      String cmdName = command.getCommand().getName();
-      String enquotedCommand = Strings.enquote(
-               Strings.areEqual(cmdParentName, cmdName) ? cmdName : cmdParentName + " " + cmdName
-               );
-      return UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + enquotedCommand + " command";
+      CommandGroup.open(undoFacet.getGitObject().getRepository().getDirectory(), label);
    }
 
-   private boolean validRequirements(Project project, final CommandExecuted command)
+   /**
+    * Ends the group opened by {@link #beginGroup(UndoFacet, String)} and stores its changes as one history entry.
+    *
+    * @return false if no group was open
+    */
+   public boolean endGroup(UndoFacet undoFacet) throws IOException, GitAPIException
    {
-      if (project == null)
+      File gitDir = undoFacet.getGitObject().getRepository().getDirectory();
+      if (CommandGroup.get(gitDir) == null)
          return false;
 
-      if (IGNORED_COMMANDS.contains(command.getCommand().getName()))
-         return false;
+      storeGroup(undoFacet, CommandGroup.close(gitDir));
+      return true;
+   }
+
+   private void storeGroup(UndoFacet undoFacet, CommandGroup group) throws IOException, GitAPIException
+   {
+      // a nested group is stored with the enclosing one
+      if (group == null)
+         return;
+
+      List<String> commandNames = group.getCommandNames();
+      if (undoFacet.storesSnapshots())
+      {
+         undoFacet.awaitPendingSnapshots();
+         storeSnapshot(undoFacet, commandNames, group.getLabel(), null);
+      }
+      else
+      {
+         storeStashedChanges(undoFacet, commandNames, group.getLabel(), null);
+      }
+
+      undoFacet.scheduleHistoryCompaction();
+   }
+
+   private SnapshotPipeline getSnapshotPipeline(final UndoFacet undoFacet) throws IOException
+   {
+      File gitDir = undoFacet.getGitObject().getRepository().getDirectory();
+      return SnapshotPipeline.start(gitDir, new SnapshotPipeline.SnapshotTask()
+      {
+         @Override
+         public void capture(List<String> commandNames) throws Exception
+         {
+            storeSnapshot(undoFacet, commandNames, null, null);
+         }
+      });
+   }
+
+   /**
+    * @param groupLabel label of the group the commands ran in, or null for a single command
+    * @param baseline stat data of the working tree taken before the command, or null
+    */
+   private void storeStashedChanges(UndoFacet undoFacet, List<String> commandNames, String groupLabel,
+            StatBaseline baseline) throws IOException, GitAPIException
+   {
+      // a background snapshot, the capture of another session or an undo may be changing the history right now
+      HistoryLease lease = undoFacet.acquireHistoryLock(true);
+      try
+      {
+         long captureStart = System.nanoTime();
+         Git repo = undoFacet.getGitObject();
+
+         String modulePath = undoFacet.getModulePath();
+
+         long start = System.nanoTime();
+         // a command which touched no file leaves nothing to store, however dirty the working tree is
+         boolean dirty = (baseline == null || !baseline.changedPaths(captureBaseline(repo.getRepository(),
+                  modulePath)).isEmpty()) && anythingChanged(repo, modulePath);
+         UndoStats.record(Phase.STATUS_SCAN, start);
+         boolean changed = false;
+
+         if (dirty)
+         {
+            undoFacet.checkAndUpdateRepositoryForNewCommits();
+
+            Repository repository = repo.getRepository();
+            ObjectId historyTree = getHistoryTree(repo, undoFacet);
+
+            // the changes are stashed onto the history tree in memory, neither the branch, the working tree nor the
+            // index of the user change
+            start = System.nanoTime();
+            HistorySnapshotWriter writer = new HistorySnapshotWriter(repository);
+            ObjectId headTree = repository.resolve(Constants.HEAD + "^{tree}");
+            ObjectId workingTree = (modulePath != null) ? writer.writeWorkingTree(headTree,
+                     Collections.singleton(modulePath)) : writer.writeWorkingTree();
+            UndoStats.record(Phase.SNAPSHOT, start);
+
+            ObjectId stashed = writer.applyChanges(headTree, historyTree, workingTree);
+
+            String message = prepareHistoryBranchCommitMsg(commandNames, groupLabel);
+            RevCommit commitWithChangeset = publish(undoFacet, writer, stashed, message);
+            // the working tree stays dirty after a capture, only a new tree tells that the commands changed something
+            changed = !stashed.equals(historyTree);
+
+            undoFacet.recordHistoryEntry(commitWithChangeset, (groupLabel != null) ? groupLabel
+                     : joinCommandNames(commandNames));
+         }
+
+         recordRun(undoFacet, commandNames, groupLabel, changed);
+         UndoStats.record(Phase.CAPTURE, captureStart);
+      }
+      finally
+      {
+         lease.release();
+      }
+   }
+
+   /**
+    * @param groupLabel label of the group the commands ran in, or null for a single command
+    * @param baseline stat data of the working tree taken before the command, or null
+    */
+   private void storeSnapshot(UndoFacet undoFacet, List<String> commandNames, String groupLabel,
+            StatBaseline baseline) throws IOException, GitAPIException
+   {
+      // a background snapshot, the capture of another session or an undo may be changing the history right now
+      HistoryLease lease = undoFacet.acquireHistoryLock(true);
+      try
+      {
+         long captureStart = System.nanoTime();
+         Git repo = undoFacet.getGitObject();
+         HistorySnapshotWriter writer = new HistorySnapshotWriter(repo.getRepository(), undoFacet.getLargeFilePolicy());
+         WorkingTreeWatcher watcher = undoFacet.getWorkingTreeWatcher();
+
+         ObjectId historyTree = getHistoryTree(repo, undoFacet);
+         String modulePath = undoFacet.getModulePath();
+         long start = System.nanoTime();
+         Set<String> watchedPaths = (watcher != null) ? watcher.getDirtyPaths(historyTree) : null;
+         StatBaseline stored = null;
+         if (watchedPaths == null && baseline != null)
+         {
+            stored = captureBaseline(repo.getRepository(), modulePath);
+            // changes made outside of forge since the last snapshot are stored with the next command changing a file
+            if (baseline.changedPaths(stored).isEmpty())
+               watchedPaths = Collections.emptySet();
+            else
+               watchedPaths = getChangedSinceClean(repo.getRepository(), historyTree, stored);
+         }
+         Set<String> dirtyPaths = scopeToModule(watchedPaths, modulePath);
+         UndoStats.record(Phase.STATUS_SCAN, start);
+         if (dirtyPaths != null && dirtyPaths.isEmpty())
+         {
+            recordRun(undoFacet, commandNames, groupLabel, false);
+            UndoStats.record(Phase.CAPTURE, captureStart);
+            return;
+         }
+
+         start = System.nanoTime();
+         ObjectId snapshot = (dirtyPaths != null) ? writer.writeWorkingTree(historyTree, dirtyPaths) : writer
+                  .writeWorkingTree();
+         UndoStats.record(Phase.SNAPSHOT, start);
+         boolean changed = !snapshot.equals(historyTree);
+         if (changed)
+         {
+            undoFacet.checkAndUpdateRepositoryForNewCommits();
 
-      if (Strings.areEqual(command.getCommand().getParent().getName(), "undo"))
+            String message = prepareHistoryBranchCommitMsg(commandNames, groupLabel) + skippedFilesMsg(writer);
+            RevCommit commitWithChangeset = publish(undoFacet, writer, snapshot, message);
+
+            undoFacet.recordHistoryEntry(commitWithChangeset, (groupLabel != null) ? groupLabel
+                     : joinCommandNames(commandNames));
+         }
+
+         // nothing is known about the working tree outside of the module
+         if (watcher != null && watchedPaths == null && modulePath != null)
+            watcher.invalidate();
+         else if (watcher != null)
+            watcher.markClean(snapshot, dirtyPaths);
+         if (stored != null)
+            StatBaseline.markClean(repo.getRepository().getDirectory(), stored, snapshot);
+         recordRun(undoFacet, commandNames, groupLabel, changed);
+         UndoStats.record(Phase.CAPTURE, captureStart);
+      }
+      finally
+      {
+         lease.release();
+      }
+   }
+
+   /**
+    * Commits the given tree on the history branch, notes it as a change of the working tree and forgets what could be
+    * redone. The objects are written first, the history branch, the notes ref and the redo stack move together.
+    */
+   private RevCommit publish(UndoFacet undoFacet, HistorySnapshotWriter writer, ObjectId tree, String message)
+            throws IOException
+   {
+      RefTransaction transaction = new RefTransaction(undoFacet.getGitObject().getRepository(), "forge-undo: "
+               + message);
+
+      long start = System.nanoTime();
+      String undoBranchRef = Constants.R_HEADS + undoFacet.getUndoBranchName();
+      RevCommit commitWithChangeset = writer.commit(undoBranchRef, tree, message, transaction);
+      UndoStats.record(Phase.COMMIT, start);
+
+      start = System.nanoTime();
+      undoFacet.getNoteIndex().setNotes(Collections.singletonMap(commitWithChangeset, UndoFacet.DEFAULT_NOTE),
+               transaction);
+      undoFacet.clearRedoStack(transaction);
+      transaction.commit();
+      UndoStats.record(Phase.NOTES, start);
+      return commitWithChangeset;
+   }
+
+   /**
+    * @return the body of the commit message naming the large files left out of the snapshot, or an empty string
+    */
+   private static String skippedFilesMsg(HistorySnapshotWriter writer)
+   {
+      if (writer.getSkippedPaths().isEmpty())
+         return "";
+
+      StringBuilder msg = new StringBuilder("\n\n").append(SKIPPED_FILES_MSG);
+      for (String path : writer.getSkippedPaths())
+         msg.append("\n").append(path);
+      return msg.toString();
+   }
+
+   private StatBaseline captureBaseline(Repository repository, String modulePath) throws IOException
+   {
+      long start = System.nanoTime();
+      StatBaseline baseline = StatBaseline.capture(repository, modulePath);
+      UndoStats.record(Phase.BASELINE, start);
+      return baseline;
+   }
+
+   /**
+    * @param stored stat data of the working tree as it is about to be stored
+    * @return the paths changed since the working tree was stored as the given tree, or null if that is not known
+    */
+   private Set<String> getChangedSinceClean(Repository repository, ObjectId historyTree, StatBaseline stored)
+            throws IOException
+   {
+      StatBaseline clean = StatBaseline.getClean(repository.getDirectory(), historyTree, stored.getSubtree());
+      return (clean != null) ? clean.changedPaths(stored) : null;
+   }
+
+   private void recordRun(UndoFacet undoFacet, List<String> commandNames, String groupLabel, boolean changed)
+            throws IOException
+   {
+      // which commands of a group changed something is not known
+      if (groupLabel == null && undoFacet.skipsReadOnlyCommands())
+         undoFacet.getCommandProfile().recordRun(commandNames, changed);
+   }
+
+   private ObjectId getHistoryTree(Git repo, UndoFacet undoFacet) throws IOException, GitAPIException
+   {
+      RevWalk revWalk = new RevWalk(repo.getRepository());
+      try
+      {
+         return revWalk.parseCommit(undoFacet.getUndoBranchRef().getObjectId()).getTree().copy();
+      }
+      finally
+      {
+         revWalk.release();
+      }
+   }
+
+   private String getCommandName(final CommandMetadata command)
+   {
+      String cmdParentName = command.getParent() != null ? command.getParent().getName() : "";
+      String cmdName = command.getName();
+      return Strings.areEqual(cmdParentName, cmdName) ? cmdName : cmdParentName + " " + cmdName;
+   }
+
+   private String prepareHistoryBranchCommitMsg(final List<String> commandNames, final String groupLabel)
+   {
+      if (groupLabel != null)
+      {
+         StringBuilder msg = new StringBuilder(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX);
+         msg.append(Strings.enquote(groupLabel)).append(" group\n\n");
+         for (String commandName : commandNames)
+            msg.append(commandName).append('\n');
+         return msg.toString();
+      }
+
+      if (commandNames.size() == 1)
+         return UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + Strings.enquote(commandNames.get(0)) + " command";
+
+      StringBuilder msg = new StringBuilder(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX);
+      for (int i = 0; i < commandNames.size(); i++)
+      {
+         if (i > 0)
+            msg.append(", ");
+         msg.append(Strings.enquote(commandNames.get(i)));
+      }
+      return msg.append(" commands").toString();
+   }
+
+   private String joinCommandNames(final List<String> commandNames)
+   {
+      StringBuilder names = new StringBuilder();
+      for (String commandName : commandNames)
+      {
+         if (names.length() > 0)
+            names.append(", ");
+         names.append(commandName);
+      }
+      return names.toString();
+   }
+
+   private boolean isScript(final CommandMetadata command)
+   {
+      return SCRIPT_COMMANDS.contains(getCommandName(command));
+   }
+
+   private String getScriptLabel(final PreCommandExecution command)
+   {
+      Object[] parameters = command.getParameters();
+      String label = getCommandName(command.getCommand());
+      if (parameters != null && parameters.length > 0 && parameters[0] != null)
+         label += " " + parameters[0];
+      return label;
+   }
+
+   /**
+    * @return the facet of the given project if the changes of the commands in it are stored, null otherwise
+    */
+   private UndoFacet getReadyFacet(Project project)
+   {
+      if (project == null || !project.hasFacet(UndoFacet.class))
+         return null;
+
+      UndoFacet undoFacet = project.getFacet(UndoFacet.class);
+      return undoFacet.isReady() ? undoFacet : null;
+   }
+
+   private boolean validRequirements(final CommandMetadata command)
+   {
+      if (IGNORED_COMMANDS.contains(command.getName()))
          return false;
 
-      if (Strings.areEqual(command.getCommand().getName(), "setup")
-               && Strings.areEqual(command.getCommand().getParent().getName(), "git"))
+      if (Strings.areEqual(command.getParent().getName(), "undo"))
          return false;
 
-      if (!project.hasFacet(UndoFacet.class))
+      if (Strings.areEqual(command.getName(), "setup") && Strings.areEqual(command.getParent().getName(), "git"))
          return false;
 
       return true;
    }
 
-   private boolean anythingChanged(Git repo) throws NoWorkTreeException, GitAPIException
+   /**
+    * @param modulePath directory to look at, relative to the working tree, or null for the whole working tree
+    */
+   private boolean anythingChanged(Git repo, String modulePath) throws NoWorkTreeException, GitAPIException,
+            IOException
+   {
+      if (modulePath == null)
+         return !repo.status().call().isClean();
+
+      IndexDiff diff = new IndexDiff(repo.getRepository(), Constants.HEAD, new FileTreeIterator(repo.getRepository()));
+      diff.setFilter(PathFilter.create(modulePath));
+      diff.diff();
+      return !new Status(diff).isClean();
+   }
+
+   /**
+    * Narrows the paths a snapshot looks at down to the module of the project. The subtrees of the sibling modules are
+    * copied from the previous snapshot by their ids, without walking them.
+    *
+    * @param dirtyPaths paths changed since the previous snapshot, or null if they are not known
+    * @param modulePath directory of the module relative to the working tree, or null if the project is the whole
+    *           repository
+    * @return the paths to look at, or null to scan the whole working tree
+    */
+   private Set<String> scopeToModule(Set<String> dirtyPaths, String modulePath)
+   {
+      if (modulePath == null)
+         return dirtyPaths;
+      if (dirtyPaths == null)
+         return Collections.singleton(modulePath);
+
+      Set<String> scoped = new HashSet<String>();
+      for (String path : dirtyPaths)
+      {
+         if (path.equals(modulePath) || path.startsWith(modulePath + "/"))
+            scoped.add(path);
+         else if (modulePath.startsWith(path + "/"))
+            scoped.add(modulePath);
+      }
+      return scoped;
+   }
+
+   private static class RunningCommand
    {
-      return !repo.status().call().isClean();
+      private final UndoFacet undoFacet;
+      /** name of the command, as reported by its events */
+      private final String commandName;
+      /** whether the command runs a script, whose lines run as nested commands */
+      private final boolean script;
+      /** whether the command opened a group which it has not closed yet */
+      private boolean groupOpen = false;
+      /** repository whose gate the command passed */
+      private File gitDir = null;
+      /** repository acquired for storing the changes of the command */
+      private Repository lease = null;
+      /** stat data of the working tree before the command, if it is taken */
+      private StatBaseline baseline = null;
+
+      RunningCommand(UndoFacet undoFacet, String commandName, boolean script)
+      {
+         this.undoFacet = undoFacet;
+         this.commandName = commandName;
+         this.script = script;
+      }
+
+      void finish()
+      {
+         try
+         {
+            // a script which ended without storing its group leaves the changes to the next command
+            if (groupOpen)
+            {
+               groupOpen = false;
+               CommandGroup.close(gitDir);
+            }
+            if (gitDir != null)
+               SnapshotPipeline.commandFinished(gitDir);
+         }
+         catch (IOException e)
+         {
+            throw new RuntimeException("Failed to finish a command: [" + e.getMessage() + "]", e);
+         }
+         finally
+         {
+            if (lease != null)
+               RepositoryPool.release(lease);
+            lease = null;
+            gitDir = null;
+         }
+      }
    }
 }
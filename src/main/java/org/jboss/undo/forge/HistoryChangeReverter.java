@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.forge.jgit.dircache.DirCache;
+import org.jboss.forge.jgit.dircache.DirCacheCheckout;
+import org.jboss.forge.jgit.dircache.DirCacheEditor;
+import org.jboss.forge.jgit.dircache.DirCacheEditor.DeletePath;
+import org.jboss.forge.jgit.dircache.DirCacheEditor.PathEdit;
+import org.jboss.forge.jgit.dircache.DirCacheEntry;
+import org.jboss.forge.jgit.dircache.DirCacheIterator;
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.FileMode;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.ObjectReader;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.merge.MergeStrategy;
+import org.jboss.forge.jgit.merge.ResolveMerger;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevTree;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.filter.TreeFilter;
+import org.jboss.forge.jgit.util.FileUtils;
+
+/**
+ * Reverts commits of the history branch without checking anything out.
+ *
+ * The reverse change is merged in memory onto a tree of the current working tree. Only the paths which differ
+ * between that tree and the result are written to the working tree afterwards. The tree of the working tree is
+ * written from the paths changed since the last snapshot when the {@link WorkingTreeWatcher} or the
+ * {@link StatBaseline} knows them, otherwise the whole working tree is scanned. Files are written to the working tree
+ * as streams; a change whose content merge would load a large file into memory, see {@link LargeFilePolicy}, is
+ * treated as a conflict.
+ */
+public class HistoryChangeReverter
+{
+   private final Repository repository;
+   private final LargeFilePolicy policy;
+
+   public HistoryChangeReverter(Repository repository)
+   {
+      this(repository, LargeFilePolicy.DEFAULT);
+   }
+
+   public HistoryChangeReverter(Repository repository, LargeFilePolicy policy)
+   {
+      this.repository = repository;
+      this.policy = policy;
+   }
+
+   /**
+    * Applies the reverse of the given commit onto the given tree, in memory.
+    *
+    * @param ours tree the reverse change is applied to
+    * @param commitToRevert commit with exactly one parent
+    * @return the resulting tree, or null if the change cannot be reverted without conflicts
+    */
+   public ObjectId revert(AnyObjectId ours, RevCommit commitToRevert) throws IOException
+   {
+      RevTree theirs = commitToRevert.getParent(0).getTree();
+      if (mergesLargeFile(commitToRevert.getTree(), ours, theirs))
+         return null;
+
+      ResolveMerger merger = (ResolveMerger) MergeStrategy.RESOLVE.newMerger(repository, true);
+      merger.setBase(commitToRevert.getTree());
+
+      if (!merger.merge(ours, theirs))
+         return null;
+      return merger.getResultTreeId();
+   }
+
+   /**
+    * Applies the reverse of all given commits onto the given tree, one after another, in memory.
+    *
+    * @param commitsToRevert commits with exactly one parent, newest first
+    * @return the resulting tree, or null if any of the changes cannot be reverted without conflicts
+    */
+   public ObjectId revert(AnyObjectId ours, List<RevCommit> commitsToRevert) throws IOException
+   {
+      ObjectId result = ours.copy();
+      for (RevCommit commitToRevert : commitsToRevert)
+      {
+         result = revert(result, commitToRevert);
+         if (result == null)
+            return null;
+      }
+      return result;
+   }
+
+   /**
+    * Applies the given commits again onto the given tree, in memory. This is the opposite of
+    * {@link #revert(AnyObjectId, List)} and is used to redo what an undo reverted.
+    *
+    * @param commitsToReapply commits with exactly one parent, newest first, as they were reverted
+    * @return the resulting tree, or null if any of the changes cannot be applied without conflicts
+    */
+   public ObjectId reapply(AnyObjectId ours, List<RevCommit> commitsToReapply) throws IOException
+   {
+      ObjectId result = ours.copy();
+      for (int i = commitsToReapply.size() - 1; i >= 0; i--)
+      {
+         RevCommit commit = commitsToReapply.get(i);
+         if (mergesLargeFile(commit.getParent(0).getTree(), result, commit.getTree()))
+            return null;
+
+         ResolveMerger merger = (ResolveMerger) MergeStrategy.RESOLVE.newMerger(repository, true);
+         merger.setBase(commit.getParent(0).getTree());
+
+         if (!merger.merge(result, commit.getTree()))
+            return null;
+         result = merger.getResultTreeId();
+      }
+      return result;
+   }
+
+   /**
+    * Brings the working tree and the index from the {@code current} tree to the {@code target} tree. Only the paths
+    * which differ between the two trees are written to the working tree, the index is made to match the target tree.
+    *
+    * @param current tree of the current content of the working tree
+    * @param target tree the working tree and index should end up with
+    */
+   public void checkout(AnyObjectId current, AnyObjectId target) throws IOException
+   {
+      checkout(current, target, false);
+   }
+
+   /**
+    * Same as {@link #checkout(AnyObjectId, AnyObjectId)}, for a working tree which may have changed since the
+    * {@code current} tree was taken, e.g. when an interrupted operation is finished. A path is only written if its
+    * file still has the content of the {@code current} tree. Paths whose content is neither the one of the
+    * {@code current} nor the one of the {@code target} tree were changed by somebody else, they are left alone in the
+    * working tree and in the index.
+    *
+    * @return the paths which were left alone
+    */
+   public List<String> checkoutUnchanged(AnyObjectId current, AnyObjectId target) throws IOException
+   {
+      return checkout(current, target, true);
+   }
+
+   private List<String> checkout(AnyObjectId current, AnyObjectId target, boolean keepChanged) throws IOException
+   {
+      File workTree = repository.getWorkTree();
+      DirCache index = repository.lockDirCache();
+      ObjectReader reader = repository.newObjectReader();
+      List<String> kept = new ArrayList<String>();
+
+      try
+      {
+         TreeWalk walk = new TreeWalk(reader);
+         walk.addTree(current);
+         walk.addTree(target);
+         walk.setRecursive(true);
+         walk.setFilter(TreeFilter.ANY_DIFF);
+
+         while (walk.next())
+         {
+            String path = walk.getPathString();
+            FileMode mode = walk.getFileMode(1);
+            File file = new File(workTree, path);
+
+            if (keepChanged && !hasContent(file, walk.getFileMode(0), walk.getObjectId(0)))
+            {
+               // written already by the interrupted operation, or changed since
+               if (!hasContent(file, mode, walk.getObjectId(1)))
+                  kept.add(path);
+               continue;
+            }
+
+            if (mode == FileMode.MISSING)
+               delete(file, workTree);
+            else if (mode != FileMode.GITLINK)
+               write(path, mode, walk.getObjectId(1), reader);
+         }
+
+         updateIndex(index, target, reader, kept);
+         index.write();
+         if (!index.commit())
+            throw new IOException("Failed to write the index of " + repository.getDirectory());
+      }
+      finally
+      {
+         index.unlock();
+         reader.release();
+      }
+      return kept;
+   }
+
+   /**
+    * Tells whether the given file has the given content. Only regular files are compared, anything else (e.g. a
+    * symbolic link) counts as changed.
+    *
+    * @param mode mode of the content, {@link FileMode#MISSING} if the file should not exist
+    */
+   private boolean hasContent(File file, FileMode mode, ObjectId id) throws IOException
+   {
+      if (mode == FileMode.MISSING)
+         return !file.exists();
+      if ((mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE) || !file.isFile())
+         return false;
+
+      InputStream in = new FileInputStream(file);
+      try
+      {
+         return id.equals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, file.length(), in));
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Tells whether merging the given trees would merge the content of a large file, which the merger does in memory.
+    * Only the paths changed on both sides in different ways are merged by content.
+    */
+   private boolean mergesLargeFile(AnyObjectId base, AnyObjectId ours, AnyObjectId theirs) throws IOException
+   {
+      if (policy.getThreshold() <= 0)
+         return false;
+
+      ObjectReader reader = repository.newObjectReader();
+      try
+      {
+         TreeWalk walk = new TreeWalk(reader);
+         walk.addTree(base);
+         walk.addTree(ours);
+         walk.addTree(theirs);
+         walk.setRecursive(true);
+         walk.setFilter(TreeFilter.ANY_DIFF);
+
+         while (walk.next())
+         {
+            if (walk.idEqual(0, 1) || walk.idEqual(0, 2) || walk.idEqual(1, 2))
+               continue;
+
+            for (int i = 0; i < 3; i++)
+            {
+               FileMode mode = walk.getFileMode(i);
+               if (mode == FileMode.MISSING || mode == FileMode.GITLINK)
+                  continue;
+               if (policy.isLarge(reader.getObjectSize(walk.getObjectId(i), Constants.OBJ_BLOB)))
+                  return true;
+            }
+         }
+         return false;
+      }
+      finally
+      {
+         reader.release();
+      }
+   }
+
+   /**
+    * @param kept paths whose index entries are left as they are
+    */
+   private void updateIndex(DirCache index, AnyObjectId target, ObjectReader reader, List<String> kept)
+            throws IOException
+   {
+      final File workTree = repository.getWorkTree();
+      DirCacheEditor editor = index.editor();
+
+      TreeWalk walk = new TreeWalk(reader);
+      walk.addTree(new DirCacheIterator(index));
+      walk.addTree(target);
+      walk.setRecursive(true);
+      walk.setFilter(TreeFilter.ANY_DIFF);
+
+      while (walk.next())
+      {
+         final String path = walk.getPathString();
+         final FileMode mode = walk.getFileMode(1);
+         final ObjectId id = walk.getObjectId(1);
+
+         if (kept.contains(path))
+            continue;
+         if (mode == FileMode.MISSING)
+         {
+            editor.add(new DeletePath(path));
+            continue;
+         }
+
+         editor.add(new PathEdit(path)
+         {
+            @Override
+            public void apply(DirCacheEntry entry)
+            {
+               entry.setFileMode(mode);
+               entry.setObjectId(id);
+
+               File file = new File(workTree, path);
+               entry.setLength(file.length());
+               entry.setLastModified(file.lastModified());
+            }
+         });
+      }
+
+      editor.finish();
+   }
+
+   private void write(String path, FileMode mode, ObjectId id, ObjectReader reader) throws IOException
+   {
+      File file = new File(repository.getWorkTree(), path);
+
+      // a directory in the way of the file
+      if (file.isDirectory())
+         FileUtils.delete(file, FileUtils.RECURSIVE);
+
+      DirCacheEntry entry = new DirCacheEntry(path);
+      entry.setFileMode(mode);
+      entry.setObjectId(id);
+      DirCacheCheckout.checkoutEntry(repository, file, entry, reader);
+   }
+
+   /**
+    * Deletes the file and every directory above it which became empty, like git does.
+    */
+   private void delete(File file, File workTree) throws IOException
+   {
+      FileUtils.delete(file, FileUtils.SKIP_MISSING | FileUtils.RECURSIVE);
+
+      for (File dir = file.getParentFile(); dir != null && !dir.equals(workTree); dir = dir.getParentFile())
+      {
+         String[] children = dir.list();
+         if (children == null || children.length > 0 || !dir.delete())
+            break;
+      }
+   }
+}
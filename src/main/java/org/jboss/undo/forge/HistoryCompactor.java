@@ -0,0 +1,420 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.NullProgressMonitor;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.ObjectReader;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.storage.file.FileRepository;
+import org.jboss.forge.jgit.storage.file.GC;
+import org.jboss.forge.jgit.storage.file.PackFile;
+import org.jboss.forge.jgit.storage.pack.PackWriter;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Keeps the history branch within the limits of a {@link RetentionPolicy}.
+ *
+ * The oldest entries which fall out of the policy are squashed into a single base snapshot commit, which has the tree
+ * of the newest expired entry and carries no note. The remaining entries are rewritten on top of it and their notes
+ * are moved along. Afterwards the objects of the history are packed, so the history branch does not leave a loose
+ * object behind for every stored command.
+ *
+ * Compaction is scheduled with {@link #scheduleWhenIdle(File, Runnable)} and runs on a background thread once the
+ * shell has been idle for {@link #IDLE_DELAY_MILLIS}.
+ */
+public class HistoryCompactor
+{
+   public static final String BASE_COMMIT_MSG = "FORGE PLUGIN-UNDO: history base";
+
+   private static final long IDLE_DELAY_MILLIS = 30000;
+
+   private static final Map<File, ScheduledFuture<?>> scheduled = new HashMap<File, ScheduledFuture<?>>();
+   private static ScheduledExecutorService scheduler = null;
+
+   private final Repository repository;
+   private final String historyBranchRef;
+
+   /**
+    * Limits of the history branch, a limit of 0 means unlimited.
+    */
+   public static class RetentionPolicy
+   {
+      private final int maxEntries;
+      private final long maxAgeMillis;
+      private final long maxBytes;
+
+      public RetentionPolicy(int maxEntries, long maxAgeMillis, long maxBytes)
+      {
+         this.maxEntries = maxEntries;
+         this.maxAgeMillis = maxAgeMillis;
+         this.maxBytes = maxBytes;
+      }
+
+      /**
+       * @return how many entries are kept at most
+       */
+      public int getMaxEntries()
+      {
+         return maxEntries;
+      }
+
+      /**
+       * @return entries stored longer ago than this are expired
+       */
+      public long getMaxAgeMillis()
+      {
+         return maxAgeMillis;
+      }
+
+      /**
+       * @return how many bytes of content the kept entries may introduce in total
+       */
+      public long getMaxBytes()
+      {
+         return maxBytes;
+      }
+
+      public boolean isUnlimited()
+      {
+         return maxEntries <= 0 && maxAgeMillis <= 0 && maxBytes <= 0;
+      }
+   }
+
+   /**
+    * @param historyBranchRef full name of the history branch
+    */
+   public HistoryCompactor(Repository repository, String historyBranchRef)
+   {
+      this.repository = repository;
+      this.historyBranchRef = historyBranchRef;
+   }
+
+   /**
+    * Runs the given compaction for the given repository once the shell has been idle for a while. Scheduling it again
+    * before it ran restarts the delay. The compaction runs only while no command is executing, otherwise it is
+    * postponed.
+    */
+   public static synchronized void scheduleWhenIdle(File gitDir, final Runnable compaction) throws IOException
+   {
+      final File key = gitDir.getCanonicalFile();
+      ScheduledFuture<?> previous = scheduled.get(key);
+      if (previous != null)
+         previous.cancel(false);
+
+      if (scheduler == null)
+      {
+         scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+         {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+               Thread thread = new Thread(runnable, "forge-undo-compaction");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      scheduled.put(key, scheduler.schedule(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               if (!SnapshotPipeline.runIfIdle(key, compaction))
+                  scheduleWhenIdle(key, compaction);
+            }
+            catch (IOException e)
+            {
+               // the compaction is scheduled again after the next stored change
+            }
+         }
+      }, IDLE_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+   }
+
+   /**
+    * Squashes the entries which fall out of the given policy into the base snapshot commit.
+    *
+    * @param journal journal of the history branch, updated with the rewritten commits
+    * @param notes notes of the history branch, moved to the rewritten commits
+    * @return number of expired entries, 0 if nothing was changed
+    */
+   public int compact(UndoJournal journal, NoteIndex notes, RetentionPolicy policy) throws IOException
+   {
+      List<UndoJournal.Entry> entries = journal.getEntries();
+      Collections.reverse(entries);
+      if (entries.isEmpty() || policy.isUnlimited())
+         return 0;
+
+      RevWalk walk = new RevWalk(repository);
+      ObjectInserter inserter = repository.newObjectInserter();
+      try
+      {
+         Ref ref = repository.getRef(historyBranchRef);
+         if (ref == null)
+            return 0;
+
+         // the journal has to describe the first-parent chain of the branch exactly, otherwise leave it alone
+         RevCommit[] commits = new RevCommit[entries.size()];
+         RevCommit commit = walk.parseCommit(ref.getObjectId());
+         for (int i = entries.size() - 1; i >= 0; i--)
+         {
+            if (!commit.equals(entries.get(i).getCommitId()) || commit.getParentCount() == 0)
+               return 0;
+            commits[i] = commit;
+            commit = walk.parseCommit(commit.getParent(0));
+         }
+
+         int expired = countExpired(entries, commits, policy, walk.getObjectReader());
+         if (expired == 0)
+            return 0;
+
+         // there is at most one base commit, the previous one is squashed as well
+         RevCommit base = commit;
+         if (BASE_COMMIT_MSG.equals(base.getFullMessage()) && base.getParentCount() == 1)
+            base = walk.parseCommit(base.getParent(0));
+
+         PersonIdent ident = new PersonIdent(repository);
+         CommitBuilder baseCommit = new CommitBuilder();
+         baseCommit.setTreeId(commits[expired - 1].getTree());
+         baseCommit.setParentId(base);
+         baseCommit.setAuthor(ident);
+         baseCommit.setCommitter(ident);
+         baseCommit.setMessage(BASE_COMMIT_MSG);
+         ObjectId parent = inserter.insert(baseCommit);
+
+         Map<ObjectId, String> changedNotes = new LinkedHashMap<ObjectId, String>();
+         List<ObjectId> newIds = new ArrayList<ObjectId>();
+         for (int i = 0; i < commits.length; i++)
+         {
+            changedNotes.put(commits[i], null);
+            if (i < expired)
+               continue;
+
+            CommitBuilder rewritten = new CommitBuilder();
+            rewritten.setTreeId(commits[i].getTree());
+            rewritten.setParentId(parent);
+            rewritten.setAuthor(commits[i].getAuthorIdent());
+            rewritten.setCommitter(commits[i].getCommitterIdent());
+            rewritten.setMessage(commits[i].getFullMessage());
+            parent = inserter.insert(rewritten);
+
+            newIds.add(parent);
+            changedNotes.put(parent, notes.getNoteMessage(commits[i]));
+         }
+         inserter.flush();
+
+         RefUpdate update = repository.updateRef(historyBranchRef);
+         update.setExpectedOldObjectId(ref.getObjectId());
+         update.setNewObjectId(parent);
+         update.setForceUpdate(true);
+         update.setRefLogMessage("forge-undo: compact history", false);
+         RefUpdate.Result result = update.update(walk);
+         if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.FAST_FORWARD)
+            throw new IOException("Failed to update " + historyBranchRef + ": " + result);
+
+         notes.setNotes(changedNotes);
+         journal.compact(expired, newIds);
+         return expired;
+      }
+      finally
+      {
+         inserter.release();
+         walk.release();
+      }
+   }
+
+   /**
+    * Writes the loose objects reachable from the history branch, the notes and the redo stack into a new pack and
+    * removes the loose copies, the same way {@link GC} does for a whole repository. Objects reachable from the branches
+    * and tags of the user are left to the git of the user, only the objects of the history itself are packed.
+    *
+    * @param notesRef full name of the notes ref of the history branch
+    * @return false if there was nothing to pack
+    */
+   public boolean packHistory(String notesRef) throws IOException
+   {
+      if (!(repository instanceof FileRepository))
+         return false;
+      FileRepository fileRepository = (FileRepository) repository;
+
+      Set<ObjectId> want = new HashSet<ObjectId>();
+      for (String refName : new String[] { historyBranchRef, notesRef, RedoStack.REDO_REF })
+      {
+         Ref ref = repository.getRef(refName);
+         if (ref != null)
+            want.add(ref.getObjectId());
+      }
+      if (want.isEmpty())
+         return false;
+
+      Set<ObjectId> have = new HashSet<ObjectId>();
+      for (String prefix : new String[] { Constants.R_HEADS, Constants.R_TAGS })
+         for (Ref ref : repository.getRefDatabase().getRefs(prefix).values())
+            if (ref.getObjectId() != null && !ref.getName().equals(historyBranchRef))
+               have.add(ref.getObjectId());
+
+      File packDir = new File(fileRepository.getObjectsDirectory(), "pack");
+      File tmpPack = null;
+      File tmpIdx = null;
+      PackWriter writer = new PackWriter(repository);
+      try
+      {
+         writer.setDeltaBaseAsOffset(true);
+         // only the loose objects are packed, everything which is in a pack already stays there
+         for (PackFile pack : fileRepository.getObjectDatabase().getPacks())
+            writer.excludeObjects(pack.getIndex());
+         writer.preparePack(NullProgressMonitor.INSTANCE, want, have);
+         if (writer.getObjectCount() == 0)
+            return false;
+
+         String name = writer.computeName().getName();
+         tmpPack = File.createTempFile("forge-undo_", ".pack_tmp", packDir);
+         tmpIdx = new File(packDir, tmpPack.getName().substring(0, tmpPack.getName().lastIndexOf('.')) + ".idx_tmp");
+
+         OutputStream out = new FileOutputStream(tmpPack);
+         try
+         {
+            writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+         }
+         finally
+         {
+            out.close();
+         }
+
+         out = new FileOutputStream(tmpIdx);
+         try
+         {
+            writer.writeIndex(out);
+         }
+         finally
+         {
+            out.close();
+         }
+
+         File realPack = new File(packDir, "pack-" + name + ".pack");
+         File realIdx = new File(packDir, "pack-" + name + ".idx");
+         tmpPack.setReadOnly();
+         tmpIdx.setReadOnly();
+         if (!tmpPack.renameTo(realPack) || !tmpIdx.renameTo(realIdx))
+            throw new IOException("Failed to move the history pack into " + packDir);
+         fileRepository.getObjectDatabase().openPack(realPack, realIdx);
+      }
+      finally
+      {
+         writer.release();
+         if (tmpPack != null && tmpPack.exists())
+            tmpPack.delete();
+         if (tmpIdx != null && tmpIdx.exists())
+            tmpIdx.delete();
+      }
+
+      new GC(fileRepository).prunePacked();
+      return true;
+   }
+
+   /**
+    * @param entries oldest first
+    * @return how many of the oldest entries fall out of the policy
+    */
+   private int countExpired(List<UndoJournal.Entry> entries, RevCommit[] commits, RetentionPolicy policy,
+            ObjectReader reader) throws IOException
+   {
+      int expired = 0;
+
+      if (policy.getMaxEntries() > 0)
+         expired = Math.max(expired, entries.size() - policy.getMaxEntries());
+
+      if (policy.getMaxAgeMillis() > 0)
+      {
+         long oldestKept = System.currentTimeMillis() - policy.getMaxAgeMillis();
+         for (int i = entries.size() - 1; i >= expired; i--)
+         {
+            if (entries.get(i).getTimestamp() < oldestKept)
+            {
+               expired = i + 1;
+               break;
+            }
+         }
+      }
+
+      if (policy.getMaxBytes() > 0)
+      {
+         long total = 0;
+         for (int i = entries.size() - 1; i >= expired; i--)
+         {
+            total += sizeOfChange(commits[i], reader);
+            if (total > policy.getMaxBytes())
+            {
+               expired = i + 1;
+               break;
+            }
+         }
+      }
+
+      return expired;
+   }
+
+   /**
+    * @return the size of the file contents the commit introduces compared to its first parent, which has to be parsed
+    */
+   private long sizeOfChange(RevCommit commit, ObjectReader reader) throws IOException
+   {
+      TreeWalk walk = new TreeWalk(reader);
+      walk.addTree(commit.getParent(0).getTree());
+      walk.addTree(commit.getTree());
+      walk.setRecursive(true);
+      walk.setFilter(TreeFilter.ANY_DIFF);
+
+      long size = 0;
+      while (walk.next())
+      {
+         if (walk.getFileMode(1).getObjectType() == Constants.OBJ_BLOB)
+            size += reader.getObjectSize(walk.getObjectId(1), Constants.OBJ_BLOB);
+      }
+      return size;
+   }
+}
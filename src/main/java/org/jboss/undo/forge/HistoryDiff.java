@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.forge.jgit.diff.DiffAlgorithm;
+import org.jboss.forge.jgit.diff.DiffEntry;
+import org.jboss.forge.jgit.diff.DiffEntry.ChangeType;
+import org.jboss.forge.jgit.diff.DiffFormatter;
+import org.jboss.forge.jgit.diff.Edit;
+import org.jboss.forge.jgit.diff.EditList;
+import org.jboss.forge.jgit.diff.HistogramDiff;
+import org.jboss.forge.jgit.diff.RawText;
+import org.jboss.forge.jgit.diff.RawTextComparator;
+import org.jboss.forge.jgit.diff.Sequence;
+import org.jboss.forge.jgit.diff.SequenceComparator;
+import org.jboss.forge.jgit.errors.LargeObjectException;
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.FileMode;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectReader;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * Shows the change stored by a commit of the history branch, i.e. what {@code undo restore} would revert.
+ *
+ * The edit lists computed for a pair of blobs are kept in a small cache shared by all repositories, a blob id names
+ * the same content everywhere. Showing the same change again, or its summary, does not diff anything a second time.
+ */
+public class HistoryDiff
+{
+   /**
+    * How many edit lists are kept.
+    */
+   public static final int CACHE_SIZE = 256;
+
+   /** files above this size are shown as binary, like {@link DiffFormatter} does */
+   private static final int BINARY_FILE_THRESHOLD = 50 * 1024 * 1024;
+
+   /** stands for a pair of blobs which cannot be diffed as text */
+   private static final EditList BINARY = new EditList(0);
+
+   /** least recently used first */
+   private static final Map<BlobPair, EditList> editLists = new LinkedHashMap<BlobPair, EditList>(CACHE_SIZE, 0.75f,
+            true)
+   {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<BlobPair, EditList> eldest)
+      {
+         return size() > CACHE_SIZE;
+      }
+   };
+
+   private final Repository repository;
+
+   public HistoryDiff(Repository repository)
+   {
+      this.repository = repository;
+   }
+
+   /**
+    * Changed lines of one file.
+    */
+   public static class FileStat
+   {
+      private final String path;
+      private final boolean binary;
+      private final int insertions;
+      private final int deletions;
+
+      private FileStat(String path, boolean binary, int insertions, int deletions)
+      {
+         this.path = path;
+         this.binary = binary;
+         this.insertions = insertions;
+         this.deletions = deletions;
+      }
+
+      public String getPath()
+      {
+         return path;
+      }
+
+      public boolean isBinary()
+      {
+         return binary;
+      }
+
+      public int getInsertions()
+      {
+         return insertions;
+      }
+
+      public int getDeletions()
+      {
+         return deletions;
+      }
+   }
+
+   /**
+    * Writes the change stored by the given commit as a unified diff.
+    *
+    * @param commit commit of the history branch with exactly one parent
+    */
+   public void format(RevCommit commit, OutputStream out) throws IOException
+   {
+      CachingHistogramDiff algorithm = new CachingHistogramDiff();
+      DiffFormatter formatter = new DiffFormatter(out);
+      formatter.setRepository(repository);
+      formatter.setDiffAlgorithm(algorithm);
+      formatter.setDiffComparator(RawTextComparator.DEFAULT);
+      formatter.setBinaryFileThreshold(BINARY_FILE_THRESHOLD);
+
+      try
+      {
+         for (DiffEntry entry : scan(commit))
+         {
+            // the formatter asks the algorithm for the edits of exactly this entry
+            algorithm.key = new BlobPair(entry.getOldId().toObjectId(), entry.getNewId().toObjectId());
+            formatter.format(entry);
+         }
+         formatter.flush();
+      }
+      finally
+      {
+         formatter.release();
+      }
+   }
+
+   /**
+    * Counts the changed lines of every file of the change stored by the given commit. The content of the files is
+    * read only if the change was not diffed before.
+    *
+    * @param commit commit of the history branch with exactly one parent
+    */
+   public List<FileStat> stat(RevCommit commit) throws IOException
+   {
+      List<FileStat> stats = new ArrayList<FileStat>();
+      ObjectReader reader = repository.newObjectReader();
+      try
+      {
+         for (DiffEntry entry : scan(commit))
+         {
+            String path = (entry.getChangeType() == ChangeType.DELETE) ? entry.getOldPath() : entry.getNewPath();
+            EditList edits = getEditList(reader, entry);
+            if (edits == BINARY)
+            {
+               stats.add(new FileStat(path, true, 0, 0));
+               continue;
+            }
+
+            int insertions = 0;
+            int deletions = 0;
+            for (Edit edit : edits)
+            {
+               insertions += edit.getLengthB();
+               deletions += edit.getLengthA();
+            }
+            stats.add(new FileStat(path, false, insertions, deletions));
+         }
+      }
+      finally
+      {
+         reader.release();
+      }
+      return stats;
+   }
+
+   /**
+    * Forgets all the cached edit lists.
+    */
+   public static void clearCache()
+   {
+      synchronized (editLists)
+      {
+         editLists.clear();
+      }
+   }
+
+   private List<DiffEntry> scan(RevCommit commit) throws IOException
+   {
+      ObjectReader reader = repository.newObjectReader();
+      RevWalk walk = new RevWalk(reader);
+      DiffFormatter formatter = new DiffFormatter(null);
+      formatter.setRepository(repository);
+      try
+      {
+         RevCommit parent = walk.parseCommit(commit.getParent(0));
+         CanonicalTreeParser before = new CanonicalTreeParser(null, reader, parent.getTree());
+         CanonicalTreeParser after = new CanonicalTreeParser(null, reader, walk.parseCommit(commit).getTree());
+         return formatter.scan(before, after);
+      }
+      finally
+      {
+         formatter.release();
+         walk.release();
+         reader.release();
+      }
+   }
+
+   private EditList getEditList(ObjectReader reader, DiffEntry entry) throws IOException
+   {
+      if (entry.getOldMode() == FileMode.GITLINK || entry.getNewMode() == FileMode.GITLINK)
+         return BINARY;
+
+      BlobPair key = new BlobPair(entry.getOldId().toObjectId(), entry.getNewId().toObjectId());
+      EditList edits = getCached(key);
+      if (edits != null)
+         return edits;
+
+      byte[] a = open(reader, entry.getOldMode(), key.oldId);
+      byte[] b = open(reader, entry.getNewMode(), key.newId);
+      if (a == null || b == null || RawText.isBinary(a) || RawText.isBinary(b))
+         edits = BINARY;
+      else
+         edits = new HistogramDiff().diff(RawTextComparator.DEFAULT, new RawText(a), new RawText(b));
+
+      putCached(key, edits);
+      return edits;
+   }
+
+   /**
+    * @return content of the blob, empty for a missing side of an added or deleted file, null if it is too large
+    */
+   private static byte[] open(ObjectReader reader, FileMode mode, AnyObjectId id) throws IOException
+   {
+      if (mode == FileMode.MISSING)
+         return new byte[0];
+
+      try
+      {
+         return reader.open(id, Constants.OBJ_BLOB).getCachedBytes(BINARY_FILE_THRESHOLD);
+      }
+      catch (LargeObjectException e)
+      {
+         return null;
+      }
+   }
+
+   private static EditList getCached(BlobPair key)
+   {
+      synchronized (editLists)
+      {
+         return editLists.get(key);
+      }
+   }
+
+   private static void putCached(BlobPair key, EditList edits)
+   {
+      synchronized (editLists)
+      {
+         editLists.put(key, edits);
+      }
+   }
+
+   /**
+    * Histogram diff which answers from the cache for the blobs of the entry being formatted.
+    */
+   private static class CachingHistogramDiff extends DiffAlgorithm
+   {
+      private final HistogramDiff histogram = new HistogramDiff();
+      private BlobPair key = null;
+
+      @Override
+      public <S extends Sequence> EditList diff(SequenceComparator<? super S> cmp, S a, S b)
+      {
+         EditList edits = getCached(key);
+         if (edits == null || edits == BINARY)
+         {
+            edits = histogram.diff(cmp, a, b);
+            putCached(key, edits);
+         }
+         return edits;
+      }
+
+      @Override
+      public <S extends Sequence> EditList diffNonCommon(SequenceComparator<? super S> cmp, S a, S b)
+      {
+         return histogram.diffNonCommon(cmp, a, b);
+      }
+   }
+
+   private static class BlobPair
+   {
+      private final ObjectId oldId;
+      private final ObjectId newId;
+
+      BlobPair(ObjectId oldId, ObjectId newId)
+      {
+         this.oldId = oldId;
+         this.newId = newId;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return oldId.hashCode() * 31 + newId.hashCode();
+      }
+
+      @Override
+      public boolean equals(Object other)
+      {
+         if (!(other instanceof BlobPair))
+            return false;
+
+         BlobPair pair = (BlobPair) other;
+         return oldId.equals(pair.oldId) && newId.equals(pair.newId);
+      }
+   }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.util.concurrent.locks.Lock;
+
+import org.jboss.forge.jgit.lib.Repository;
+
+/**
+ * The lock of the history of a repository, held together with a lease of the repository from the
+ * {@link RepositoryPool}, see {@link UndoFacet#acquireHistoryLock(boolean)}. The pool does not close the repository
+ * until the lease is released.
+ */
+public class HistoryLease
+{
+   private final Lock lock;
+   private Repository repository;
+
+   /**
+    * @param lock the lock of the history, held already
+    * @param repository the repository acquired from the pool
+    */
+   HistoryLease(Lock lock, Repository repository)
+   {
+      this.lock = lock;
+      this.repository = repository;
+   }
+
+   /**
+    * Unlocks the history and gives the repository back to the pool. Releasing a lease twice does nothing.
+    */
+   public synchronized void release()
+   {
+      if (repository == null)
+         return;
+
+      try
+      {
+         lock.unlock();
+      }
+      finally
+      {
+         RepositoryPool.release(repository);
+         repository = null;
+      }
+   }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.jboss.forge.jgit.api.errors.ConcurrentRefUpdateException;
+import org.jboss.forge.jgit.dircache.DirCache;
+import org.jboss.forge.jgit.dircache.DirCacheBuilder;
+import org.jboss.forge.jgit.dircache.DirCacheEntry;
+import org.jboss.forge.jgit.dircache.DirCacheIterator;
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.FileMode;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.ObjectReader;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.treewalk.EmptyTreeIterator;
+import org.jboss.forge.jgit.treewalk.FileTreeIterator;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.WorkingTreeIterator;
+import org.jboss.forge.jgit.treewalk.filter.PathFilterGroup;
+
+/**
+ * Stores the state of the working tree on the history branch without touching the working tree, HEAD or the index of
+ * the user.
+ *
+ * The snapshot tree contains every file present in the working tree which is either tracked or not ignored, the same
+ * set of files {@code git add .} would pick up. The stat data of the files is kept in a private index under
+ * {@code .git/forge-undo}, files whose stat data still matches it are not hashed again. The index of the user is only
+ * read, to tell which ignored files are tracked. Files are streamed into the object database, large ones may be left
+ * out according to the {@link LargeFilePolicy}.
+ */
+public class HistorySnapshotWriter
+{
+   /**
+    * Location of the private index relative to the git directory.
+    */
+   public static final String PRIVATE_INDEX = "forge-undo/index";
+
+   private final Repository repository;
+   private final LargeFilePolicy policy;
+   private final List<String> skippedPaths = new ArrayList<String>();
+
+   public HistorySnapshotWriter(Repository repository)
+   {
+      this(repository, LargeFilePolicy.DEFAULT);
+   }
+
+   public HistorySnapshotWriter(Repository repository, LargeFilePolicy policy)
+   {
+      this.repository = repository;
+      this.policy = policy;
+   }
+
+   /**
+    * @return the large files whose changes were left out of the last written tree, see
+    *         {@link LargeFilePolicy#skipsLargeFiles()}
+    */
+   public List<String> getSkippedPaths()
+   {
+      return skippedPaths;
+   }
+
+   /**
+    * Writes the current content of the working tree into the object database.
+    *
+    * @return id of the written tree
+    */
+   public ObjectId writeWorkingTree() throws IOException
+   {
+      return writeWorkingTree(null, null);
+   }
+
+   /**
+    * Writes the current content of the working tree into the object database, looking only at the given paths of the
+    * working tree. Everything else is copied from the base tree.
+    *
+    * @param baseTree the previous snapshot
+    * @param dirtyPaths paths (files or directories) changed since the previous snapshot, null to scan everything
+    * @return id of the written tree
+    */
+   public ObjectId writeWorkingTree(AnyObjectId baseTree, Set<String> dirtyPaths) throws IOException
+   {
+      skippedPaths.clear();
+      if (dirtyPaths != null && dirtyPaths.isEmpty())
+         return baseTree.copy();
+
+      DirCache index = repository.readDirCache();
+      DirCache privateIndex = new DirCache(getPrivateIndexFile(), repository.getFS());
+      // another shell may be writing a snapshot of the same repository, this snapshot does not update the index then
+      boolean locked = privateIndex.lock();
+      ObjectInserter inserter = repository.newObjectInserter();
+      ObjectReader reader = repository.newObjectReader();
+
+      try
+      {
+         privateIndex.read();
+         if (privateIndex.getEntryCount() == 0)
+            seedPrivateIndex(privateIndex, index, reader);
+
+         // without dirty paths the private index is the snapshot, otherwise the snapshot is the base tree with the
+         // dirty paths replaced
+         DirCacheBuilder updated = privateIndex.builder();
+         DirCache snapshot = privateIndex;
+         DirCacheBuilder builder = null;
+         if (dirtyPaths != null)
+         {
+            snapshot = DirCache.newInCore();
+            builder = snapshot.builder();
+            copyUnchangedEntries(builder, reader, baseTree, dirtyPaths);
+            copyUnchangedEntries(updated, privateIndex, dirtyPaths);
+         }
+
+         TreeWalk walk = new TreeWalk(repository);
+         walk.setRecursive(true);
+         int privateTree = walk.addTree(new DirCacheIterator(privateIndex));
+         int indexTree = walk.addTree(new DirCacheIterator(index));
+         int workingTree = walk.addTree(new FileTreeIterator(repository));
+         if (dirtyPaths != null)
+            walk.setFilter(PathFilterGroup.createFromStrings(dirtyPaths));
+
+         String lastAddedPath = null;
+         while (walk.next())
+         {
+            WorkingTreeIterator file = walk.getTree(workingTree, WorkingTreeIterator.class);
+            if (file == null) // removed from the working tree
+               continue;
+
+            DirCacheIterator indexed = walk.getTree(indexTree, DirCacheIterator.class);
+            if (indexed == null && file.isEntryIgnored())
+               continue;
+
+            // conflicting paths show up once per stage, only one entry per path goes into the snapshot
+            String path = walk.getPathString();
+            if (path.equals(lastAddedPath))
+               continue;
+
+            DirCacheIterator stored = walk.getTree(privateTree, DirCacheIterator.class);
+            DirCacheEntry entry;
+            if (policy.skipsLargeFiles() && policy.isLarge(file.getEntryLength()))
+            {
+               entry = skipLargeFile(path, file, stored);
+               if (entry == null)
+                  continue;
+            }
+            else
+            {
+               entry = createEntry(path, file, stored, inserter);
+            }
+            updated.add(entry);
+            if (builder != null)
+               builder.add(entry);
+            lastAddedPath = path;
+         }
+         updated.finish();
+         if (builder != null)
+            builder.finish();
+
+         ObjectId tree = snapshot.writeTree(inserter);
+         inserter.flush();
+
+         // racily clean entries are smudged while writing, so the tree has to be written first
+         if (locked)
+         {
+            privateIndex.write();
+            if (!privateIndex.commit())
+               throw new IOException("Failed to write the private index of " + repository.getDirectory());
+         }
+         return tree;
+      }
+      finally
+      {
+         privateIndex.unlock();
+         reader.release();
+         inserter.release();
+      }
+   }
+
+   /**
+    * Carries the changes of the working tree over to the history tree, the way {@code git stash apply} does on a clean
+    * checkout of the history branch: every path which differs between HEAD and the working tree is taken from the
+    * working tree, every other path stays as the history has it. Nothing is merged, so this never conflicts.
+    *
+    * @param headTree tree of HEAD, null on an unborn branch
+    * @param historyTree tree the history branch points to
+    * @param workingTree tree written by {@link #writeWorkingTree()}
+    * @return id of the written tree
+    */
+   public ObjectId applyChanges(AnyObjectId headTree, AnyObjectId historyTree, AnyObjectId workingTree)
+            throws IOException
+   {
+      DirCache applied = DirCache.newInCore();
+      DirCacheBuilder builder = applied.builder();
+      ObjectInserter inserter = repository.newObjectInserter();
+      TreeWalk walk = new TreeWalk(repository);
+
+      try
+      {
+         walk.setRecursive(true);
+         if (headTree != null)
+            walk.addTree(headTree);
+         else
+            walk.addTree(new EmptyTreeIterator());
+         walk.addTree(historyTree);
+         walk.addTree(workingTree);
+
+         while (walk.next())
+         {
+            boolean changed = walk.getRawMode(0) != walk.getRawMode(2) || !walk.idEqual(0, 2);
+            int source = changed ? 2 : 1;
+            if (walk.getRawMode(source) == 0) // removed, or never stored
+               continue;
+
+            DirCacheEntry entry = new DirCacheEntry(walk.getRawPath());
+            entry.setFileMode(walk.getFileMode(source));
+            entry.setObjectId(walk.getObjectId(source));
+            builder.add(entry);
+         }
+         builder.finish();
+
+         ObjectId tree = applied.writeTree(inserter);
+         inserter.flush();
+         return tree;
+      }
+      finally
+      {
+         walk.release();
+         inserter.release();
+      }
+   }
+
+   /**
+    * @return the index kept for the snapshots under {@code .git/forge-undo}. It is not shared with git, so the stat
+    *         data of every file which went into a snapshot, untracked ones included, stays there between commands.
+    */
+   private File getPrivateIndexFile() throws IOException
+   {
+      File file = new File(repository.getDirectory(), PRIVATE_INDEX);
+      File directory = file.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Failed to create " + directory);
+      return file;
+   }
+
+   /**
+    * Fills an empty private index with the files of HEAD. The stat data of the index of the user is taken over where it
+    * describes the same content, so the first snapshot does not have to hash every file.
+    */
+   private void seedPrivateIndex(DirCache privateIndex, DirCache index, ObjectReader reader) throws IOException
+   {
+      ObjectId head = repository.resolve(Constants.HEAD + "^{tree}");
+      if (head == null)
+         return;
+
+      DirCacheBuilder builder = privateIndex.builder();
+      TreeWalk walk = new TreeWalk(reader);
+      walk.setRecursive(true);
+      walk.addTree(head);
+      int indexTree = walk.addTree(new DirCacheIterator(index));
+
+      while (walk.next())
+      {
+         if (walk.getRawMode(0) == 0) // only staged
+            continue;
+
+         DirCacheEntry entry = new DirCacheEntry(walk.getRawPath());
+         DirCacheIterator indexed = walk.getTree(indexTree, DirCacheIterator.class);
+         DirCacheEntry indexEntry = (indexed != null) ? indexed.getDirCacheEntry() : null;
+         if (indexEntry != null && indexEntry.getStage() == DirCacheEntry.STAGE_0
+                  && indexEntry.getObjectId().equals(walk.getObjectId(0)))
+            entry.copyMetaData(indexEntry);
+         else
+         {
+            entry.setFileMode(walk.getFileMode(0));
+            entry.setObjectId(walk.getObjectId(0));
+         }
+         builder.add(entry);
+      }
+      builder.finish();
+   }
+
+   /**
+    * Creates a new commit with the given tree on top of the given branch and moves the branch to it.
+    *
+    * @param refName full name of the branch, e.g. {@code refs/heads/forge-history}
+    */
+   public RevCommit commit(String refName, ObjectId tree, String message) throws IOException,
+            ConcurrentRefUpdateException
+   {
+      Ref ref = repository.getRef(refName);
+      ObjectId parent = (ref != null) ? ref.getObjectId() : null;
+      ObjectId commitId = createCommit(parent, tree, message);
+
+      RefUpdate update = repository.updateRef(refName);
+      update.setNewObjectId(commitId);
+      update.setExpectedOldObjectId(parent != null ? parent : ObjectId.zeroId());
+      update.setRefLogMessage("commit: " + message, false);
+
+      RefUpdate.Result result = update.update();
+      switch (result)
+      {
+      case NEW:
+      case FAST_FORWARD:
+         break;
+      default:
+         throw new ConcurrentRefUpdateException("Failed to move " + refName + " to the new snapshot",
+                  update.getRef(), result);
+      }
+
+      return parseCommit(commitId);
+   }
+
+   /**
+    * Creates a new commit with the given tree on top of the given branch, the branch moves to it with the transaction.
+    * Commits created in the same transaction are stacked.
+    *
+    * @param refName full name of the branch, or {@code HEAD} for the current branch
+    */
+   public RevCommit commit(String refName, ObjectId tree, String message, RefTransaction transaction)
+            throws IOException
+   {
+      ObjectId commitId = createCommit(transaction.resolve(refName), tree, message);
+      transaction.update(refName, commitId);
+      return parseCommit(commitId);
+   }
+
+   private ObjectId createCommit(ObjectId parent, ObjectId tree, String message) throws IOException
+   {
+      PersonIdent ident = new PersonIdent(repository);
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(tree);
+      if (parent != null)
+         commit.setParentId(parent);
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage(message);
+
+      ObjectInserter inserter = repository.newObjectInserter();
+      try
+      {
+         ObjectId commitId = inserter.insert(commit);
+         inserter.flush();
+         return commitId;
+      }
+      finally
+      {
+         inserter.release();
+      }
+   }
+
+   private RevCommit parseCommit(ObjectId commitId) throws IOException
+   {
+      RevWalk walk = new RevWalk(repository);
+      try
+      {
+         return walk.parseCommit(commitId);
+      }
+      finally
+      {
+         walk.release();
+      }
+   }
+
+   /**
+    * Copies the entries of the base tree which are not under any of the dirty paths. Subtrees without dirty paths are
+    * copied without looking at them one by one.
+    */
+   private void copyUnchangedEntries(DirCacheBuilder builder, ObjectReader reader, AnyObjectId baseTree,
+            Set<String> dirtyPaths) throws IOException
+   {
+      TreeWalk walk = new TreeWalk(reader);
+      walk.addTree(baseTree);
+      walk.setRecursive(false);
+
+      while (walk.next())
+      {
+         String path = walk.getPathString();
+         if (isUnder(path, dirtyPaths))
+            continue;
+
+         if (walk.isSubtree())
+         {
+            if (containsPathsUnder(path, dirtyPaths))
+               walk.enterSubtree();
+            else
+               builder.addTree(walk.getRawPath(), DirCacheEntry.STAGE_0, reader, walk.getObjectId(0));
+         }
+         else
+         {
+            DirCacheEntry entry = new DirCacheEntry(walk.getRawPath());
+            entry.setFileMode(walk.getFileMode(0));
+            entry.setObjectId(walk.getObjectId(0));
+            builder.add(entry);
+         }
+      }
+   }
+
+   /**
+    * Copies the entries of the private index which are not under any of the dirty paths, with their stat data.
+    */
+   private void copyUnchangedEntries(DirCacheBuilder builder, DirCache privateIndex, Set<String> dirtyPaths)
+   {
+      for (int i = 0; i < privateIndex.getEntryCount(); i++)
+      {
+         DirCacheEntry entry = privateIndex.getEntry(i);
+         if (!isUnder(entry.getPathString(), dirtyPaths))
+            builder.add(entry);
+      }
+   }
+
+   /**
+    * @return true if the path equals one of the given paths or lies in one of them
+    */
+   private static boolean isUnder(String path, Set<String> paths)
+   {
+      if (paths.contains(path))
+         return true;
+
+      for (int slash = path.indexOf('/'); slash > 0; slash = path.indexOf('/', slash + 1))
+      {
+         if (paths.contains(path.substring(0, slash)))
+            return true;
+      }
+      return false;
+   }
+
+   private static boolean containsPathsUnder(String directory, Set<String> paths)
+   {
+      String prefix = directory + "/";
+      for (String path : paths)
+      {
+         if (path.startsWith(prefix))
+            return true;
+      }
+      return false;
+   }
+
+   /**
+    * Leaves the change of a large file out of the snapshot. The file stays as it was stored last, a file which was
+    * never stored stays out of the history.
+    *
+    * @param stored the entry of the file in the private index, or null
+    * @return the entry to keep, or null if the file is left out completely
+    */
+   private DirCacheEntry skipLargeFile(String path, WorkingTreeIterator file, DirCacheIterator stored)
+   {
+      DirCacheEntry entry = (stored != null) ? stored.getDirCacheEntry() : null;
+      // only the stat data is compared, the file is not read
+      if (entry == null || file.isModified(entry, false))
+         skippedPaths.add(path);
+      return entry;
+   }
+
+   private DirCacheEntry createEntry(String path, WorkingTreeIterator file, DirCacheIterator indexed,
+            ObjectInserter inserter) throws IOException
+   {
+      DirCacheEntry entry = new DirCacheEntry(path);
+      FileMode mode = file.getIndexFileMode(indexed);
+      entry.setFileMode(mode);
+
+      if (FileMode.GITLINK == mode)
+      {
+         entry.setObjectId(file.getEntryObjectId());
+         return entry;
+      }
+
+      entry.setLength(file.getEntryLength());
+      entry.setLastModified(file.getEntryLastModified());
+
+      DirCacheEntry indexEntry = (indexed != null) ? indexed.getDirCacheEntry() : null;
+      if (indexEntry != null && indexEntry.getStage() == DirCacheEntry.STAGE_0 && !file.isModified(indexEntry, true))
+      {
+         entry.setObjectId(indexEntry.getObjectId());
+      }
+      else
+      {
+         InputStream in = file.openEntryStream();
+         try
+         {
+            long length = file.getEntryContentLength();
+            entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, length, in));
+            UndoStats.countHashed(length);
+         }
+         finally
+         {
+            in.close();
+         }
+      }
+
+      return entry;
+   }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+/**
+ * How files above a size threshold are treated when the working tree is stored and restored.
+ *
+ * Large files are always read as streams and never held in memory as a whole. Their changes are either stored like
+ * any other change, or left out of the history: the history then keeps the file as it was stored last, and undo never
+ * touches it. Undo refuses to merge the content of a large file changed on both sides, which would have to be loaded
+ * into memory.
+ */
+public class LargeFilePolicy
+{
+   /**
+    * Files above 10 MiB are large by default.
+    */
+   public static final long DEFAULT_THRESHOLD = 10 * 1024 * 1024;
+
+   /**
+    * Stores large files like any other, streaming them.
+    */
+   public static final LargeFilePolicy DEFAULT = new LargeFilePolicy(DEFAULT_THRESHOLD, false);
+
+   private final long threshold;
+   private final boolean skip;
+
+   /**
+    * @param threshold size in bytes above which a file is large, 0 if no file is large
+    * @param skip true if the changes of large files are left out of the history
+    */
+   public LargeFilePolicy(long threshold, boolean skip)
+   {
+      this.threshold = threshold;
+      this.skip = skip;
+   }
+
+   public long getThreshold()
+   {
+      return threshold;
+   }
+
+   /**
+    * @return true if a file of the given size is above the threshold
+    */
+   public boolean isLarge(long size)
+   {
+      return threshold > 0 && size > threshold;
+   }
+
+   /**
+    * @return true if the changes of large files are left out of the history
+    */
+   public boolean skipsLargeFiles()
+   {
+      return skip && threshold > 0;
+   }
+}
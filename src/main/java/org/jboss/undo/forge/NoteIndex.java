@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.forge.jgit.api.EditNotesCommand;
+import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.api.errors.GitAPIException;
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.ObjectReader;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.notes.Note;
+import org.jboss.forge.jgit.notes.NoteMap;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.util.RawParseUtils;
+
+/**
+ * Index of the notes stored under a single notes ref, keyed by the annotated object id.
+ *
+ * The note map of the current notes-ref tip is read lazily: only the root tree is parsed up front, and a lookup reads
+ * just the fan-out subtree the object id falls into (once the map has grown beyond 256 notes {@link NoteMap} writes it
+ * with a fan-out layout) plus the note blob. Looked up messages are cached until the notes ref moves. Every
+ * {@link #refresh()} only re-resolves the notes ref. Notes are changed in batches through {@link #setNotes(Map)}, or
+ * {@link #setNotes(Map, RefTransaction)} together with other refs.
+ */
+public class NoteIndex
+{
+   /**
+    * Marks objects without a note in the message cache.
+    */
+   private static final Object NO_NOTE = new Object();
+
+   private static final String NOTES_COMMIT_MSG = "Notes added by 'git notes add'";
+
+   private final Repository repository;
+   private final String notesRef;
+
+   private boolean loaded = false;
+   private ObjectId loadedTip = null;
+   private ObjectReader reader = null;
+   private NoteMap map = null;
+   /** first line of the note of every looked up object, or {@link #NO_NOTE} */
+   private Map<ObjectId, Object> messages = new HashMap<ObjectId, Object>();
+
+   public NoteIndex(Repository repository, String notesRef)
+   {
+      this.repository = repository;
+      this.notesRef = notesRef;
+   }
+
+   /**
+    * Makes sure the index reflects the current tip of the notes ref.
+    *
+    * @return {@code this}
+    */
+   public synchronized NoteIndex refresh() throws IOException
+   {
+      Ref ref = repository.getRef(notesRef);
+      ObjectId tip = (ref != null) ? ref.getObjectId() : null;
+
+      if (loaded && sameTip(loadedTip, tip))
+         return this;
+
+      invalidate();
+      if (tip != null)
+      {
+         reader = repository.newObjectReader();
+         RevWalk walk = new RevWalk(reader);
+         map = NoteMap.read(reader, walk.parseCommit(tip));
+      }
+      loadedTip = tip;
+      loaded = true;
+      return this;
+   }
+
+   /**
+    * Forgets the loaded notes, the next {@link #refresh()} reads them again.
+    */
+   public synchronized void invalidate()
+   {
+      if (reader != null)
+         reader.release();
+
+      loaded = false;
+      loadedTip = null;
+      reader = null;
+      map = null;
+      messages = new HashMap<ObjectId, Object>();
+   }
+
+   public synchronized boolean hasNote(AnyObjectId id) throws IOException
+   {
+      return lookup(id) != NO_NOTE;
+   }
+
+   /**
+    * @return the first line of the note attached to the given object, or null if there is no such note (or the note
+    *         is empty).
+    */
+   public synchronized String getNoteMessage(AnyObjectId id) throws IOException
+   {
+      Object message = lookup(id);
+      return (message != NO_NOTE) ? (String) message : null;
+   }
+
+   public String getNotesRef()
+   {
+      return notesRef;
+   }
+
+   /**
+    * Changes the notes of all given objects in a single commit on the notes ref.
+    *
+    * @param notes new note of every object, null to remove the note
+    */
+   public void setNotes(Map<? extends AnyObjectId, String> notes) throws IOException
+   {
+      EditNotesCommand edit = Git.wrap(repository).notesEdit().setNotesRef(notesRef);
+      for (Map.Entry<? extends AnyObjectId, String> note : notes.entrySet())
+         edit.setNote(note.getKey(), note.getValue());
+
+      try
+      {
+         edit.call();
+      }
+      catch (GitAPIException e)
+      {
+         throw new IOException("Failed to update " + notesRef + ": " + e.getMessage(), e);
+      }
+   }
+
+   /**
+    * Writes the notes of all given objects into a single commit on the notes ref, the ref moves with the transaction.
+    *
+    * @param notes new note of every object, null to remove the note
+    */
+   public void setNotes(Map<? extends AnyObjectId, String> notes, RefTransaction transaction) throws IOException
+   {
+      if (notes.isEmpty())
+         return;
+
+      ObjectId tip = transaction.resolve(notesRef);
+      RevWalk walk = new RevWalk(repository);
+      ObjectInserter inserter = repository.newObjectInserter();
+      try
+      {
+         RevCommit tipCommit = (tip != null) ? walk.parseCommit(tip) : null;
+         NoteMap map = (tipCommit != null) ? NoteMap.read(walk.getObjectReader(), tipCommit) : NoteMap.newEmptyMap();
+         for (Map.Entry<? extends AnyObjectId, String> note : notes.entrySet())
+            map.set(note.getKey(), note.getValue(), inserter);
+
+         CommitBuilder commit = new CommitBuilder();
+         commit.setTreeId(map.writeTree(inserter));
+         commit.setAuthor(new PersonIdent(repository));
+         commit.setCommitter(commit.getAuthor());
+         commit.setMessage(NOTES_COMMIT_MSG);
+         if (tipCommit != null)
+            commit.setParentIds(tipCommit);
+
+         ObjectId commitId = inserter.insert(commit);
+         inserter.flush();
+         transaction.update(notesRef, commitId);
+      }
+      finally
+      {
+         inserter.release();
+         walk.release();
+      }
+   }
+
+   private Object lookup(AnyObjectId id) throws IOException
+   {
+      if (messages.containsKey(id))
+         return messages.get(id);
+
+      Note note = (map != null) ? map.getNote(id) : null;
+      Object message = NO_NOTE;
+      if (note != null)
+         message = firstLine(reader.open(note.getData(), Constants.OBJ_BLOB).getCachedBytes());
+
+      messages.put(id.copy(), message);
+      return message;
+   }
+
+   private static String firstLine(byte[] data)
+   {
+      if (data.length == 0)
+         return null;
+
+      int end = RawParseUtils.nextLF(data, 0);
+      if (end > 0 && data[end - 1] == '\n')
+         end--;
+      if (end > 0 && data[end - 1] == '\r')
+         end--;
+
+      return RawParseUtils.decode(data, 0, end);
+   }
+
+   private static boolean sameTip(ObjectId a, ObjectId b)
+   {
+      if (a == null || b == null)
+         return a == b;
+      return a.equals(b);
+   }
+}
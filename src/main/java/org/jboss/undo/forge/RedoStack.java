@@ -0,0 +1,276 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.lib.TreeFormatter;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+
+/**
+ * Stack of undone changes which can be applied again, stored under {@link #REDO_REF}.
+ *
+ * Every undo pushes one frame: a commit with an empty tree whose first parent is the previous frame and whose other
+ * parents are the reverted commits of the history branch, newest first. The message records the note each of them had
+ * before it was marked deleted, and the tree the undo left in the working tree. The frames keep the reverted commits
+ * reachable even if the history branch drops them.
+ */
+public class RedoStack
+{
+   public static final String REDO_REF = "refs/forge-undo/redo";
+
+   private static final String FRAME_MSG_HEADER = "forge-undo redo";
+   private static final String FRAME_MSG_BASE = "base ";
+   /** stands for a commit which had no note, a branch name never starts with a dash */
+   private static final String NO_NOTE = "-";
+
+   private final Repository repository;
+
+   public RedoStack(Repository repository)
+   {
+      this.repository = repository;
+   }
+
+   /**
+    * One undo, which can be applied again.
+    */
+   public static class Frame
+   {
+      private final List<RevCommit> commits;
+      private final List<String> notes;
+      private final ObjectId baseTree;
+
+      private Frame(List<RevCommit> commits, List<String> notes, ObjectId baseTree)
+      {
+         this.commits = commits;
+         this.notes = notes;
+         this.baseTree = baseTree;
+      }
+
+      /**
+       * @return the reverted commits of the history branch, newest first
+       */
+      public List<RevCommit> getCommits()
+      {
+         return commits;
+      }
+
+      /**
+       * @return the notes the reverted commits had before they were undone, in the order of {@link #getCommits()},
+       *         null for a commit which had no note
+       */
+      public List<String> getNotes()
+      {
+         return notes;
+      }
+
+      /**
+       * @return false if the working tree changed since the undo (e.g. it was edited or committed with changes, or
+       *         another branch was checked out), the undone changes may not fit it anymore
+       */
+      public boolean isBasedOn(ObjectId workingTree)
+      {
+         // frames written by older versions do not know their base
+         return baseTree == null || baseTree.equals(workingTree);
+      }
+   }
+
+   /**
+    * Records an undo of the given commits. The frame is written right away, the ref moves with the transaction.
+    *
+    * @param commits the reverted commits, newest first
+    * @param notes their notes before the undo, null for a commit without a note
+    * @param baseTree the tree the undo leaves in the working tree
+    */
+   public void push(List<RevCommit> commits, List<String> notes, ObjectId baseTree, RefTransaction transaction)
+            throws IOException
+   {
+      ObjectId previous = transaction.resolve(REDO_REF);
+
+      StringBuilder msg = new StringBuilder(FRAME_MSG_HEADER).append("\n\n");
+      for (int i = 0; i < commits.size(); i++)
+      {
+         String note = notes.get(i);
+         msg.append(commits.get(i).getId().getName()).append(' ').append(note != null ? note : NO_NOTE).append('\n');
+      }
+      msg.append(FRAME_MSG_BASE).append(baseTree.getName()).append('\n');
+
+      ObjectInserter inserter = repository.newObjectInserter();
+      ObjectId frame;
+      try
+      {
+         PersonIdent ident = new PersonIdent(repository);
+         CommitBuilder builder = new CommitBuilder();
+         builder.setTreeId(inserter.insert(new TreeFormatter()));
+         builder.setAuthor(ident);
+         builder.setCommitter(ident);
+         builder.setMessage(msg.toString());
+
+         List<ObjectId> parents = new ArrayList<ObjectId>();
+         // without a previous frame the first parent is the newest reverted commit itself
+         if (previous != null)
+            parents.add(previous);
+         parents.addAll(commits);
+         builder.setParentIds(parents);
+
+         frame = inserter.insert(builder);
+         inserter.flush();
+      }
+      finally
+      {
+         inserter.release();
+      }
+
+      transaction.update(REDO_REF, frame);
+   }
+
+   /**
+    * @return the most recent undo, or null if there is nothing to redo
+    */
+   public Frame peek() throws IOException
+   {
+      Ref ref = repository.getRef(REDO_REF);
+      if (ref == null)
+         return null;
+
+      RevWalk walk = new RevWalk(repository);
+      try
+      {
+         return parseFrame(walk, walk.parseCommit(ref.getObjectId()));
+      }
+      finally
+      {
+         walk.release();
+      }
+   }
+
+   /**
+    * Removes the most recent undo from the stack, once the transaction is published.
+    */
+   public void pop(RefTransaction transaction) throws IOException
+   {
+      ObjectId tip = transaction.resolve(REDO_REF);
+      if (tip == null)
+         return;
+
+      RevWalk walk = new RevWalk(repository);
+      try
+      {
+         RevCommit frame = walk.parseCommit(tip);
+         transaction.update(REDO_REF, hasPreviousFrame(walk, frame) ? frame.getParent(0).copy() : null);
+      }
+      finally
+      {
+         walk.release();
+      }
+   }
+
+   /**
+    * Forgets all undone changes, e.g. because a new change was stored on top of them.
+    */
+   public void clear() throws IOException
+   {
+      Ref ref = repository.getRef(REDO_REF);
+      if (ref != null)
+         update(ref.getObjectId(), null);
+   }
+
+   /**
+    * Forgets all undone changes once the transaction is published.
+    */
+   public void clear(RefTransaction transaction) throws IOException
+   {
+      transaction.update(REDO_REF, null);
+   }
+
+   private Frame parseFrame(RevWalk walk, RevCommit frame) throws IOException
+   {
+      List<RevCommit> commits = new ArrayList<RevCommit>();
+      List<String> notes = new ArrayList<String>();
+      ObjectId baseTree = null;
+
+      String[] lines = frame.getFullMessage().split("\n");
+      for (int i = 2; i < lines.length; i++)
+      {
+         if (lines[i].startsWith(FRAME_MSG_BASE))
+         {
+            baseTree = ObjectId.fromString(lines[i].substring(FRAME_MSG_BASE.length()));
+            continue;
+         }
+
+         int space = lines[i].indexOf(' ');
+         if (space < 0)
+            continue;
+
+         commits.add(walk.parseCommit(ObjectId.fromString(lines[i].substring(0, space))));
+         String note = lines[i].substring(space + 1);
+         notes.add(NO_NOTE.equals(note) ? null : note);
+      }
+
+      return new Frame(Collections.unmodifiableList(commits), Collections.unmodifiableList(notes), baseTree);
+   }
+
+   private boolean hasPreviousFrame(RevWalk walk, RevCommit frame) throws IOException
+   {
+      if (frame.getParentCount() == 0)
+         return false;
+
+      RevCommit parent = walk.parseCommit(frame.getParent(0));
+      return parent.getFullMessage().startsWith(FRAME_MSG_HEADER + "\n");
+   }
+
+   private void update(ObjectId expected, ObjectId newFrame) throws IOException
+   {
+      RefUpdate update = repository.updateRef(REDO_REF);
+      update.setExpectedOldObjectId(expected != null ? expected : ObjectId.zeroId());
+      update.setForceUpdate(true);
+
+      RefUpdate.Result result;
+      if (newFrame == null)
+      {
+         result = update.delete();
+      }
+      else
+      {
+         update.setNewObjectId(newFrame);
+         update.setRefLogMessage("forge-undo: redo stack", false);
+         result = update.update();
+      }
+
+      switch (result)
+      {
+      case NEW:
+      case FAST_FORWARD:
+      case FORCED:
+      case NO_CHANGE:
+         break;
+      default:
+         throw new IOException("Failed to update " + REDO_REF + ": " + result);
+      }
+   }
+}
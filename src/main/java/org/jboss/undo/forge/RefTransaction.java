@@ -0,0 +1,353 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.BatchRefUpdate;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.NullProgressMonitor;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.storage.file.LockFile;
+import org.jboss.forge.jgit.transport.ReceiveCommand;
+import org.jboss.forge.jgit.util.FS;
+import org.jboss.forge.jgit.util.FileUtils;
+import org.jboss.forge.jgit.util.IO;
+import org.jboss.forge.jgit.util.RawParseUtils;
+
+/**
+ * Publishes the ref changes of one operation (a capture, an undo or a redo) together, after all their objects were
+ * written.
+ *
+ * Before anything visible is changed, the planned ref updates and the planned rewrite of the working tree are written
+ * to {@code .git/forge-undo/pending-refs}. The working tree is rewritten, then all refs are moved by one
+ * {@link BatchRefUpdate} with a single reflog message, and the file is removed. If forge dies in between, the file is
+ * still there on the next start and {@link #recover(Repository)} finishes the operation: the objects it points to
+ * already exist, so the refs which still point to their old ids are moved. The working tree is rewritten again
+ * unless every ref moved already, but only the files which still have their old content: files changed since are
+ * left alone. Refs somebody else moved in the meantime are left alone as well. A rollback is planned in the file too
+ * before it starts, so an interrupted rollback is finished the same way.
+ */
+public class RefTransaction
+{
+   /**
+    * File holding the ref updates of an operation while they are being published, relative to the git directory.
+    */
+   public static final String RECOVERY_FILE = "forge-undo/pending-refs";
+
+   private static final String HEADER = "forge-undo pending refs";
+
+   private final Repository repository;
+   private final String message;
+   /** old and new id of every ref, by full ref name, null for a missing ref */
+   private final Map<String, ObjectId[]> updates = new LinkedHashMap<String, ObjectId[]>();
+   private ObjectId checkoutFrom = null;
+   private ObjectId checkoutTo = null;
+
+   /**
+    * @param message reflog message of all the updates, only its first line is used
+    */
+   public RefTransaction(Repository repository, String message)
+   {
+      this.repository = repository;
+      int end = message.indexOf('\n');
+      this.message = (end < 0) ? message : message.substring(0, end);
+   }
+
+   /**
+    * @return the id the given ref will point to once the transaction is published, null if it will not exist
+    */
+   public ObjectId resolve(String refName) throws IOException
+   {
+      String name = targetOf(refName);
+      if (updates.containsKey(name))
+         return updates.get(name)[1];
+
+      Ref ref = repository.getRef(name);
+      return (ref != null && ref.getObjectId() != null) ? ref.getObjectId().copy() : null;
+   }
+
+   /**
+    * Moves the given ref. A symbolic ref such as {@code HEAD} moves the branch it points to.
+    *
+    * @param newId new id of the ref, null to delete it
+    */
+   public RefTransaction update(String refName, ObjectId newId) throws IOException
+   {
+      String name = targetOf(refName);
+      ObjectId oldId = updates.containsKey(name) ? updates.get(name)[0] : resolve(name);
+      updates.put(name, new ObjectId[] { oldId, (newId != null) ? newId.copy() : null });
+      return this;
+   }
+
+   /**
+    * Brings the working tree and the index from the {@code current} tree to the {@code target} tree before the refs
+    * are moved, see {@link HistoryChangeReverter#checkout(AnyObjectId, AnyObjectId)}.
+    */
+   public RefTransaction checkout(AnyObjectId current, AnyObjectId target)
+   {
+      this.checkoutFrom = current.copy();
+      this.checkoutTo = target.copy();
+      return this;
+   }
+
+   /**
+    * Rewrites the working tree and moves all the refs. If anything fails on the way, the refs which were moved already
+    * are moved back and the working tree is restored.
+    *
+    * @throws IOException also when an interrupted operation is still pending, it is finished by
+    *            {@link #recover(Repository)} when the project is opened again
+    */
+   public void commit() throws IOException
+   {
+      // the plan of this transaction was made against refs and files the pending operation may still change
+      File recoveryFile = getRecoveryFile(repository);
+      if (recoveryFile.exists())
+         throw new IOException("An interrupted operation is still pending in " + recoveryFile
+                  + ", it is finished the next time the project is opened");
+
+      writeRecoveryFile(recoveryFile);
+
+      List<ReceiveCommand> commands = new ArrayList<ReceiveCommand>();
+      for (Map.Entry<String, ObjectId[]> update : updates.entrySet())
+      {
+         if (!same(update.getValue()[0], update.getValue()[1]))
+            commands.add(command(update.getKey(), update.getValue()[0], update.getValue()[1]));
+      }
+
+      HistoryChangeReverter reverter = new HistoryChangeReverter(repository);
+      List<ReceiveCommand> failed = null;
+      try
+      {
+         if (checkoutFrom != null)
+            reverter.checkout(checkoutFrom, checkoutTo);
+         failed = execute(repository, message, commands);
+      }
+      finally
+      {
+         // a failed checkout or ref update is rolled back right away, with the plan this transaction made
+         if (failed == null || !failed.isEmpty())
+            rollBack(recoveryFile, reverter, commands);
+      }
+
+      FileUtils.delete(recoveryFile);
+      if (!failed.isEmpty())
+         throw new IOException("Failed to update " + failed.get(0).getRefName() + ": " + failed.get(0).getResult());
+   }
+
+   /**
+    * Finishes an operation which was interrupted while its refs were being published, e.g. because forge was killed.
+    * Has to be called once when a project is opened, before the history is read, with the history locked.
+    *
+    * @return true if an interrupted operation was found
+    */
+   public static boolean recover(Repository repository) throws IOException
+   {
+      File recoveryFile = getRecoveryFile(repository);
+      if (!recoveryFile.isFile())
+         return false;
+
+      String[] lines = RawParseUtils.decode(IO.readFully(recoveryFile)).split("\n");
+      // the file is written at once, one without the header was never complete and nothing was changed after it
+      if (lines.length < 2 || !HEADER.equals(lines[0]))
+      {
+         FileUtils.delete(recoveryFile);
+         return true;
+      }
+
+      String message = lines[1];
+      ObjectId checkoutFrom = null;
+      ObjectId checkoutTo = null;
+      boolean complete = true;
+      boolean movesRefs = false;
+      List<ReceiveCommand> pending = new ArrayList<ReceiveCommand>();
+      for (int i = 2; i < lines.length; i++)
+      {
+         String[] fields = lines[i].split(" ", 4);
+         if (fields[0].equals("checkout"))
+         {
+            checkoutFrom = ObjectId.fromString(fields[1]);
+            checkoutTo = ObjectId.fromString(fields[2]);
+            complete &= repository.hasObject(checkoutTo);
+            continue;
+         }
+
+         ObjectId oldId = parseId(fields[1]);
+         ObjectId newId = parseId(fields[2]);
+         movesRefs = true;
+         complete &= (newId == null || repository.hasObject(newId));
+
+         Ref ref = repository.getRef(fields[3]);
+         ObjectId current = (ref != null) ? ref.getObjectId() : null;
+         if (same(current, oldId) && !same(current, newId))
+            pending.add(command(fields[3], oldId, newId));
+      }
+
+      // without the new objects the operation cannot be finished, it is dropped before anything points to them
+      if (complete && (!pending.isEmpty() || !movesRefs))
+      {
+         // the working tree is rewritten before the refs move, with every ref moved already it was rewritten (a
+         // rollback which had no ref to move back plans the checkout only)
+         if (checkoutFrom != null)
+            new HistoryChangeReverter(repository).checkoutUnchanged(checkoutFrom, checkoutTo);
+         execute(repository, message + " (recovered)", pending);
+      }
+
+      FileUtils.delete(recoveryFile);
+      return true;
+   }
+
+   /**
+    * Writes the plan of this transaction to the given file, without publishing anything.
+    */
+   void writeRecoveryFile(File recoveryFile) throws IOException
+   {
+      writeRecoveryFile(repository, recoveryFile, message, checkoutFrom, checkoutTo, updates);
+   }
+
+   private static void writeRecoveryFile(Repository repository, File recoveryFile, String message,
+            ObjectId checkoutFrom, ObjectId checkoutTo, Map<String, ObjectId[]> updates) throws IOException
+   {
+      StringBuilder content = new StringBuilder(HEADER).append('\n').append(message).append('\n');
+      if (checkoutFrom != null)
+         content.append("checkout ").append(checkoutFrom.name()).append(' ').append(checkoutTo.name()).append('\n');
+      for (Map.Entry<String, ObjectId[]> update : updates.entrySet())
+         content.append("update ").append(nameOf(update.getValue()[0])).append(' ')
+                  .append(nameOf(update.getValue()[1])).append(' ').append(update.getKey()).append('\n');
+
+      LockFile lock = new LockFile(recoveryFile, FS.DETECTED);
+      if (!lock.lock())
+         throw new IOException("Another operation is being published in " + repository.getDirectory());
+
+      try
+      {
+         lock.setFSync(true);
+         lock.write(Constants.encode(content.toString()));
+         if (!lock.commit())
+            throw new IOException("Failed to write " + recoveryFile);
+      }
+      finally
+      {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Moves the refs which were moved already back and restores the working tree. The way back replaces the plan in
+    * the recovery file first, a rollback which is interrupted as well is finished on the next start.
+    */
+   private void rollBack(File recoveryFile, HistoryChangeReverter reverter, List<ReceiveCommand> commands)
+            throws IOException
+   {
+      Map<String, ObjectId[]> moved = new LinkedHashMap<String, ObjectId[]>();
+      List<ReceiveCommand> applied = new ArrayList<ReceiveCommand>();
+      for (ReceiveCommand command : commands)
+      {
+         if (command.getResult() == ReceiveCommand.Result.OK)
+         {
+            moved.put(command.getRefName(), new ObjectId[] { command.getNewId(), command.getOldId() });
+            applied.add(new ReceiveCommand(command.getNewId(), command.getOldId(), command.getRefName()));
+         }
+      }
+      writeRecoveryFile(repository, recoveryFile, message + " (rolled back)", checkoutTo, checkoutFrom, moved);
+
+      execute(repository, message + " (rolled back)", applied);
+      // paths the checkout did not get to have their old content already
+      if (checkoutFrom != null)
+         reverter.checkout(checkoutTo, checkoutFrom);
+      FileUtils.delete(recoveryFile);
+   }
+
+   /**
+    * @return the commands which failed
+    */
+   private static List<ReceiveCommand> execute(Repository repository, String message, List<ReceiveCommand> commands)
+            throws IOException
+   {
+      List<ReceiveCommand> failed = new ArrayList<ReceiveCommand>();
+      if (commands.isEmpty())
+         return failed;
+
+      BatchRefUpdate batch = repository.getRefDatabase().newBatchUpdate();
+      batch.setAllowNonFastForwards(true);
+      batch.setRefLogMessage(message, false);
+      batch.addCommand(commands);
+
+      RevWalk walk = new RevWalk(repository);
+      try
+      {
+         batch.execute(walk, NullProgressMonitor.INSTANCE);
+      }
+      finally
+      {
+         walk.release();
+      }
+
+      for (ReceiveCommand command : commands)
+      {
+         if (command.getResult() != ReceiveCommand.Result.OK)
+            failed.add(command);
+      }
+      return failed;
+   }
+
+   private static ReceiveCommand command(String refName, ObjectId oldId, ObjectId newId)
+   {
+      return new ReceiveCommand(oldId != null ? oldId : ObjectId.zeroId(), newId != null ? newId : ObjectId.zeroId(),
+               refName);
+   }
+
+   private String targetOf(String refName) throws IOException
+   {
+      Ref ref = repository.getRef(refName);
+      return (ref != null && ref.isSymbolic()) ? ref.getTarget().getName() : refName;
+   }
+
+   private static File getRecoveryFile(Repository repository) throws IOException
+   {
+      File file = new File(repository.getDirectory(), RECOVERY_FILE);
+      File directory = file.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Failed to create " + directory);
+      return file;
+   }
+
+   private static String nameOf(ObjectId id)
+   {
+      return (id != null) ? id.name() : ObjectId.zeroId().name();
+   }
+
+   private static ObjectId parseId(String name)
+   {
+      ObjectId id = ObjectId.fromString(name);
+      return ObjectId.zeroId().equals(id) ? null : id;
+   }
+
+   private static boolean same(ObjectId a, ObjectId b)
+   {
+      return (a == null) ? b == null : a.equals(b);
+   }
+}
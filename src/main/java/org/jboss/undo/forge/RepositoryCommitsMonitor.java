@@ -1,10 +1,29 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
 package org.jboss.undo.forge;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -13,145 +32,348 @@ import org.jboss.forge.jgit.api.Git;
 import org.jboss.forge.jgit.api.errors.GitAPIException;
 import org.jboss.forge.jgit.errors.IncorrectObjectTypeException;
 import org.jboss.forge.jgit.errors.MissingObjectException;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
 import org.jboss.forge.jgit.lib.Ref;
 import org.jboss.forge.jgit.lib.Repository;
 import org.jboss.forge.jgit.revwalk.RevCommit;
 import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.storage.file.LockFile;
+import org.jboss.forge.jgit.util.FS;
 import org.jboss.forge.parser.java.util.Strings;
 
+/**
+ * Watches the local branches of a repository for commits made outside of the plugin.
+ *
+ * Only the tip of every branch is remembered. On each update a moved tip is classified by looking at its parent, so
+ * the cost of an update does not depend on the length of the history. Every facet of a repository shares one monitor,
+ * see {@link #get(File, String)}, otherwise each of them would report the same commit again.
+ */
 public class RepositoryCommitsMonitor
 {
-   private Map<String, Integer> commitCounts = new HashMap<String, Integer>();
+   /**
+    * How many commits are walked at most when checking whether one commit is an ancestor of another.
+    */
+   private static final int MAX_ANCESTRY_DEPTH = 64;
+
+   private static final Map<File, RepositoryCommitsMonitor> monitors = new HashMap<File, RepositoryCommitsMonitor>();
+
+   private Map<String, ObjectId> branchTips = new HashMap<String, ObjectId>();
+   private Map<String, BranchChange> branchChanges = new HashMap<String, BranchChange>();
    private RepositoryCommitState currentState = RepositoryCommitState.NO_CHANGES;
    private String branchWithOneNewCommit = "";
    private String undoBranchName = "";
+   private RevWalk revWalk = null;
+   private Repository revWalkRepository = null;
+   private File branchTipsFile = null;
 
    public enum RepositoryCommitState
    {
       NO_CHANGES, ONE_NEW_COMMIT, MULTIPLE_CHANGED_COMMITS
    }
 
-   public RepositoryCommitState updateCommitCounters(Git repo) throws GitAPIException, MissingObjectException,
-            IncorrectObjectTypeException, IOException
+   /**
+    * What happened to a single branch between two updates.
+    */
+   public enum BranchChange
    {
-      this.branchWithOneNewCommit = "";
+      UNCHANGED,
+      /** exactly one new commit whose parent is the previous tip */
+      ONE_NEW_COMMIT,
+      /** the previous tip is an ancestor of the new one, but more than one commit was added */
+      FAST_FORWARD,
+      /** the previous tip is not reachable from the new one anymore (reset, rebase, amend...) */
+      REWRITTEN,
+      /** new branch pointing to an already known commit */
+      CREATED,
+      /** new branch with one commit on top of an already known commit */
+      CREATED_WITH_ONE_COMMIT,
+      DELETED
+   }
 
-      // get all localbranches
-      List<Ref> localBranches = repo.branchList().call();
+   /**
+    * @return the monitor of the repository in the given directory, created with the branch tips stored by an earlier
+    *         one on first use
+    */
+   public static RepositoryCommitsMonitor get(File gitDir, String undoBranchName) throws IOException
+   {
+      File key = gitDir.getCanonicalFile();
+      synchronized (monitors)
+      {
+         RepositoryCommitsMonitor monitor = monitors.get(key);
+         if (monitor == null)
+         {
+            monitor = new RepositoryCommitsMonitor();
+            monitor.setUndoBranchName(undoBranchName);
+            monitor.setBranchTipsFile(new File(new File(key, "forge-undo"), "branch-tips"));
+            monitors.put(key, monitor);
+         }
+         return monitor;
+      }
+   }
 
-      // get the number of commits for each branch
-      Map<String, Integer> newCommitCounts = new HashMap<String, Integer>();
-      for (Ref branch : localBranches)
+   public synchronized RepositoryCommitState updateCommitCounters(Git repo) throws GitAPIException,
+            MissingObjectException, IncorrectObjectTypeException, IOException
+   {
+      this.branchWithOneNewCommit = "";
+
+      // get the tips of all local branches
+      Map<String, ObjectId> newBranchTips = new HashMap<String, ObjectId>();
+      for (Ref branch : repo.branchList().call())
       {
-         if (Strings.areEqual(Repository.shortenRefName(branch.getName()), undoBranchName))
+         String branchName = Repository.shortenRefName(branch.getName());
+         if (Strings.areEqual(branchName, undoBranchName))
             continue;
 
-         RevWalk revWalk = new RevWalk(repo.getRepository());
-         revWalk.markStart(revWalk.parseCommit(branch.getObjectId()));
-         int commits = countCommits(revWalk.iterator());
-         newCommitCounts.put(Repository.shortenRefName(branch.getName()), commits);
+         newBranchTips.put(branchName, branch.getObjectId());
       }
 
-      if (commitCounts.isEmpty()) // first check
+      if (branchTips.isEmpty()) // first check
       {
-         commitCounts = newCommitCounts;
+         branchTips = newBranchTips;
+         storeBranchTips();
+         branchChanges = new HashMap<String, BranchChange>();
          currentState = RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
          return currentState;
       }
 
-      if (newCommitCounts.size() == commitCounts.size() + 1)
+      RevWalk walk = getRevWalk(repo.getRepository());
+      Map<String, BranchChange> changes = new HashMap<String, BranchChange>();
+      for (Entry<String, ObjectId> newTip : newBranchTips.entrySet())
+      {
+         ObjectId oldTip = branchTips.get(newTip.getKey());
+         if (oldTip == null)
+            changes.put(newTip.getKey(), classifyNewBranch(walk, newTip.getValue()));
+         else
+            changes.put(newTip.getKey(), classifyMovedBranch(walk, oldTip, newTip.getValue()));
+      }
+      for (String branchName : branchTips.keySet())
       {
-         // special case. New branch was created. Could still be that only 1 commit was added
-         // TODO: add support for this in the future
+         if (!newBranchTips.containsKey(branchName))
+            changes.put(branchName, BranchChange.DELETED);
+      }
 
-         commitCounts = newCommitCounts;
-         currentState = RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
-         return currentState;
+      branchTips = newBranchTips;
+      branchChanges = changes;
+      currentState = summarize(changes);
+      storeBranchTips();
+      return currentState;
+   }
+
+   private RepositoryCommitState summarize(Map<String, BranchChange> changes)
+   {
+      Set<String> branchesWithOneNewCommit = new HashSet<String>();
+      for (Entry<String, BranchChange> change : changes.entrySet())
+      {
+         switch (change.getValue())
+         {
+         case UNCHANGED:
+            break;
+         case ONE_NEW_COMMIT:
+         case CREATED_WITH_ONE_COMMIT:
+            branchesWithOneNewCommit.add(change.getKey());
+            break;
+         default:
+            return RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
+         }
       }
 
-      if (newCommitCounts.size() != commitCounts.size()) // compare number of branches
+      switch (branchesWithOneNewCommit.size())
       {
-         commitCounts = newCommitCounts;
-         currentState = RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
-         return currentState;
+      case 0:
+         return RepositoryCommitState.NO_CHANGES;
+      case 1:
+         branchWithOneNewCommit = branchesWithOneNewCommit.iterator().next();
+         return RepositoryCommitState.ONE_NEW_COMMIT;
+      default:
+         return RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
+      }
+   }
+
+   private BranchChange classifyMovedBranch(RevWalk walk, ObjectId oldTip, ObjectId newTip) throws IOException
+   {
+      if (oldTip.equals(newTip))
+         return BranchChange.UNCHANGED;
+
+      RevCommit newTipCommit = walk.parseCommit(newTip);
+      if (newTipCommit.getParentCount() == 1 && newTipCommit.getParent(0).equals(oldTip))
+         return BranchChange.ONE_NEW_COMMIT;
+
+      RevCommit oldTipCommit;
+      try
+      {
+         oldTipCommit = walk.parseCommit(oldTip);
+      }
+      catch (MissingObjectException e)
+      {
+         // the previous tip was pruned already
+         return BranchChange.REWRITTEN;
       }
-      else
-      // same number of branches. Check the number of commits on each branch
+
+      if (isMergedInto(walk, oldTipCommit, newTipCommit))
+         return BranchChange.FAST_FORWARD;
+      return BranchChange.REWRITTEN;
+   }
+
+   private BranchChange classifyNewBranch(RevWalk walk, ObjectId newTip) throws IOException
+   {
+      if (branchTips.containsValue(newTip))
+         return BranchChange.CREATED;
+
+      RevCommit newTipCommit = walk.parseCommit(newTip);
+      if (newTipCommit.getParentCount() != 1)
+         return BranchChange.CREATED;
+
+      RevCommit parent = newTipCommit.getParent(0);
+      if (branchTips.containsValue(parent))
+         return BranchChange.CREATED_WITH_ONE_COMMIT;
+
+      for (ObjectId knownTip : branchTips.values())
       {
-         Set<String> branchesWithOneNewCommit = new HashSet<String>();
-         for (Entry<String, Integer> oldCommitCount : commitCounts.entrySet())
+         RevCommit knownTipCommit;
+         try
          {
-            String branchName = oldCommitCount.getKey();
-            int diff = newCommitCounts.get(branchName) - oldCommitCount.getValue();
-
-            if (diff == 1)
-            {
-               branchesWithOneNewCommit.add(branchName);
-            }
-            else if (diff < 0 || diff > 1)
-            {
-               commitCounts = newCommitCounts;
-               currentState = RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
-               return currentState;
-            }
+            knownTipCommit = walk.parseCommit(knownTip);
          }
-
-         switch (branchesWithOneNewCommit.size())
+         catch (MissingObjectException e)
          {
-         case 0:
-            currentState = RepositoryCommitState.NO_CHANGES;
-            break;
-         case 1:
-            branchWithOneNewCommit = branchesWithOneNewCommit.iterator().next();
-            currentState = RepositoryCommitState.ONE_NEW_COMMIT;
-            break;
-         default:
-            currentState = RepositoryCommitState.MULTIPLE_CHANGED_COMMITS;
-            break;
+            continue;
          }
 
-         // replace commitCounts
-         commitCounts = newCommitCounts;
-         return currentState;
+         if (isMergedInto(walk, walk.parseCommit(parent), knownTipCommit))
+            return BranchChange.CREATED_WITH_ONE_COMMIT;
       }
+
+      return BranchChange.CREATED;
    }
 
-   private int countCommits(Iterator<RevCommit> iterator)
+   /**
+    * Same as {@link RevWalk#isMergedInto(RevCommit, RevCommit)}, but gives up after {@link #MAX_ANCESTRY_DEPTH}
+    * commits. Anything further away than that is treated as not merged.
+    */
+   private boolean isMergedInto(RevWalk walk, RevCommit base, RevCommit tip) throws IOException
    {
-      int ret = 0;
-      while (iterator.hasNext())
+      walk.reset();
+      walk.markStart(tip);
+
+      int depth = 0;
+      for (RevCommit commit = walk.next(); commit != null && depth < MAX_ANCESTRY_DEPTH; commit = walk.next(), depth++)
       {
-         ret++;
-         iterator.next();
+         if (commit.equals(base))
+            return true;
       }
-      return ret;
+
+      return false;
    }
 
-   public RepositoryCommitState getCurrentState()
+   private RevWalk getRevWalk(Repository repository)
+   {
+      if (revWalk == null || revWalkRepository != repository)
+      {
+         if (revWalk != null)
+            revWalk.release();
+
+         revWalk = new RevWalk(repository);
+         revWalkRepository = repository;
+      }
+
+      revWalk.reset();
+      return revWalk;
+   }
+
+   public synchronized RepositoryCommitState getCurrentState()
    {
       return currentState;
    }
 
-   public String getBranchWithOneNewCommit()
+   public synchronized Map<String, BranchChange> getBranchChanges()
+   {
+      return Collections.unmodifiableMap(branchChanges);
+   }
+
+   public synchronized String getBranchWithOneNewCommit()
    {
       return branchWithOneNewCommit;
    }
 
-   public String getUndoBranchName()
+   public synchronized String getUndoBranchName()
    {
       return undoBranchName;
    }
 
-   public void setUndoBranchName(String undoBranchName)
+   public synchronized void setUndoBranchName(String undoBranchName)
    {
       this.undoBranchName = undoBranchName;
    }
 
-   public void reset()
+   public synchronized void reset()
    {
-      this.commitCounts = new HashMap<String, Integer>();
+      this.branchTips = new HashMap<String, ObjectId>();
+      this.branchChanges = new HashMap<String, BranchChange>();
       currentState = RepositoryCommitState.NO_CHANGES;
       this.branchWithOneNewCommit = "";
+
+      if (branchTipsFile != null)
+         branchTipsFile.delete();
+   }
+
+   /**
+    * Keeps the branch tips in the given file, so the next monitor (e.g. after a restart of the shell) carries on from
+    * them instead of treating everything as changed. Tips stored in the file are loaded right away.
+    */
+   public synchronized void setBranchTipsFile(File file) throws IOException
+   {
+      this.branchTipsFile = file;
+      if (!file.isFile())
+         return;
+
+      Map<String, ObjectId> tips = new HashMap<String, ObjectId>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try
+      {
+         // same layout as packed-refs: "<id> <branch>" per line
+         for (String line = reader.readLine(); line != null; line = reader.readLine())
+         {
+            int space = line.indexOf(' ');
+            if (space == Constants.OBJECT_ID_STRING_LENGTH && ObjectId.isId(line.substring(0, space)))
+               tips.put(line.substring(space + 1), ObjectId.fromString(line.substring(0, space)));
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+
+      this.branchTips = tips;
+   }
+
+   private void storeBranchTips() throws IOException
+   {
+      if (branchTipsFile == null)
+         return;
+
+      StringBuilder content = new StringBuilder();
+      for (Entry<String, ObjectId> tip : branchTips.entrySet())
+         content.append(tip.getValue().name()).append(' ').append(tip.getKey()).append('\n');
+
+      File directory = branchTipsFile.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Failed to create " + directory);
+
+      LockFile lock = new LockFile(branchTipsFile, FS.DETECTED);
+      if (!lock.lock())
+         throw new IOException("Failed to lock " + branchTipsFile);
+
+      try
+      {
+         lock.write(Constants.encode(content.toString()));
+         if (!lock.commit())
+            throw new IOException("Failed to write " + branchTipsFile);
+      }
+      finally
+      {
+         lock.unlock();
+      }
    }
 
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks guarding the history of the repositories, one read-write lock per git directory.
+ *
+ * Storing changes, undo, redo, reset and compaction take the write lock, listing and showing the stored changes the
+ * read lock, so readers of the same repository do not block each other. The locks are striped: a fixed set of
+ * {@link #STRIPES} locks is shared by all the repositories, nothing has to be created or forgotten when projects come
+ * and go, and projects in different repositories only rarely share a lock.
+ */
+public class RepositoryLocks
+{
+   /**
+    * Number of the locks, a power of two.
+    */
+   public static final int STRIPES = 64;
+
+   private static final ReadWriteLock[] locks = new ReadWriteLock[STRIPES];
+
+   static
+   {
+      for (int i = 0; i < STRIPES; i++)
+         locks[i] = new ReentrantReadWriteLock();
+   }
+
+   private RepositoryLocks()
+   {
+   }
+
+   /**
+    * @return the lock of the given git directory, the same for every path of it
+    */
+   public static ReadWriteLock get(File gitDir) throws IOException
+   {
+      int hash = gitDir.getCanonicalFile().hashCode();
+      // mixes the high bits in, like HashMap does
+      hash ^= (hash >>> 16);
+      return locks[hash & (STRIPES - 1)];
+   }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.lib.RepositoryCache;
+import org.jboss.forge.jgit.lib.RepositoryCache.FileKey;
+import org.jboss.forge.jgit.util.FS;
+
+/**
+ * Repositories shared by all the projects opened in this JVM, one instance per git directory.
+ *
+ * The repositories are opened through {@link RepositoryCache}. A repository is closed, releasing its pack files and
+ * their windows, once it has not been used for {@link #IDLE_TIMEOUT_MILLIS} or when more than {@link #MAX_OPEN}
+ * repositories are open, the least recently used first. Repositories acquired by a running command are never closed.
+ */
+public class RepositoryPool
+{
+   /**
+    * How many repositories may stay open at once.
+    */
+   public static final int MAX_OPEN = 8;
+   /**
+    * How long an unused repository stays open.
+    */
+   public static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+   /** least recently used first */
+   private static final Map<FileKey, Entry> repositories = new LinkedHashMap<FileKey, Entry>(16, 0.75f, true);
+   private static ScheduledExecutorService sweeper = null;
+
+   private RepositoryPool()
+   {
+   }
+
+   /**
+    * @return the repository of the given git directory, opened if it is not open yet. It may be closed once it is
+    *         idle, so it should not be kept for longer than an operation.
+    */
+   public static synchronized Repository get(File gitDir) throws IOException
+   {
+      Entry entry = open(gitDir);
+      evict(entry, System.currentTimeMillis());
+      return entry.repository;
+   }
+
+   /**
+    * Opens the repository of the given git directory and keeps it open until the matching {@link #release(Repository)}.
+    */
+   public static synchronized Repository acquire(File gitDir) throws IOException
+   {
+      Entry entry = open(gitDir);
+      entry.references++;
+      return entry.repository;
+   }
+
+   /**
+    * Releases a repository acquired by {@link #acquire(File)}.
+    */
+   public static synchronized void release(Repository repository)
+   {
+      Entry entry = repositories.get(FileKey.exact(repository.getDirectory(), repository.getFS()));
+      if (entry == null || entry.repository != repository || entry.references == 0)
+         return;
+
+      entry.references--;
+      entry.lastUsed = System.currentTimeMillis();
+      evict(null, entry.lastUsed);
+   }
+
+   /**
+    * Closes all the repositories which are not acquired.
+    */
+   public static synchronized void clear()
+   {
+      List<Entry> closed = new ArrayList<Entry>();
+      for (Iterator<Entry> it = repositories.values().iterator(); it.hasNext();)
+      {
+         Entry entry = it.next();
+         if (entry.references == 0)
+         {
+            closed.add(entry);
+            it.remove();
+         }
+      }
+      close(closed);
+   }
+
+   /**
+    * @return number of the open repositories
+    */
+   public static synchronized int size()
+   {
+      return repositories.size();
+   }
+
+   /**
+    * Closes the repositories which are idle at the given time, as the sweep does in the background.
+    */
+   static synchronized void sweep(long now)
+   {
+      evict(null, now);
+   }
+
+   private static Entry open(File gitDir) throws IOException
+   {
+      FileKey key = FileKey.exact(gitDir.getCanonicalFile(), FS.DETECTED);
+      Entry entry = repositories.get(key);
+      if (entry == null)
+      {
+         // the cache counts one use for itself and one for the pool
+         entry = new Entry(RepositoryCache.open(key));
+         repositories.put(key, entry);
+         scheduleSweep();
+      }
+      entry.lastUsed = System.currentTimeMillis();
+      return entry;
+   }
+
+   /**
+    * @param kept entry which stays open in any case, may be null
+    * @param now current time
+    */
+   private static void evict(Entry kept, long now)
+   {
+      long idleSince = now - IDLE_TIMEOUT_MILLIS;
+      int excess = repositories.size() - MAX_OPEN;
+      List<Entry> closed = new ArrayList<Entry>();
+
+      for (Iterator<Entry> it = repositories.values().iterator(); it.hasNext();)
+      {
+         Entry entry = it.next();
+         if (entry.references > 0 || entry == kept)
+            continue;
+
+         if (excess > 0 || entry.lastUsed < idleSince)
+         {
+            closed.add(entry);
+            it.remove();
+            excess--;
+         }
+      }
+      close(closed);
+   }
+
+   private static void close(List<Entry> entries)
+   {
+      for (Entry entry : entries)
+      {
+         RepositoryCache.close(entry.repository);
+         entry.repository.close();
+      }
+   }
+
+   /**
+    * Evicts idle repositories even if the pool is not used anymore, e.g. while the shell waits for input.
+    */
+   private static void scheduleSweep()
+   {
+      if (sweeper != null)
+         return;
+
+      sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         @Override
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "forge-undo-repository-pool");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      sweeper.scheduleWithFixedDelay(new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            sweep(System.currentTimeMillis());
+         }
+      }, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+   }
+
+   private static class Entry
+   {
+      private final Repository repository;
+      private int references = 0;
+      private long lastUsed;
+
+      Entry(Repository repository)
+      {
+         this.repository = repository;
+      }
+   }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Background writer of history snapshots for a single repository.
+ *
+ * The shell thread only queues a marker for every finished command. A single worker thread per repository picks the
+ * markers up and stores one snapshot for every burst of commands, once the shell has been quiet for
+ * {@link #QUIET_PERIOD_MILLIS}. While the worker reads the working tree it holds the gate of the repository which
+ * every command in that repository has to pass before it starts, so a snapshot never contains half of the changes of
+ * a command. Commands in other repositories do not wait.
+ */
+public class SnapshotPipeline
+{
+   /**
+    * Stores a snapshot for the given commands, in the order they were executed.
+    */
+   public interface SnapshotTask
+   {
+      void capture(List<String> commandNames) throws Exception;
+   }
+
+   private static final int QUEUE_CAPACITY = 64;
+   private static final long QUIET_PERIOD_MILLIS = 150;
+   private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+   private static final Map<File, SnapshotPipeline> pipelines = new HashMap<File, SnapshotPipeline>();
+   private static final Map<File, Gate> gates = new HashMap<File, Gate>();
+   private static boolean shutdownHookInstalled = false;
+
+   private final BlockingQueue<Marker> queue = new ArrayBlockingQueue<Marker>(QUEUE_CAPACITY);
+   /** task of the facet which submitted last, only changed and used while holding the gate */
+   private SnapshotTask task;
+   private final Gate gate;
+   private final Thread worker;
+
+   private final Object progress = new Object();
+   private long submitted = 0;
+   private long completed = 0;
+   private Exception failure = null;
+   private volatile boolean flushRequested = false;
+
+   private SnapshotPipeline(File gitDir, SnapshotTask task) throws IOException
+   {
+      this.task = task;
+      this.gate = getGate(gitDir);
+      this.worker = new Thread(new Worker(), "forge-undo-snapshots [" + gitDir.getParentFile().getName() + "]");
+      this.worker.setDaemon(true);
+   }
+
+   /**
+    * Starts the pipeline of the given repository if it is not running yet. The snapshots are stored by the given task
+    * from now on, so the worker never keeps a facet of a project which was closed or replaced by another module of the
+    * same repository.
+    *
+    * @return the pipeline of the given repository
+    */
+   public static SnapshotPipeline start(File gitDir, SnapshotTask task) throws IOException
+   {
+      SnapshotPipeline pipeline = startIfAbsent(gitDir, task);
+      // outside of the class lock, the worker may need it while it holds the gate
+      pipeline.gate.lock();
+      try
+      {
+         pipeline.task = task;
+      }
+      finally
+      {
+         pipeline.gate.unlock();
+      }
+      return pipeline;
+   }
+
+   private static synchronized SnapshotPipeline startIfAbsent(File gitDir, SnapshotTask task) throws IOException
+   {
+      File key = gitDir.getCanonicalFile();
+      SnapshotPipeline pipeline = pipelines.get(key);
+      if (pipeline == null)
+      {
+         pipeline = new SnapshotPipeline(key, task);
+         pipeline.worker.start();
+         pipelines.put(key, pipeline);
+         installShutdownHook();
+      }
+      return pipeline;
+   }
+
+   /**
+    * @return the pipeline of the given repository, or null if there is none
+    */
+   public static synchronized SnapshotPipeline get(File gitDir) throws IOException
+   {
+      return pipelines.get(gitDir.getCanonicalFile());
+   }
+
+   /**
+    * Called by the shell thread right before a command runs in the given repository. Waits until a snapshot in
+    * progress is written.
+    */
+   public static void commandStarting(File gitDir) throws IOException
+   {
+      Gate gate = getGate(gitDir);
+      gate.lock();
+      try
+      {
+         gate.running++;
+      }
+      finally
+      {
+         gate.unlock();
+      }
+   }
+
+   /**
+    * Called by the shell thread right after a command in the given repository, successful or not, has finished.
+    */
+   public static void commandFinished(File gitDir) throws IOException
+   {
+      Gate gate = getGate(gitDir);
+      gate.lock();
+      try
+      {
+         if (gate.running > 0)
+            gate.running--;
+      }
+      finally
+      {
+         gate.unlock();
+      }
+   }
+
+   /**
+    * Runs the given task unless a command is executing in the given repository right now. The next command waits
+    * until the task is done.
+    *
+    * @return false if the task was not run because a command is executing
+    */
+   public static boolean runIfIdle(File gitDir, Runnable task) throws IOException
+   {
+      Gate gate = getGate(gitDir);
+      gate.lock();
+      try
+      {
+         if (gate.running > 0)
+            return false;
+
+         task.run();
+         return true;
+      }
+      finally
+      {
+         gate.unlock();
+      }
+   }
+
+   /**
+    * @return the gate of the given repository, commands of other repositories never pass it
+    */
+   private static synchronized Gate getGate(File gitDir) throws IOException
+   {
+      File key = gitDir.getCanonicalFile();
+      Gate gate = gates.get(key);
+      if (gate == null)
+      {
+         gate = new Gate();
+         gates.put(key, gate);
+      }
+      return gate;
+   }
+
+   /**
+    * Queues a snapshot for the given command. Blocks if the queue is full.
+    *
+    * @throws RuntimeException if storing an earlier snapshot failed, the snapshot of this command is queued anyway
+    */
+   public void submit(String commandName) throws InterruptedException
+   {
+      long sequence;
+      synchronized (progress)
+      {
+         sequence = ++submitted;
+      }
+      queue.put(new Marker(sequence, commandName));
+
+      rethrowFailure();
+   }
+
+   /**
+    * Waits until every snapshot submitted so far is stored on the history branch. Returns immediately when called
+    * from the worker itself.
+    *
+    * @throws RuntimeException if storing one of the snapshots failed
+    */
+   public void awaitDrained()
+   {
+      if (!awaitDrained(0))
+         throw new RuntimeException("Interrupted while waiting for pending undo snapshots");
+   }
+
+   /**
+    * @param timeoutMillis how long to wait at most, 0 to wait forever
+    * @return false if the timeout elapsed or the calling thread was interrupted
+    */
+   public boolean awaitDrained(long timeoutMillis)
+   {
+      if (Thread.currentThread() == worker)
+         return true;
+
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      try
+      {
+         synchronized (progress)
+         {
+            long target = submitted;
+            if (completed < target)
+            {
+               flushRequested = true;
+               // wake the worker up if it is waiting for the shell to become quiet
+               queue.offer(new Marker(0, null));
+
+               while (completed < target)
+               {
+                  long remaining = (timeoutMillis == 0) ? 0 : deadline - System.currentTimeMillis();
+                  if (timeoutMillis != 0 && remaining <= 0)
+                     return false;
+                  progress.wait(remaining);
+               }
+            }
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+      finally
+      {
+         flushRequested = false;
+      }
+
+      rethrowFailure();
+      return true;
+   }
+
+   private void rethrowFailure()
+   {
+      Exception e;
+      synchronized (progress)
+      {
+         e = failure;
+         failure = null;
+      }
+
+      if (e != null)
+         throw new RuntimeException("Failed to add changes onto history branch: [" + e.getMessage() + "]", e);
+   }
+
+   private void store(List<Marker> markers)
+   {
+      List<String> commandNames = new ArrayList<String>();
+      long lastSequence = 0;
+      for (Marker marker : markers)
+      {
+         if (marker.commandName != null)
+            commandNames.add(marker.commandName);
+         lastSequence = Math.max(lastSequence, marker.sequence);
+      }
+
+      Exception error = null;
+      if (!commandNames.isEmpty())
+      {
+         try
+         {
+            task.capture(commandNames);
+         }
+         catch (Exception e)
+         {
+            error = e;
+         }
+      }
+
+      synchronized (progress)
+      {
+         if (error != null)
+            failure = error;
+         completed = Math.max(completed, lastSequence);
+         progress.notifyAll();
+      }
+   }
+
+   private static void installShutdownHook()
+   {
+      if (shutdownHookInstalled)
+         return;
+
+      Runtime.getRuntime().addShutdownHook(new Thread("forge-undo-snapshots-shutdown")
+      {
+         @Override
+         public void run()
+         {
+            List<SnapshotPipeline> running;
+            synchronized (SnapshotPipeline.class)
+            {
+               running = new ArrayList<SnapshotPipeline>(pipelines.values());
+            }
+
+            for (SnapshotPipeline pipeline : running)
+            {
+               try
+               {
+                  pipeline.awaitDrained(SHUTDOWN_TIMEOUT_MILLIS);
+               }
+               catch (RuntimeException e)
+               {
+                  // nothing left to report the failure to
+               }
+            }
+         }
+      });
+      shutdownHookInstalled = true;
+   }
+
+   /**
+    * Lets either the commands of a repository or its background work run, never both.
+    */
+   private static class Gate extends ReentrantLock
+   {
+      private static final long serialVersionUID = 1L;
+
+      /** commands running right now, a script and its lines count separately */
+      private int running = 0;
+   }
+
+   private static class Marker
+   {
+      private final long sequence;
+      private final String commandName;
+
+      private Marker(long sequence, String commandName)
+      {
+         this.sequence = sequence;
+         this.commandName = commandName;
+      }
+   }
+
+   private class Worker implements Runnable
+   {
+      @Override
+      public void run()
+      {
+         List<Marker> pending = new ArrayList<Marker>();
+
+         while (true)
+         {
+            try
+            {
+               if (pending.isEmpty())
+                  pending.add(queue.take());
+
+               // coalesce the burst: keep collecting markers until the shell goes quiet
+               Marker next;
+               while (!flushRequested && (next = queue.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null)
+                  pending.add(next);
+
+               gate.lock();
+               try
+               {
+                  // a command is still writing files, its marker will follow
+                  if (gate.running > 0 && !flushRequested)
+                     continue;
+
+                  queue.drainTo(pending);
+                  store(pending);
+                  pending.clear();
+               }
+               finally
+               {
+                  gate.unlock();
+               }
+            }
+            catch (InterruptedException e)
+            {
+               return;
+            }
+         }
+      }
+   }
+}
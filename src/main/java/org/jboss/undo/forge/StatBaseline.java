@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.forge.jgit.dircache.DirCacheIterator;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.treewalk.FileTreeIterator;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.WorkingTreeIterator;
+import org.jboss.forge.jgit.treewalk.filter.PathFilter;
+import org.jboss.forge.jgit.util.RawParseUtils;
+
+/**
+ * Stat data (path, mode, size and modification time) of the files of a working tree, or of one directory of it, taken
+ * without reading any file.
+ *
+ * A baseline is taken before a command runs and compared with one taken after it, which tells the paths the command
+ * touched. The files are kept in plain arrays sorted by path, in the order git sorts them, so two baselines are
+ * compared in a single pass. Files which are ignored and not tracked are left out, ignored directories are not
+ * entered.
+ */
+public class StatBaseline
+{
+   /**
+    * Files modified this close to the time a baseline was taken may change again without a visible change of their
+    * modification time, on file systems with a coarse time stamp resolution. They are always reported as changed.
+    */
+   public static final long RACY_MILLIS = 2000;
+
+   private static final int INITIAL_CAPACITY = 256;
+
+   /** baseline of the working tree stored last, with the tree it was stored as, per git directory */
+   private static final Map<File, StatBaseline> cleanBaselines = new HashMap<File, StatBaseline>();
+
+   private final String subtree;
+   private final long time;
+   private byte[][] paths = new byte[INITIAL_CAPACITY][];
+   private int[] modes = new int[INITIAL_CAPACITY];
+   private long[] lengths = new long[INITIAL_CAPACITY];
+   private long[] lastModified = new long[INITIAL_CAPACITY];
+   private int size = 0;
+   private ObjectId cleanTree = null;
+
+   private StatBaseline(String subtree, long time)
+   {
+      this.subtree = subtree;
+      this.time = time;
+   }
+
+   /**
+    * Takes the stat data of the files of the working tree of the given repository.
+    *
+    * @param subtree directory relative to the working tree the baseline is limited to, null for the whole working tree
+    */
+   public static StatBaseline capture(Repository repository, String subtree) throws IOException
+   {
+      StatBaseline baseline = new StatBaseline(subtree, System.currentTimeMillis());
+
+      TreeWalk walk = new TreeWalk(repository);
+      try
+      {
+         int indexTree = walk.addTree(new DirCacheIterator(repository.readDirCache()));
+         int workingTree = walk.addTree(new FileTreeIterator(repository));
+         if (subtree != null)
+            walk.setFilter(PathFilter.create(subtree));
+
+         while (walk.next())
+         {
+            WorkingTreeIterator file = walk.getTree(workingTree, WorkingTreeIterator.class);
+            if (file == null) // tracked, but removed from the working tree
+               continue;
+
+            if (walk.getTree(indexTree, DirCacheIterator.class) == null && file.isEntryIgnored())
+               continue;
+
+            if (walk.isSubtree())
+               walk.enterSubtree();
+            else
+               baseline.add(walk.getRawPath(), file.getEntryRawMode(), file.getEntryLength(),
+                        file.getEntryLastModified());
+         }
+      }
+      finally
+      {
+         walk.release();
+      }
+      return baseline;
+   }
+
+   /**
+    * @return the directory the baseline is limited to, null for the whole working tree
+    */
+   public String getSubtree()
+   {
+      return subtree;
+   }
+
+   /**
+    * @return number of the files in the baseline
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * Compares this baseline with a later one of the same directory.
+    *
+    * @return the paths of the files which were added, removed or whose stat data differs, relative to the working tree
+    */
+   public Set<String> changedPaths(StatBaseline later)
+   {
+      Set<String> changed = new HashSet<String>();
+      int i = 0;
+      int j = 0;
+      while (i < size || j < later.size)
+      {
+         int cmp = (i == size) ? 1 : (j == later.size) ? -1 : compare(paths[i], later.paths[j]);
+         if (cmp < 0)
+         {
+            changed.add(RawParseUtils.decode(paths[i++]));
+         }
+         else if (cmp > 0)
+         {
+            changed.add(RawParseUtils.decode(later.paths[j++]));
+         }
+         else
+         {
+            if (modes[i] != later.modes[j] || lengths[i] != later.lengths[j]
+                     || lastModified[i] != later.lastModified[j] || isRacy(i))
+               changed.add(RawParseUtils.decode(paths[i]));
+            i++;
+            j++;
+         }
+      }
+      return changed;
+   }
+
+   /**
+    * Remembers the given baseline as the state of the working tree which was stored as the given tree.
+    */
+   public static void markClean(File gitDir, StatBaseline baseline, ObjectId snapshotTree) throws IOException
+   {
+      baseline.cleanTree = snapshotTree.copy();
+      synchronized (cleanBaselines)
+      {
+         cleanBaselines.put(gitDir.getCanonicalFile(), baseline);
+      }
+   }
+
+   /**
+    * @param historyTree tree the history branch currently points to
+    * @param subtree directory the baseline has to be limited to, null for the whole working tree
+    * @return the baseline of the working tree when it was stored as the given tree, or null if it is not known
+    */
+   public static StatBaseline getClean(File gitDir, ObjectId historyTree, String subtree) throws IOException
+   {
+      StatBaseline baseline;
+      synchronized (cleanBaselines)
+      {
+         baseline = cleanBaselines.get(gitDir.getCanonicalFile());
+      }
+
+      if (baseline == null || !historyTree.equals(baseline.cleanTree))
+         return null;
+      if (subtree == null ? baseline.subtree != null : !subtree.equals(baseline.subtree))
+         return null;
+      return baseline;
+   }
+
+   private void add(byte[] path, int mode, long length, long modified)
+   {
+      if (size == paths.length)
+      {
+         int capacity = size * 2;
+         paths = Arrays.copyOf(paths, capacity);
+         modes = Arrays.copyOf(modes, capacity);
+         lengths = Arrays.copyOf(lengths, capacity);
+         lastModified = Arrays.copyOf(lastModified, capacity);
+      }
+
+      paths[size] = path;
+      modes[size] = mode;
+      lengths[size] = length;
+      lastModified[size] = modified;
+      size++;
+   }
+
+   private boolean isRacy(int i)
+   {
+      return lastModified[i] >= time - RACY_MILLIS;
+   }
+
+   /**
+    * Compares paths byte by byte, which is the order of the files in a recursive tree walk.
+    */
+   private static int compare(byte[] a, byte[] b)
+   {
+      int length = Math.min(a.length, b.length);
+      for (int i = 0; i < length; i++)
+      {
+         int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+         if (cmp != 0)
+            return cmp;
+      }
+      return a.length - b.length;
+   }
+}
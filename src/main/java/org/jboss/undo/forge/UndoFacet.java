@@ -16,42 +16,56 @@
 
 package org.jboss.undo.forge;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.inject.Inject;
 
 import org.jboss.forge.env.Configuration;
+import org.jboss.forge.jgit.api.EditNotesCommand;
 import org.jboss.forge.jgit.api.Git;
 import org.jboss.forge.jgit.api.InitCommand;
 import org.jboss.forge.jgit.api.ResetCommand.ResetType;
 import org.jboss.forge.jgit.api.errors.CheckoutConflictException;
 import org.jboss.forge.jgit.api.errors.GitAPIException;
 import org.jboss.forge.jgit.api.errors.InvalidRefNameException;
-import org.jboss.forge.jgit.api.errors.MultipleParentsNotAllowedException;
 import org.jboss.forge.jgit.api.errors.RefAlreadyExistsException;
 import org.jboss.forge.jgit.api.errors.RefNotFoundException;
 import org.jboss.forge.jgit.errors.IncorrectObjectTypeException;
 import org.jboss.forge.jgit.errors.MissingObjectException;
+import org.jboss.forge.jgit.errors.RepositoryNotFoundException;
+import org.jboss.forge.jgit.lib.AbbreviatedObjectId;
+import org.jboss.forge.jgit.lib.Constants;
 import org.jboss.forge.jgit.lib.ObjectId;
-import org.jboss.forge.jgit.lib.ObjectLoader;
+import org.jboss.forge.jgit.lib.ObjectReader;
 import org.jboss.forge.jgit.lib.Ref;
 import org.jboss.forge.jgit.lib.Repository;
 import org.jboss.forge.jgit.lib.RepositoryBuilder;
-import org.jboss.forge.jgit.notes.Note;
 import org.jboss.forge.jgit.revwalk.RevCommit;
 import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.filter.TreeFilter;
+import org.jboss.forge.jgit.util.RawParseUtils;
 import org.jboss.forge.parser.java.util.Strings;
 import org.jboss.forge.project.facets.BaseFacet;
 import org.jboss.forge.resources.FileResource;
 import org.jboss.forge.shell.plugins.Alias;
 import org.jboss.forge.shell.plugins.Help;
+import org.jboss.undo.forge.HistoryCompactor.RetentionPolicy;
 import org.jboss.undo.forge.RepositoryCommitsMonitor.RepositoryCommitState;
+import org.jboss.undo.forge.UndoJournal.NoteState;
+import org.jboss.undo.forge.UndoStats.Phase;
 
 /**
  * @author <a href="mailto:jevgeni.zelenkov@gmail.com">Jevgeni Zelenkov</a>
@@ -63,19 +77,51 @@ public class UndoFacet extends BaseFacet
 {
    public static final String DEFAULT_HISTORY_BRANCH_NAME = "forge-history";
    public static final String HISTORY_BRANCH_CONFIG_KEY = "forge-undo-branch";
+   public static final String CAPTURE_MODE_CONFIG_KEY = "forge-undo-capture-mode";
+   public static final String ASYNC_CAPTURE_CONFIG_KEY = "forge-undo-async-capture";
+   public static final String WATCH_WORKING_TREE_CONFIG_KEY = "forge-undo-watch-working-tree";
+   public static final String MAX_ENTRIES_CONFIG_KEY = "forge-undo-max-entries";
+   public static final String MAX_AGE_DAYS_CONFIG_KEY = "forge-undo-max-age-days";
+   public static final String MAX_BYTES_CONFIG_KEY = "forge-undo-max-bytes";
+   public static final String SKIP_READ_ONLY_COMMANDS_CONFIG_KEY = "forge-undo-skip-read-only-commands";
+   public static final String MODULE_SCOPE_CONFIG_KEY = "forge-undo-module-scope";
+   public static final String LARGE_FILE_SIZE_CONFIG_KEY = "forge-undo-large-file-size";
+   public static final String LARGE_FILE_POLICY_CONFIG_KEY = "forge-undo-large-file-policy";
+   public static final String STAT_BASELINE_CONFIG_KEY = "forge-undo-stat-baseline";
    public static final String INITIAL_COMMIT_MSG = "repository initial commit";
    public static final String UNDO_INSTALL_COMMIT_MSG = "FORGE PLUGIN-UNDO: initial commit";
    public static final String UNDO_STORE_COMMIT_MSG_PREFIX = "history-branch: changes introduced by the ";
    public static final String DEFAULT_NOTE = "*WT";
    public static final String DELETED_COMMIT_NOTE = "*DELETED";
-   public static boolean isReady = false;
-   private int historyBranchSize = 0;
+   public static final String NOTES_REF = Constants.R_NOTES + "forge-undo";
+   private volatile boolean ready = false;
+   private File gitDir = null;
+   private ReadWriteLock historyLock = null;
    private Git gitObject = null;
-   private final RepositoryCommitsMonitor commitsMonitor = new RepositoryCommitsMonitor();
+   private NoteIndex noteIndex = null;
+   private UndoJournal journal = null;
+   private RepositoryCommitsMonitor commitsMonitor = null;
+   private RedoStack redoStack = null;
+   private CommandProfile commandProfile = null;
 
    @Inject
    Configuration config;
 
+   /**
+    * How changes introduced by a command are stored on the history branch.
+    */
+   public enum CaptureMode
+   {
+      /**
+       * stash the changes, check out the history branch, apply and commit them there, then go back.
+       */
+      STASH,
+      /**
+       * write the working tree straight into a commit on the history branch, nothing is checked out.
+       */
+      DIRECT
+   }
+
    @Override
    public boolean install()
    {
@@ -92,9 +138,9 @@ public class UndoFacet extends BaseFacet
          ensureGitRepositoryIsInitialized(git);
          commitAllToHaveCleanTree(git);
          initializeHistoryBranch(git);
-         commitsMonitor.setUndoBranchName(getUndoBranchName());
 
-         UndoFacet.isReady = true;
+         UndoStats.register();
+         this.ready = true;
          return true;
       }
       catch (Exception e)
@@ -108,19 +154,71 @@ public class UndoFacet extends BaseFacet
    {
       try
       {
-         if (gitDirExists())
-         {
-            Git git = getGitObject();
-            for (Ref branch : git.branchList().call())
-               if (Strings.areEqual(Repository.shortenRefName(branch.getName()), getUndoBranchName()))
-                  return true;
-         }
+         return historyBranchExists();
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Failed to check if UndoFacet is installed", e.getCause());
+      }
+   }
 
+   private boolean historyBranchExists() throws IOException, GitAPIException
+   {
+      if (!gitDirExists())
          return false;
+
+      for (Ref branch : getGitObject().branchList().call())
+         if (Strings.areEqual(Repository.shortenRefName(branch.getName()), getUndoBranchName()))
+            return true;
+      return false;
+   }
+
+   /**
+    * Finishes a capture, undo or redo which was interrupted while it was publishing its refs, see
+    * {@link RefTransaction}. The journal is checked against the history branch again afterwards.
+    */
+   private void recoverInterruptedOperation() throws IOException
+   {
+      HistoryLease lease = acquireHistoryLock(true);
+      try
+      {
+         if (!RefTransaction.recover(getGitObject().getRepository()))
+            return;
+
+         closeJournal();
+         getNoteIndex().invalidate();
+      }
+      finally
+      {
+         lease.release();
+      }
+   }
+
+   /**
+    * Tells whether the changes of commands are stored in this project. The first call on a project installed in an
+    * earlier session prepares the facet, once: an interrupted operation is finished and the statistics are registered.
+    *
+    * @return true once the facet was installed in this project, in this session or an earlier one
+    */
+   public synchronized boolean isReady()
+   {
+      if (ready)
+         return true;
+
+      try
+      {
+         if (!historyBranchExists())
+            return false;
+
+         // installed in an earlier session, the journal carries the history over
+         recoverInterruptedOperation();
+         UndoStats.register();
+         this.ready = true;
+         return true;
       }
       catch (Exception e)
       {
-         throw new RuntimeException("Failed to check if UndoFacet is installed", e.getCause());
+         throw new RuntimeException("Failed to prepare the UndoFacet: [" + e.getMessage() + "]", e);
       }
    }
 
@@ -128,28 +226,28 @@ public class UndoFacet extends BaseFacet
    {
       try
       {
-         List<RevCommit> storedCommits = new ArrayList<RevCommit>();
+         HistoryLease lease = lockHistory(false);
+         try
+         {
+            List<RevCommit> storedCommits = new ArrayList<RevCommit>();
 
-         Git repo = getGitObject();
-         RevWalk revWalk = new RevWalk(repo.getRepository());
+            Git repo = getGitObject();
+            RevWalk revWalk = new RevWalk(repo.getRepository());
 
-         RevCommit undoBranchHEAD = revWalk.parseCommit(getUndoBranchRef().getObjectId());
-         revWalk.markStart(undoBranchHEAD);
-         int size = historyBranchSize;
-         for (RevCommit commit = revWalk.next(); commit != null && size > 0; commit = revWalk.next(), size--)
-         {
-            Note note = repo.notesShow().setObjectId(commit).call();
-            if (note != null)
+            for (UndoJournal.Entry entry : getJournal().getEntries())
             {
-               String noteMsg = readNoteMessage(note);
-
-               if (Strings.areEqual(DELETED_COMMIT_NOTE, noteMsg))
+               if (entry.getNoteState() == NoteState.DELETED)
                   continue;
+
+               storedCommits.add(revWalk.parseCommit(entry.getCommitId()));
             }
-            storedCommits.add(commit);
-         }
 
-         return storedCommits;
+            return storedCommits;
+         }
+         finally
+         {
+            lease.release();
+         }
       }
       catch (Exception e)
       {
@@ -161,33 +259,41 @@ public class UndoFacet extends BaseFacet
    {
       try
       {
-         Map<RevCommit, String> commitsWithNotes = new LinkedHashMap<RevCommit, String>();
-
-         Git repo = getGitObject();
-         RevWalk revWalk = new RevWalk(repo.getRepository());
-
-         RevCommit undoBranchHEAD = revWalk.parseCommit(getUndoBranchRef().getObjectId());
-         revWalk.markStart(undoBranchHEAD);
-         int size = historyBranchSize;
-         for (RevCommit commit = revWalk.next(); commit != null && size > 0; commit = revWalk.next(), size--)
+         HistoryLease lease = lockHistory(false);
+         try
          {
-            Note note = repo.notesShow().setObjectId(commit).call();
+            Map<RevCommit, String> commitsWithNotes = new LinkedHashMap<RevCommit, String>();
 
-            if (note == null)
-            {
-               commitsWithNotes.put(commit, "");
-            }
-            else
+            Git repo = getGitObject();
+            NoteIndex notes = getNoteIndex();
+            RevWalk revWalk = new RevWalk(repo.getRepository());
+
+            for (UndoJournal.Entry entry : getJournal().getEntries())
             {
-               String noteMsg = readNoteMessage(note);
-               if (Strings.areEqual(DELETED_COMMIT_NOTE, noteMsg))
+               if (entry.getNoteState() == NoteState.DELETED)
                   continue;
 
-               commitsWithNotes.put(commit, noteMsg);
+               RevCommit commit = revWalk.parseCommit(entry.getCommitId());
+               if (!notes.hasNote(commit))
+               {
+                  commitsWithNotes.put(commit, "");
+               }
+               else
+               {
+                  String noteMsg = notes.getNoteMessage(commit);
+                  if (Strings.areEqual(DELETED_COMMIT_NOTE, noteMsg))
+                     continue;
+
+                  commitsWithNotes.put(commit, noteMsg);
+               }
             }
-         }
 
-         return commitsWithNotes;
+            return commitsWithNotes;
+         }
+         finally
+         {
+            lease.release();
+         }
       }
       catch (Exception e)
       {
@@ -195,47 +301,151 @@ public class UndoFacet extends BaseFacet
       }
    }
 
-   public boolean undoLastChange()
+   /**
+    * Receives the changes stored on the history branch one by one, see
+    * {@link UndoFacet#visitStoredCommits(int, int, HistoryVisitor)}.
+    */
+   public interface HistoryVisitor
    {
-      Git repo = null;
+      /**
+       * @param note note of the commit, empty if it has none
+       * @param shortMessage first paragraph of the commit message
+       */
+      void visit(ObjectId commitId, String note, String shortMessage) throws IOException;
+   }
+
+   /**
+    * Passes the changes stored on the history branch to the visitor, newest first, the undone ones left out. Only the
+    * requested entries are read, and nothing of them is kept once the visitor returns.
+    *
+    * @param skip number of the newest entries to leave out, at least 0
+    * @param limit maximal number of entries to visit, at least 1
+    */
+   public void visitStoredCommits(int skip, int limit, HistoryVisitor visitor)
+   {
+      if (skip < 0)
+         throw new IllegalArgumentException("The number of entries to skip must not be negative: " + skip);
+      if (limit < 1)
+         throw new IllegalArgumentException("The number of entries to list must be at least 1: " + limit);
 
       try
       {
-         if (historyBranchSize > 0)
+         HistoryLease lease = lockHistory(false);
+         try
          {
-            repo = getGitObject();
-            RevCommit commitWithDefaultNote = findLatestCommitWithGivenNote(DEFAULT_NOTE);
+            UndoJournal journal = getJournal();
+            NoteIndex notes = getNoteIndex();
+            ObjectReader reader = getGitObject().getRepository().newObjectReader();
 
-            if (commitWithDefaultNote != null) // commit with default note is found!
+            try
             {
-               boolean result = undoGivenCommit(commitWithDefaultNote);
-               if (!result)
-                  return result;
-
-               return true;
+               int visited = 0;
+               UndoJournal.Entry entry;
+               for (int i = 0; visited < limit && (entry = journal.getEntry(i)) != null; i++)
+               {
+                  if (entry.getNoteState() == NoteState.DELETED)
+                     continue;
+
+                  // only the notes of committed changes tell more than the journal, the name of the branch
+                  String note = DEFAULT_NOTE;
+                  if (entry.getNoteState() == NoteState.COMMITTED)
+                  {
+                     note = notes.hasNote(entry.getCommitId()) ? notes.getNoteMessage(entry.getCommitId()) : "";
+                     if (Strings.areEqual(DELETED_COMMIT_NOTE, note))
+                        continue;
+                  }
+
+                  if (skip > 0)
+                  {
+                     skip--;
+                     continue;
+                  }
+
+                  visitor.visit(entry.getCommitId(), note, readShortMessage(reader, entry.getCommitId()));
+                  visited++;
+               }
             }
-            else
-            // no commits with default note are found
+            finally
             {
-               // try to look for commits with the current branch name
-               RevCommit commitWithCurrentBranchNote = findLatestCommitWithGivenNote(repo.getRepository().getBranch());
+               reader.release();
+            }
+         }
+         finally
+         {
+            lease.release();
+         }
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to get a list of stored commits in the history branch", e);
+      }
+   }
+
+   /**
+    * Reads the first paragraph of the message of a commit without parsing the commit, the same text
+    * {@link RevCommit#getShortMessage()} returns.
+    */
+   private static String readShortMessage(ObjectReader reader, ObjectId commitId) throws IOException
+   {
+      byte[] raw = reader.open(commitId, Constants.OBJ_COMMIT).getCachedBytes();
+      int start = RawParseUtils.commitMessage(raw, 0);
+      if (start < 0)
+         return "";
+
+      int end = RawParseUtils.endOfParagraph(raw, start);
+      return RawParseUtils.decode(RawParseUtils.parseEncoding(raw), raw, start, end).replace('\n', ' ');
+   }
+
+   public boolean undoLastChange()
+   {
+      Git repo = null;
 
-               if (commitWithCurrentBranchNote != null) // commit with the current branch name is found!
+      try
+      {
+         HistoryLease lease = lockHistory(true);
+         try
+         {
+            if (getHistoryBranchSize() > 0)
+            {
+               repo = getGitObject();
+               RevCommit commitWithDefaultNote = findLatestCommitWithGivenNote(DEFAULT_NOTE);
+
+               if (commitWithDefaultNote != null) // commit with default note is found!
                {
-                  boolean result = undoGivenCommit(commitWithCurrentBranchNote);
+                  boolean result = undoGivenCommit(commitWithDefaultNote);
                   if (!result)
                      return result;
 
                   return true;
                }
                else
-               // no commits are found for restoring
+               // no commits with default note are found
                {
-                  return false;
+                  // try to look for commits with the current branch name
+                  RevCommit commitWithCurrentBranchNote = findLatestCommitWithGivenNote(repo.getRepository()
+                           .getBranch());
+
+                  if (commitWithCurrentBranchNote != null) // commit with the current branch name is found!
+                  {
+                     boolean result = undoGivenCommit(commitWithCurrentBranchNote);
+                     if (!result)
+                        return result;
+
+                     return true;
+                  }
+                  else
+                  // no commits are found for restoring
+                  {
+                     return false;
+                  }
                }
             }
+            return false;
+         }
+         finally
+         {
+            lease.release();
          }
-         return false;
       }
       catch (Exception e)
       {
@@ -243,130 +453,685 @@ public class UndoFacet extends BaseFacet
       }
    }
 
-   private boolean undoGivenCommit(RevCommit commitToRevert) throws IOException, GitAPIException
+   /**
+    * Reverts the given number of the most recent changes as one combined change.
+    *
+    * @param count number of the changes to revert, at least 1
+    * @return false if there was nothing to revert
+    */
+   public boolean undoLastChanges(int count)
    {
-      Git repo = getGitObject();
-      String previousBranch = "";
+      if (count < 1)
+         throw new IllegalArgumentException("The number of changes to revert must be at least 1: " + count);
 
       try
       {
-         previousBranch = repo.getRepository().getBranch();
+         HistoryLease lease = lockHistory(true);
+         try
+         {
+            List<RevCommit> commitsToRevert = findCommitsToUndo(count, null);
+            if (commitsToRevert.isEmpty())
+               return false;
 
-         if (!repo.status().call().isClean())
+            return undoGivenCommits(commitsToRevert);
+         }
+         finally
          {
-            repo.add().addFilepattern(".").call();
-            repo.commit().setMessage("FORGE PLUGIN-UNDO: preparing to undo a change").call();
+            lease.release();
          }
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Failed to undo last changes [" + e.getMessage() + "]", e.getCause());
+      }
+   }
 
-         repo.checkout().setName(getUndoBranchName()).call();
-         RevCommit reverted = repo.revert().include(commitToRevert).call();
-         if (reverted == null)
-            throw new RuntimeException("failed to revert a commit on a history branch");
+   /**
+    * Reverts all changes stored after the given one, and the given one itself, as one combined change.
+    *
+    * @param commitId (abbreviated) id of a commit on the history branch, as shown by {@code undo list}
+    * @return false if the commit is not among the changes which can be reverted
+    * @throws IllegalArgumentException if no object or more than one object of the repository has the given id
+    */
+   public boolean undoChangesUpTo(String commitId)
+   {
+      try
+      {
+         HistoryLease lease = lockHistory(true);
+         try
+         {
+            List<RevCommit> commitsToRevert = findCommitsToUndo(Integer.MAX_VALUE, resolveChangeId(commitId));
+            if (commitsToRevert.isEmpty())
+               return false;
 
-         repo.checkout().setName(previousBranch).call();
-         repo.cherryPick().include(reverted).call();
+            return undoGivenCommits(commitsToRevert);
+         }
+         finally
+         {
+            lease.release();
+         }
+      }
+      catch (IllegalArgumentException e)
+      {
+         throw e;
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Failed to undo changes up to " + commitId + " [" + e.getMessage() + "]",
+                  e.getCause());
+      }
+   }
 
-         repo.checkout().setName(getUndoBranchName()).call();
-         repo.reset().setMode(ResetType.HARD).setRef("HEAD~1").call();
-         repo.checkout().setName(previousBranch).call();
+   /**
+    * @param commitId (abbreviated) id of a change as shown by {@code undo list}, or null for the change
+    *           {@link #undoLastChange()} would revert
+    * @return the commit storing the change, or null if there is no such change
+    * @throws IllegalArgumentException if no object or more than one object of the repository has the given id
+    */
+   public RevCommit findStoredCommit(String commitId)
+   {
+      try
+      {
+         HistoryLease lease = lockHistory(false);
+         try
+         {
+            return findStoredCommitLocked(commitId);
+         }
+         finally
+         {
+            lease.release();
+         }
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to find the change " + commitId + " [" + e.getMessage() + "]", e);
+      }
+   }
 
-         markDeleted(commitToRevert);
+   /**
+    * Writes the patch of a stored change, see {@link HistoryDiff#format(RevCommit, OutputStream)}. The history is
+    * locked until the whole patch is written.
+    *
+    * @param commitId see {@link #findStoredCommit(String)}
+    * @return false if there is no such change or it cannot be shown, e.g. a merge
+    */
+   public boolean formatStoredChange(String commitId, OutputStream out)
+   {
+      try
+      {
+         HistoryLease lease = lockHistory(false);
+         try
+         {
+            RevCommit commit = findStoredCommitLocked(commitId);
+            if (commit == null || commit.getParentCount() != 1)
+               return false;
+
+            new HistoryDiff(getGitObject().getRepository()).format(commit, out);
+            return true;
+         }
+         finally
+         {
+            lease.release();
+         }
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to show the change " + commitId + " [" + e.getMessage() + "]", e);
       }
-      catch (MultipleParentsNotAllowedException e)
+   }
+
+   /**
+    * Counts the changed lines of every file of a stored change, see {@link HistoryDiff#stat(RevCommit)}, while the
+    * history is locked.
+    *
+    * @param commitId see {@link #findStoredCommit(String)}
+    * @return the changed files, or null if there is no such change or it cannot be shown, e.g. a merge
+    */
+   public List<HistoryDiff.FileStat> statStoredChange(String commitId)
+   {
+      try
       {
-         // revert of a merged commit failed. Roll back the changes introduced so far.
+         HistoryLease lease = lockHistory(false);
          try
          {
-            repo.checkout().setName(previousBranch).call();
+            RevCommit commit = findStoredCommitLocked(commitId);
+            if (commit == null || commit.getParentCount() != 1)
+               return null;
+
+            return new HistoryDiff(getGitObject().getRepository()).stat(commit);
          }
-         catch (Exception e2)
+         finally
          {
-            throw new RuntimeException(
-                     "Failed during revert command (MultipleParentsNotAllowed). Then failed trying to rollback changes ["
-                              + e.getMessage() + "]", e2.getCause());
+            lease.release();
          }
-         return false;
       }
-      return true;
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to show the change " + commitId + " [" + e.getMessage() + "]", e);
+      }
    }
 
-   private void markDeleted(RevCommit commitToRevert) throws IOException, GitAPIException
+   /**
+    * The history has to be locked by the caller.
+    */
+   private RevCommit findStoredCommitLocked(String commitId) throws IOException
    {
-      Git repo = getGitObject();
-      repo.notesRemove().setObjectId(commitToRevert).call();
-      repo.notesAdd().setObjectId(commitToRevert).setMessage(DELETED_COMMIT_NOTE).call();
+      if (commitId == null)
+      {
+         List<RevCommit> next = findCommitsToUndo(1, null);
+         return next.isEmpty() ? null : next.get(0);
+      }
+
+      ObjectId storedId = resolveChangeId(commitId);
+      RevWalk revWalk = new RevWalk(getGitObject().getRepository());
+      try
+      {
+         for (UndoJournal.Entry entry : getJournal().newestLiveFirst())
+            if (entry.getNoteState() != NoteState.DELETED && entry.getCommitId().equals(storedId))
+               return revWalk.parseCommit(entry.getCommitId());
+         return null;
+      }
+      finally
+      {
+         revWalk.release();
+      }
    }
 
-   private RevCommit findLatestCommitWithGivenNote(String msg) throws MissingObjectException,
-            IncorrectObjectTypeException,
-            IOException, RefAlreadyExistsException, RefNotFoundException, InvalidRefNameException,
-            CheckoutConflictException, GitAPIException
+   /**
+    * Collects the commits {@link #undoLastChange()} would revert one after another, newest first.
+    *
+    * @param count how many commits to collect at most
+    * @param upToCommitId collect everything up to and including this commit, or null
+    * @return the commits, empty if the given commit was not found
+    */
+   private List<RevCommit> findCommitsToUndo(int count, ObjectId upToCommitId) throws IOException
    {
-      Git repo = getGitObject();
-      int size = historyBranchSize;
-      RevCommit commitWithGivenNote = null;
+      Repository repository = getGitObject().getRepository();
+      String currentBranch = repository.getBranch();
+      NoteIndex notes = getNoteIndex();
+      RevWalk revWalk = new RevWalk(repository);
+      List<RevCommit> commits = new ArrayList<RevCommit>();
+
+      // uncommitted changes are always newer than the committed ones
+      for (UndoJournal.Entry entry : getJournal().newestLiveFirst())
+      {
+         if (commits.size() == count)
+            break;
 
-      RevWalk revWalk = new RevWalk(repo.getRepository());
+         if (entry.getNoteState() == NoteState.DELETED)
+            continue;
 
-      RevCommit undoBranchHEAD = revWalk.parseCommit(getUndoBranchRef().getObjectId());
-      revWalk.markStart(undoBranchHEAD);
+         if (entry.getNoteState() == NoteState.COMMITTED
+                  && !Strings.areEqual(currentBranch, notes.getNoteMessage(entry.getCommitId())))
+            continue;
+
+         commits.add(revWalk.parseCommit(entry.getCommitId()));
+         if (entry.getCommitId().equals(upToCommitId))
+            return commits;
+      }
+
+      if (upToCommitId != null)
+         return new ArrayList<RevCommit>();
+      return commits;
+   }
+
+   /**
+    * Resolves the id of a change the way git resolves an abbreviated id, a prefix matching several objects of the
+    * repository is rejected rather than matched with the first stored change it fits.
+    *
+    * @param commitId full or abbreviated id, as shown by {@code undo list}
+    * @throws IllegalArgumentException if the id is malformed, unknown or ambiguous
+    */
+   private ObjectId resolveChangeId(String commitId) throws IOException
+   {
+      if (!AbbreviatedObjectId.isId(commitId))
+         throw new IllegalArgumentException("Not an id of a change: " + commitId);
 
-      for (RevCommit commit = revWalk.next(); commit != null && size > 0; commit = revWalk.next(), size--)
+      ObjectReader reader = getGitObject().getRepository().newObjectReader();
+      try
       {
-         Note note = repo.notesShow().setObjectId(commit).call();
-         if (note == null)
-            continue;
+         Collection<ObjectId> matches = reader.resolve(AbbreviatedObjectId.fromString(commitId));
+         if (matches.isEmpty())
+            throw new IllegalArgumentException("Unknown change: " + commitId);
+         if (matches.size() > 1)
+            throw new IllegalArgumentException("Ambiguous id of a change, use more digits: " + commitId);
+         return matches.iterator().next();
+      }
+      finally
+      {
+         reader.release();
+      }
+   }
 
-         String noteMsg = readNoteMessage(note);
+   private boolean undoGivenCommit(RevCommit commitToRevert) throws IOException, GitAPIException
+   {
+      return undoGivenCommits(Arrays.asList(commitToRevert));
+   }
 
-         if (Strings.areEqual(DELETED_COMMIT_NOTE, noteMsg))
-            continue;
+   /**
+    * Reverts the given commits, newest first, as one change. The reverse changes are combined in memory and written
+    * to the working tree at once, nothing is touched if any of them conflicts.
+    */
+   private boolean undoGivenCommits(List<RevCommit> commitsToRevert) throws IOException, GitAPIException
+   {
+      // revert of a merged commit is not supported
+      for (RevCommit commitToRevert : commitsToRevert)
+         if (commitToRevert.getParentCount() != 1)
+            return false;
+
+      long undoStart = System.nanoTime();
+      Repository repository = getGitObject().getRepository();
+      // the working tree is taken as it is, large files included, the index is made to match the result
+      HistorySnapshotWriter writer = new HistorySnapshotWriter(repository);
+      HistoryChangeReverter reverter = new HistoryChangeReverter(repository, getLargeFilePolicy());
+      RevWalk revWalk = new RevWalk(repository);
+
+      try
+      {
+         for (RevCommit commitToRevert : commitsToRevert)
+            revWalk.parseHeaders(commitToRevert.getParent(0));
+
+         long start = System.nanoTime();
+         ObjectId historyTree = repository.resolve(Constants.R_HEADS + getUndoBranchName() + "^{tree}");
+         Set<String> dirtyPaths = getDirtyPaths(historyTree);
+         ObjectId workingTree = (dirtyPaths != null) ? writer.writeWorkingTree(historyTree, dirtyPaths) : writer
+                  .writeWorkingTree();
+         UndoStats.record(Phase.SNAPSHOT, start);
+
+         start = System.nanoTime();
+         ObjectId reverted = reverter.revert(workingTree, commitsToRevert);
+         UndoStats.record(Phase.MERGE, start);
+         if (reverted == null)
+            throw new RuntimeException("failed to revert a commit on a history branch");
+
+         // every object is written first, the working tree and all the refs change at the end
+         String revertMsg = prepareRevertCommitMsg(commitsToRevert);
+         RefTransaction transaction = new RefTransaction(repository, "forge-undo: " + revertMsg);
+         transaction.checkout(workingTree, reverted);
 
-         if (Strings.areEqual(msg, noteMsg))
+         // the current branch ends up with the same commits as if the revert had been cherry-picked onto it
+         start = System.nanoTime();
+         RevCommit head = revWalk.parseCommit(repository.resolve(Constants.HEAD));
+         if (!workingTree.equals(head.getTree()))
+            writer.commit(Constants.HEAD, workingTree, "FORGE PLUGIN-UNDO: preparing to undo a change", transaction);
+         writer.commit(Constants.HEAD, reverted, revertMsg, transaction);
+
+         RevCommit revertOnHistoryBranch = null;
+         if (storesSnapshots())
          {
-            commitWithGivenNote = commit;
-            break;
+            // snapshots are compared with the tip of the history branch, so the revert has to stay there
+            revertOnHistoryBranch = writer.commit(Constants.R_HEADS + getUndoBranchName(), reverted, revertMsg,
+                     transaction);
          }
+         UndoStats.record(Phase.COMMIT, start);
+
+         NoteIndex notes = getNoteIndex();
+         List<String> notesBeforeUndo = new ArrayList<String>();
+         Map<RevCommit, String> deleted = new LinkedHashMap<RevCommit, String>();
+         for (RevCommit commitToRevert : commitsToRevert)
+         {
+            notesBeforeUndo.add(notes.getNoteMessage(commitToRevert));
+            deleted.put(commitToRevert, DELETED_COMMIT_NOTE);
+         }
+         if (revertOnHistoryBranch != null)
+            deleted.put(revertOnHistoryBranch, DELETED_COMMIT_NOTE);
+
+         start = System.nanoTime();
+         notes.setNotes(deleted, transaction);
+         UndoStats.record(Phase.NOTES, start);
+         getRedoStack().push(commitsToRevert, notesBeforeUndo, reverted, transaction);
+
+         start = System.nanoTime();
+         transaction.commit();
+         UndoStats.record(Phase.CHECKOUT, start);
+         if (revertOnHistoryBranch != null)
+         {
+            markWorkingTreeClean(workingTree, reverted, dirtyPaths);
+            recordHistoryEntry(revertOnHistoryBranch, "undo");
+         }
+         recordNoteStates(deleted);
       }
+      finally
+      {
+         revWalk.release();
+      }
+      UndoStats.record(Phase.UNDO, undoStart);
+      return true;
+   }
+
+   /**
+    * Tells which paths of the working tree have to be looked at to write its tree. Only snapshots of the history
+    * branch which left no large file out are a base of the working tree.
+    *
+    * @param historyTree tree the history branch points to, or null if it does not exist
+    * @return the paths changed since the working tree was stored as the given tree, or null if they are not known and
+    *         the whole working tree has to be scanned
+    */
+   private Set<String> getDirtyPaths(ObjectId historyTree) throws IOException
+   {
+      if (historyTree == null || !storesSnapshots() || getLargeFilePolicy().skipsLargeFiles())
+         return null;
 
-      return commitWithGivenNote;
+      WorkingTreeWatcher watcher = getWorkingTreeWatcher();
+      Set<String> dirtyPaths = (watcher != null) ? watcher.getDirtyPaths(historyTree) : null;
+      if (dirtyPaths == null && usesStatBaseline())
+      {
+         Repository repository = getGitObject().getRepository();
+         StatBaseline clean = StatBaseline.getClean(repository.getDirectory(), historyTree, null);
+         if (clean != null)
+            dirtyPaths = clean.changedPaths(StatBaseline.capture(repository, null));
+      }
+      return dirtyPaths;
    }
 
-   public boolean reset()
+   /**
+    * Tells the watcher and the stat baseline that the working tree was written as the given tree by an undo or a
+    * redo, so the next snapshot, undo or redo does not have to scan the whole working tree either.
+    *
+    * @param dirtyPaths the paths looked at to write the tree before the change, or null if the whole working tree was
+    *           scanned
+    */
+   private void markWorkingTreeClean(ObjectId before, ObjectId after, Set<String> dirtyPaths) throws IOException
    {
-      boolean result = false;
+      Repository repository = getGitObject().getRepository();
+      WorkingTreeWatcher watcher = getWorkingTreeWatcher();
+      if (watcher != null)
+      {
+         Set<String> storedPaths = null;
+         if (dirtyPaths != null)
+         {
+            storedPaths = new HashSet<String>(dirtyPaths);
+            storedPaths.addAll(getChangedPaths(repository, before, after));
+         }
+         watcher.markClean(after, storedPaths);
+      }
+      else if (usesStatBaseline())
+      {
+         StatBaseline.markClean(repository.getDirectory(), StatBaseline.capture(repository, null), after);
+      }
+   }
 
-      if (historyBranchSize == 0)
-         return false;
+   private static Set<String> getChangedPaths(Repository repository, ObjectId before, ObjectId after)
+            throws IOException
+   {
+      Set<String> paths = new HashSet<String>();
+      TreeWalk walk = new TreeWalk(repository);
+      try
+      {
+         walk.addTree(before);
+         walk.addTree(after);
+         walk.setRecursive(true);
+         walk.setFilter(TreeFilter.ANY_DIFF);
+         while (walk.next())
+            paths.add(walk.getPathString());
+      }
+      finally
+      {
+         walk.release();
+      }
+      return paths;
+   }
 
+   /**
+    * Applies the changes reverted by the most recent undo again. The changes are merged in memory onto the current
+    * working tree, nothing is touched if any of them conflicts. The undone changes are forgotten once the working tree
+    * no longer matches the one the undo left behind, e.g. after a manual edit or a commit of changes.
+    *
+    * @return false if there is nothing to redo
+    */
+   public boolean redoLastUndo()
+   {
       try
       {
-         Git repo = getGitObject();
+         HistoryLease lease = lockHistory(true);
+         try
+         {
+            long redoStart = System.nanoTime();
+            RedoStack redoStack = getRedoStack();
+            RedoStack.Frame frame = redoStack.peek();
+            if (frame == null)
+               return false;
+
+            Repository repository = getGitObject().getRepository();
+            HistorySnapshotWriter writer = new HistorySnapshotWriter(repository);
+            HistoryChangeReverter reverter = new HistoryChangeReverter(repository, getLargeFilePolicy());
+            RevWalk revWalk = new RevWalk(repository);
+
+            try
+            {
+               List<RevCommit> commitsToReapply = frame.getCommits();
+               for (RevCommit commit : commitsToReapply)
+                  revWalk.parseHeaders(commit.getParent(0));
+
+               long start = System.nanoTime();
+               ObjectId historyTree = repository.resolve(Constants.R_HEADS + getUndoBranchName() + "^{tree}");
+               Set<String> dirtyPaths = getDirtyPaths(historyTree);
+               ObjectId workingTree = (dirtyPaths != null) ? writer.writeWorkingTree(historyTree, dirtyPaths)
+                        : writer.writeWorkingTree();
+               UndoStats.record(Phase.SNAPSHOT, start);
+               if (!frame.isBasedOn(workingTree))
+               {
+                  redoStack.clear();
+                  return false;
+               }
 
-         if (!repo.status().call().isClean())
-            return false;
+               start = System.nanoTime();
+               ObjectId reapplied = reverter.reapply(workingTree, commitsToReapply);
+               UndoStats.record(Phase.MERGE, start);
+               if (reapplied == null)
+                  throw new RuntimeException("failed to re-apply a commit of a history branch");
+
+               String redoMsg = prepareRedoCommitMsg(commitsToReapply);
+               RefTransaction transaction = new RefTransaction(repository, "forge-undo: " + redoMsg);
+               transaction.checkout(workingTree, reapplied);
+
+               start = System.nanoTime();
+               RevCommit head = revWalk.parseCommit(repository.resolve(Constants.HEAD));
+               if (!workingTree.equals(head.getTree()))
+                  writer.commit(Constants.HEAD, workingTree, "FORGE PLUGIN-UNDO: preparing to redo a change",
+                           transaction);
+               writer.commit(Constants.HEAD, reapplied, redoMsg, transaction);
+
+               RevCommit redoOnHistoryBranch = null;
+               if (storesSnapshots())
+                  redoOnHistoryBranch = writer.commit(Constants.R_HEADS + getUndoBranchName(), reapplied, redoMsg,
+                           transaction);
+               UndoStats.record(Phase.COMMIT, start);
+
+               Map<RevCommit, String> restoredNotes = new LinkedHashMap<RevCommit, String>();
+               for (int i = 0; i < commitsToReapply.size(); i++)
+                  restoredNotes.put(commitsToReapply.get(i), frame.getNotes().get(i));
+               if (redoOnHistoryBranch != null)
+                  restoredNotes.put(redoOnHistoryBranch, DELETED_COMMIT_NOTE);
+
+               start = System.nanoTime();
+               getNoteIndex().setNotes(restoredNotes, transaction);
+               UndoStats.record(Phase.NOTES, start);
+               redoStack.pop(transaction);
+
+               start = System.nanoTime();
+               transaction.commit();
+               UndoStats.record(Phase.CHECKOUT, start);
+               if (redoOnHistoryBranch != null)
+               {
+                  markWorkingTreeClean(workingTree, reapplied, dirtyPaths);
+                  recordHistoryEntry(redoOnHistoryBranch, "redo");
+               }
+               recordNoteStates(restoredNotes);
+            }
+            finally
+            {
+               revWalk.release();
+            }
+            UndoStats.record(Phase.REDO, redoStart);
+            return true;
+         }
+         finally
+         {
+            lease.release();
+         }
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Failed to redo last undo [" + e.getMessage() + "]", e.getCause());
+      }
+   }
 
-         String previousBranch = repo.getRepository().getBranch();
-         repo.checkout().setName(getUndoBranchName()).call();
-         ObjectId startOfHistoryBranch = repo.getRepository().resolve("HEAD~" + historyBranchSize);
-         repo.reset().setMode(ResetType.HARD).setRef(startOfHistoryBranch.getName()).call();
-         repo.checkout().setName(previousBranch).call();
+   /**
+    * Forgets the undone changes once the given transaction is published, they cannot be applied again once a new
+    * change is stored on top of them.
+    */
+   public void clearRedoStack(RefTransaction transaction) throws IOException
+   {
+      getRedoStack().clear(transaction);
+   }
 
-         commitsMonitor.reset();
-         historyBranchSize = 0;
-         result = true;
+   private String prepareRevertCommitMsg(List<RevCommit> commitsToRevert)
+   {
+      if (commitsToRevert.size() == 1)
+      {
+         RevCommit commit = commitsToRevert.get(0);
+         return "Revert \"" + commit.getShortMessage() + "\"\n\n" + "This reverts commit " + commit.getId().getName()
+                  + ".\n";
+      }
+
+      StringBuilder msg = new StringBuilder("Revert " + commitsToRevert.size() + " changes\n\n");
+      msg.append("This reverts commits:\n");
+      for (RevCommit commit : commitsToRevert)
+         msg.append(commit.getId().getName()).append(' ').append(commit.getShortMessage()).append('\n');
+      return msg.toString();
+   }
+
+   private String prepareRedoCommitMsg(List<RevCommit> commitsToReapply)
+   {
+      if (commitsToReapply.size() == 1)
+      {
+         RevCommit commit = commitsToReapply.get(0);
+         return "Redo \"" + commit.getShortMessage() + "\"\n\n" + "This re-applies commit " + commit.getId().getName()
+                  + ".\n";
+      }
+
+      StringBuilder msg = new StringBuilder("Redo " + commitsToReapply.size() + " changes\n\n");
+      msg.append("This re-applies commits:\n");
+      for (RevCommit commit : commitsToReapply)
+         msg.append(commit.getId().getName()).append(' ').append(commit.getShortMessage()).append('\n');
+      return msg.toString();
+   }
+
+   /**
+    * Sets the notes of all given commits in a single commit on the notes ref.
+    */
+   private void writeNotes(Map<RevCommit, String> notes) throws IOException
+   {
+      long start = System.nanoTime();
+      getNoteIndex().setNotes(notes);
+      UndoStats.record(Phase.NOTES, start);
+
+      recordNoteStates(notes);
+   }
+
+   /**
+    * Keeps the journal in line with notes which were changed.
+    */
+   private void recordNoteStates(Map<RevCommit, String> notes) throws IOException
+   {
+      for (Map.Entry<RevCommit, String> note : notes.entrySet())
+         getJournal().setNoteState(note.getKey(), UndoJournal.toNoteState(note.getValue()));
+   }
+
+   private RevCommit findLatestCommitWithGivenNote(String msg) throws MissingObjectException,
+            IncorrectObjectTypeException, IOException
+   {
+      Git repo = getGitObject();
+      UndoJournal journal = getJournal();
+      RevWalk revWalk = new RevWalk(repo.getRepository());
+
+      // uncommitted changes are always the newest ones, no need to look further
+      UndoJournal.Entry newest = journal.getNewestLiveEntry();
+      if (newest == null)
+         return null;
+      if (Strings.areEqual(DEFAULT_NOTE, msg))
+         return (newest.getNoteState() == NoteState.WORKING_TREE) ? revWalk.parseCommit(newest.getCommitId()) : null;
+
+      NoteIndex notes = getNoteIndex();
+      for (UndoJournal.Entry entry : journal.newestLiveFirst())
+      {
+         if (entry.getNoteState() != NoteState.COMMITTED)
+            continue;
+
+         if (Strings.areEqual(msg, notes.getNoteMessage(entry.getCommitId())))
+            return revWalk.parseCommit(entry.getCommitId());
+      }
+
+      return null;
+   }
+
+   public boolean reset()
+   {
+      try
+      {
+         HistoryLease lease = lockHistory(true);
+         try
+         {
+            return resetHistory();
+         }
+         finally
+         {
+            lease.release();
+         }
       }
       catch (Exception e)
       {
          throw new RuntimeException("Failed to reset history branch", e.getCause());
       }
+   }
+
+   /**
+    * Drops the stored changes, the caller holds the write lock of the history.
+    *
+    * @return false if there was nothing to drop or the working tree is not clean
+    */
+   private boolean resetHistory() throws IOException, GitAPIException
+   {
+      int historyBranchSize = getHistoryBranchSize();
+      if (historyBranchSize == 0)
+         return false;
+
+      long resetStart = System.nanoTime();
+      Git repo = getGitObject();
 
-      return result;
+      long phaseStart = System.nanoTime();
+      boolean clean = repo.status().call().isClean();
+      UndoStats.record(Phase.STATUS_SCAN, phaseStart);
+      if (!clean)
+         return false;
+
+      phaseStart = System.nanoTime();
+      String previousBranch = repo.getRepository().getBranch();
+      repo.checkout().setName(getUndoBranchName()).call();
+      ObjectId startOfHistoryBranch = repo.getRepository().resolve("HEAD~" + historyBranchSize);
+      RevWalk revWalk = new RevWalk(repo.getRepository());
+      RevCommit start = revWalk.parseCommit(startOfHistoryBranch);
+      // the entries squashed by a compaction go as well
+      if (Strings.areEqual(HistoryCompactor.BASE_COMMIT_MSG, start.getFullMessage()))
+         startOfHistoryBranch = start.getParent(0);
+      revWalk.release();
+      repo.reset().setMode(ResetType.HARD).setRef(startOfHistoryBranch.getName()).call();
+      repo.checkout().setName(previousBranch).call();
+      UndoStats.record(Phase.CHECKOUT, phaseStart);
+
+      getCommitsMonitor().reset();
+      getJournal().clear();
+      getRedoStack().clear();
+      UndoStats.record(Phase.RESET, resetStart);
+      return true;
    }
 
    public RepositoryCommitState checkAndUpdateRepositoryForNewCommits() throws IOException, GitAPIException
    {
-      RepositoryCommitState state = commitsMonitor.updateCommitCounters(getGitObject());
+      long start = System.nanoTime();
+      RepositoryCommitState state = getCommitsMonitor().updateCommitCounters(getGitObject());
+      UndoStats.record(Phase.COMMIT_MONITOR, start);
 
       switch (state)
       {
@@ -377,7 +1142,7 @@ public class UndoFacet extends BaseFacet
          changeWorkingTreeNotesTo(branchWithNewCommit);
          break;
       case MULTIPLE_CHANGED_COMMITS:
-         reset();
+         resetHistory();
          break;
       default:
          throw new RuntimeException("Unknown RepositoryCommitState: " + state.toString());
@@ -388,35 +1153,35 @@ public class UndoFacet extends BaseFacet
 
    public RepositoryCommitState getCommitMonitorState()
    {
-      return commitsMonitor.getCurrentState();
+      return getCommitsMonitor().getCurrentState();
    }
 
    public String getCommitMonitorBranchWithOneNewCommit()
    {
-      return commitsMonitor.getBranchWithOneNewCommit();
+      return getCommitsMonitor().getBranchWithOneNewCommit();
    }
 
    public void changeWorkingTreeNotesTo(String branchWithNewCommit) throws IOException, GitAPIException
    {
-      Git git = getGitObject();
-      RevWalk revWalk = new RevWalk(git.getRepository());
-      List<Note> notes = git.notesList().call();
+      RevWalk revWalk = new RevWalk(getGitObject().getRepository());
+      Map<RevCommit, String> notes = new LinkedHashMap<RevCommit, String>();
 
-      for (Note note : notes)
+      try
       {
-         String noteMsg = readNoteMessage(note);
-
-         if (Strings.areEqual(noteMsg, DELETED_COMMIT_NOTE))
-            continue;
-
-         if (Strings.areEqual(noteMsg, DEFAULT_NOTE))
+         for (UndoJournal.Entry entry : getJournal().getEntries())
          {
-            RevCommit commitWithDefaultNote = revWalk.parseCommit(note);
-            git.notesRemove().setObjectId(commitWithDefaultNote).call();
-
-            git.notesAdd().setObjectId(commitWithDefaultNote).setMessage(branchWithNewCommit).call();
+            if (entry.getNoteState() == NoteState.WORKING_TREE)
+               notes.put(revWalk.parseCommit(entry.getCommitId()), branchWithNewCommit);
          }
       }
+      finally
+      {
+         revWalk.release();
+      }
+
+      // all notes move in one commit on the notes ref
+      if (!notes.isEmpty())
+         writeNotes(notes);
    }
 
    public String getUndoBranchName()
@@ -424,6 +1189,149 @@ public class UndoFacet extends BaseFacet
       return config.getString(HISTORY_BRANCH_CONFIG_KEY, DEFAULT_HISTORY_BRANCH_NAME);
    }
 
+   public CaptureMode getCaptureMode()
+   {
+      String mode = config.getString(CAPTURE_MODE_CONFIG_KEY, CaptureMode.STASH.name());
+      return CaptureMode.valueOf(mode.trim().toUpperCase());
+   }
+
+   /**
+    * @return true if snapshots are written by a background worker. Background snapshots are always written in the
+    *         {@link CaptureMode#DIRECT} mode.
+    */
+   public boolean isAsyncCapture()
+   {
+      return config.getBoolean(ASYNC_CAPTURE_CONFIG_KEY, false);
+   }
+
+   /**
+    * @return true if the history branch stores snapshots of the working tree rather than the stashed changes
+    */
+   public boolean storesSnapshots()
+   {
+      return isAsyncCapture() || getCaptureMode() == CaptureMode.DIRECT;
+   }
+
+   /**
+    * @return the watcher reporting changed paths of the working tree, or null if watching is disabled, the history
+    *         branch does not store snapshots or the file system has no native change events
+    */
+   public WorkingTreeWatcher getWorkingTreeWatcher() throws IOException
+   {
+      if (!storesSnapshots() || !config.getBoolean(WATCH_WORKING_TREE_CONFIG_KEY, false))
+         return null;
+
+      return WorkingTreeWatcher.start(getGitObject().getRepository());
+   }
+
+   /**
+    * @return true if the working tree is not scanned after commands which are known to only read the project. Off by
+    *         default, a change deep in the working tree does not move the modification times {@link CommandProfile}
+    *         looks at, so a command which rarely changes something may lose a change.
+    */
+   public boolean skipsReadOnlyCommands()
+   {
+      return config.getBoolean(SKIP_READ_ONLY_COMMANDS_CONFIG_KEY, false);
+   }
+
+   /**
+    * @return true if the stat data of the working tree is taken before every command, so the changes of the command
+    *         are found by comparing it with the stat data after the command. Off by default.
+    */
+   public boolean usesStatBaseline()
+   {
+      return config.getBoolean(STAT_BASELINE_CONFIG_KEY, false);
+   }
+
+   /**
+    * @return the directory of the project relative to the working tree of its repository, e.g. {@code modules/core},
+    *         when the project is a module of a larger repository and the changes of its commands are looked for in
+    *         the module only. Null if the project is the whole repository or module scoping is not enabled. Off by
+    *         default: a change a command makes outside of the module (e.g. to the parent {@code pom.xml}) is then
+    *         stored with a later command, and undoing the command does not revert it.
+    */
+   public String getModulePath() throws IOException
+   {
+      if (!config.getBoolean(MODULE_SCOPE_CONFIG_KEY, false))
+         return null;
+
+      String workTree = getGitObject().getRepository().getWorkTree().getCanonicalPath();
+      String projectRoot = project.getProjectRoot().getUnderlyingResourceObject().getCanonicalPath();
+      if (!projectRoot.startsWith(workTree + File.separator))
+         return null;
+
+      return projectRoot.substring(workTree.length() + 1).replace(File.separatorChar, '/');
+   }
+
+   /**
+    * @return the profile of the commands run in this project, loaded from {@code .git/forge-undo/command-profile}
+    */
+   public synchronized CommandProfile getCommandProfile() throws IOException
+   {
+      if (this.commandProfile == null)
+      {
+         File stateDir = new File(getGitObject().getRepository().getDirectory(), "forge-undo");
+         this.commandProfile = CommandProfile.load(new File(stateDir, "command-profile"));
+      }
+      return commandProfile;
+   }
+
+   /**
+    * @return the lock guarding the history branch, its notes, the journal and the redo stack of this project. Changing
+    *         them takes the write lock, reading them the read lock.
+    */
+   public synchronized ReadWriteLock getHistoryLock() throws IOException
+   {
+      if (this.historyLock == null)
+         this.historyLock = RepositoryLocks.get(getGitObject().getRepository().getDirectory());
+      return historyLock;
+   }
+
+   /**
+    * Takes the lock of the history once the snapshots queued by the background worker are stored, the worker needs
+    * the write lock for that.
+    *
+    * @param exclusive true to take the write lock
+    */
+   private HistoryLease lockHistory(boolean exclusive) throws IOException
+   {
+      awaitPendingSnapshots();
+      return acquireHistoryLock(exclusive);
+   }
+
+   /**
+    * Takes the lock of the history right away and keeps the repository acquired from the {@link RepositoryPool} while
+    * it is held, so the pool never closes the repository in the middle of an operation.
+    *
+    * @param exclusive true to take the write lock
+    * @return the lease, {@link HistoryLease#release()} unlocks the history and releases the repository
+    */
+   public HistoryLease acquireHistoryLock(boolean exclusive) throws IOException
+   {
+      Repository repository = RepositoryPool.acquire(getGitObject().getRepository().getDirectory());
+      try
+      {
+         Lock lock = exclusive ? getHistoryLock().writeLock() : getHistoryLock().readLock();
+         lock.lock();
+         return new HistoryLease(lock, repository);
+      }
+      catch (RuntimeException e)
+      {
+         RepositoryPool.release(repository);
+         throw e;
+      }
+   }
+
+   /**
+    * Waits until the snapshots queued by the background worker are stored on the history branch.
+    */
+   public void awaitPendingSnapshots() throws IOException
+   {
+      SnapshotPipeline pipeline = SnapshotPipeline.get(getGitObject().getRepository().getDirectory());
+      if (pipeline != null)
+         pipeline.awaitDrained();
+   }
+
    public Ref getUndoBranchRef() throws IOException, RefAlreadyExistsException, RefNotFoundException,
             InvalidRefNameException, CheckoutConflictException, GitAPIException
    {
@@ -433,12 +1341,27 @@ public class UndoFacet extends BaseFacet
 
    public int getHistoryBranchSize()
    {
-      return historyBranchSize;
+      try
+      {
+         return getJournal().size();
+      }
+      catch (IOException e)
+      {
+         throw new RuntimeException("Failed to read the undo journal", e);
+      }
    }
 
-   public void increaseHistoryBranchSizeByOne()
+   /**
+    * Adds a commit which was just stored on top of the history branch to the journal.
+    *
+    * @param commandName the command(s) which introduced the changes
+    */
+   public void recordHistoryEntry(RevCommit commit, String commandName) throws IOException
    {
-      historyBranchSize++;
+      UndoJournal journal = getJournal();
+      // a journal opened only now was recovered from the history branch, which holds the commit already
+      if (!commit.equals(journal.getNewestCommitId()))
+         journal.append(commit, NoteState.WORKING_TREE, commandName);
    }
 
    public boolean gitDirExists() throws IOException
@@ -450,17 +1373,238 @@ public class UndoFacet extends BaseFacet
       return true;
    }
 
-   public Git getGitObject() throws IOException
+   /**
+    * @return the repository of the project, shared through the {@link RepositoryPool} with every facet of the same
+    *         repository
+    */
+   public synchronized Git getGitObject() throws IOException
    {
-      if (this.gitObject == null)
+      if (this.gitDir == null)
+      {
+         File projectRoot = project.getProjectRoot().getUnderlyingResourceObject();
+         this.gitDir = new RepositoryBuilder().findGitDir(projectRoot).getGitDir();
+         if (this.gitDir == null)
+            throw new RepositoryNotFoundException(projectRoot);
+      }
+
+      Repository repository = RepositoryPool.get(gitDir);
+      if (this.gitObject == null || this.gitObject.getRepository() != repository)
       {
-         RepositoryBuilder db = new RepositoryBuilder().findGitDir(project.getProjectRoot()
-                  .getUnderlyingResourceObject());
-         this.gitObject = new Git(db.build());
+         // the previous repository was closed by the pool, nothing may hold on to it
+         this.gitObject = new Git(repository);
+         this.noteIndex = null;
+         this.redoStack = null;
       }
       return gitObject;
    }
 
+   /**
+    * @return index of the undo notes, brought up to date with the current tip of the notes ref
+    */
+   public synchronized NoteIndex getNoteIndex() throws IOException
+   {
+      if (this.noteIndex == null)
+      {
+         migrateNotes();
+         this.noteIndex = new NoteIndex(getGitObject().getRepository(), NOTES_REF);
+      }
+      return noteIndex.refresh();
+   }
+
+   /**
+    * Moves the notes of the history branch from {@link Constants#R_NOTES_COMMITS}, where older versions of the plugin
+    * kept them, to {@link #NOTES_REF}. Notes of other objects are left alone. Runs once, when the history branch has
+    * no notes of its own yet.
+    */
+   private void migrateNotes() throws IOException
+   {
+      Repository repository = getGitObject().getRepository();
+      Ref historyBranch = repository.getRef(Constants.R_HEADS + getUndoBranchName());
+      if (historyBranch == null || repository.getRef(NOTES_REF) != null
+               || repository.getRef(Constants.R_NOTES_COMMITS) == null)
+         return;
+
+      NoteIndex legacyNotes = new NoteIndex(repository, Constants.R_NOTES_COMMITS).refresh();
+      EditNotesCommand addNotes = getGitObject().notesEdit().setNotesRef(NOTES_REF);
+      EditNotesCommand removeNotes = getGitObject().notesEdit().setNotesRef(Constants.R_NOTES_COMMITS)
+               .setMessage("Notes removed by 'git notes remove'");
+      RevWalk revWalk = new RevWalk(repository);
+
+      try
+      {
+         // every commit the plugin stored carries a note, the walk ends at the first commit of the user
+         RevCommit commit = revWalk.parseCommit(historyBranch.getObjectId());
+         while (legacyNotes.hasNote(commit) && isStoredByPlugin(commit, legacyNotes.getNoteMessage(commit)))
+         {
+            addNotes.setNote(commit, legacyNotes.getNoteMessage(commit));
+            removeNotes.removeNote(commit);
+            if (commit.getParentCount() == 0)
+               break;
+            commit = revWalk.parseCommit(commit.getParent(0));
+         }
+
+         addNotes.call();
+         removeNotes.call();
+      }
+      catch (GitAPIException e)
+      {
+         throw new IOException("Failed to move the undo notes to " + NOTES_REF, e);
+      }
+      finally
+      {
+         legacyNotes.invalidate();
+         revWalk.release();
+      }
+   }
+
+   /**
+    * @return the journal of the history branch, opened and checked against the branch on first use
+    */
+   public synchronized UndoJournal getJournal() throws IOException
+   {
+      if (this.journal == null)
+      {
+         Repository repository = getGitObject().getRepository();
+         this.journal = UndoJournal.open(repository, Constants.R_HEADS + getUndoBranchName(), getNoteIndex());
+      }
+      return journal;
+   }
+
+   /**
+    * Closes the journal of the history branch, it is opened again on the next use.
+    */
+   public synchronized void closeJournal() throws IOException
+   {
+      if (this.journal != null)
+      {
+         UndoJournal closed = this.journal;
+         this.journal = null;
+         closed.close();
+      }
+   }
+
+   /**
+    * @return the limits of the history branch, by default the history is unlimited
+    */
+   public RetentionPolicy getRetentionPolicy()
+   {
+      return new RetentionPolicy(config.getInt(MAX_ENTRIES_CONFIG_KEY, 0), config.getLong(MAX_AGE_DAYS_CONFIG_KEY, 0)
+               * 24 * 60 * 60 * 1000, config.getLong(MAX_BYTES_CONFIG_KEY, 0));
+   }
+
+   /**
+    * @return how large files are stored, by default files above {@link LargeFilePolicy#DEFAULT_THRESHOLD} are
+    *         streamed like any other; the {@code skip} policy leaves their changes out of snapshots
+    */
+   public LargeFilePolicy getLargeFilePolicy()
+   {
+      String policy = config.getString(LARGE_FILE_POLICY_CONFIG_KEY, "stream");
+      return new LargeFilePolicy(config.getLong(LARGE_FILE_SIZE_CONFIG_KEY, LargeFilePolicy.DEFAULT_THRESHOLD),
+               "skip".equalsIgnoreCase(policy.trim()));
+   }
+
+   /**
+    * Compacts the history branch in the background once the shell is idle, if a retention policy is configured.
+    */
+   public void scheduleHistoryCompaction() throws IOException
+   {
+      if (getRetentionPolicy().isUnlimited())
+         return;
+
+      HistoryCompactor.scheduleWhenIdle(getGitObject().getRepository().getDirectory(), new Runnable()
+      {
+         @Override
+         public void run()
+         {
+            try
+            {
+               compactHistory();
+            }
+            catch (IOException e)
+            {
+               // the compaction is scheduled again after the next stored change
+            }
+         }
+      });
+   }
+
+   /**
+    * Squashes the entries which fall out of the retention policy into the base commit of the history branch and packs
+    * the objects of the history. Does nothing while there are undone changes which can be redone, because the redo
+    * stack refers to the commits which would be rewritten, nor while a group of commands is open.
+    *
+    * @return false if nothing was expired
+    */
+   public boolean compactHistory() throws IOException
+   {
+      RetentionPolicy policy = getRetentionPolicy();
+      if (policy.isUnlimited())
+         return false;
+
+      // runs while the shell is idle, the background snapshots are not waited for
+      HistoryLease lease = acquireHistoryLock(true);
+      try
+      {
+         if (getRedoStack().peek() != null)
+            return false;
+
+         // the history is rewritten only between the groups of commands
+         if (CommandGroup.get(getGitObject().getRepository().getDirectory()) != null)
+            return false;
+
+         HistoryCompactor compactor = new HistoryCompactor(getGitObject().getRepository(), Constants.R_HEADS
+                  + getUndoBranchName());
+         if (compactor.compact(getJournal(), getNoteIndex(), policy) == 0)
+            return false;
+
+         compactor.packHistory(NOTES_REF);
+         return true;
+      }
+      finally
+      {
+         lease.release();
+      }
+   }
+
+   private static boolean isStoredByPlugin(RevCommit commit, String note)
+   {
+      return commit.getFullMessage().startsWith(UNDO_STORE_COMMIT_MSG_PREFIX) || Strings.areEqual(DEFAULT_NOTE, note)
+               || Strings.areEqual(DELETED_COMMIT_NOTE, note);
+   }
+
+   private synchronized RedoStack getRedoStack() throws IOException
+   {
+      if (this.redoStack == null)
+         this.redoStack = new RedoStack(getGitObject().getRepository());
+      return redoStack;
+   }
+
+   private synchronized RepositoryCommitsMonitor getCommitsMonitor()
+   {
+      if (this.commitsMonitor == null)
+      {
+         try
+         {
+            if (gitDirExists())
+            {
+               // shared with the other facets of the repository, a commit must not be reported to each of them
+               this.commitsMonitor = RepositoryCommitsMonitor.get(getGitObject().getRepository().getDirectory(),
+                        getUndoBranchName());
+            }
+            else
+            {
+               this.commitsMonitor = new RepositoryCommitsMonitor();
+               this.commitsMonitor.setUndoBranchName(getUndoBranchName());
+            }
+         }
+         catch (IOException e)
+         {
+            throw new RuntimeException("Failed to load the branch tips of the commit monitor", e);
+         }
+      }
+      return commitsMonitor;
+   }
+
    private void commitAllToHaveCleanTree(Git repo) throws GitAPIException
    {
       repo.add().addFilepattern(".").call();
@@ -484,14 +1628,4 @@ public class UndoFacet extends BaseFacet
          repo.commit().setMessage(INITIAL_COMMIT_MSG).call();
       }
    }
-
-   private String readNoteMessage(Note note) throws IOException
-   {
-      Git repo = getGitObject();
-      ObjectLoader noteBlob = repo.getRepository().open(note.getData());
-      BufferedReader reader = new BufferedReader(new InputStreamReader(noteBlob.openStream()));
-      String noteMsg = reader.readLine();
-      return noteMsg;
-   }
-
 }
@@ -0,0 +1,619 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+import org.jboss.forge.jgit.util.RawParseUtils;
+
+/**
+ * On-disk list of the commits stored on the history branch, oldest first.
+ *
+ * The journal is a memory-mapped file of fixed-size records, one per commit on the history branch (including the
+ * commits which were undone already). It survives restarts of the shell, so neither the size of the history nor the
+ * state of its entries has to be worked out by walking the history branch again.
+ *
+ * On {@link #open(Repository, String, NoteIndex) open} the newest record is compared with the tip of the history
+ * branch. If they differ (e.g. the shell was killed between moving the branch and appending the record) the journal is
+ * rebuilt from the history branch and its notes.
+ *
+ * Every {@link #open(Repository, String, NoteIndex) open} has to be matched by a {@link #close()}, the file is closed
+ * once the last user of the journal closed it.
+ */
+public class UndoJournal
+{
+   /**
+    * State of the note attached to a journaled commit.
+    */
+   public enum NoteState
+   {
+      /** uncommitted changes of the working tree ({@link UndoFacet#DEFAULT_NOTE}) */
+      WORKING_TREE,
+      /** changes committed since, the note holds the name of the branch */
+      COMMITTED,
+      /** already undone ({@link UndoFacet#DELETED_COMMIT_NOTE}) */
+      DELETED
+   }
+
+   private static final int MAGIC = 0x46554a31; // "FUJ1"
+   private static final int VERSION = 1;
+   private static final int INITIAL_CAPACITY = 256;
+
+   private static final int HEADER_SIZE = 16;
+   private static final int HEADER_MAGIC = 0;
+   private static final int HEADER_VERSION = 4;
+   private static final int HEADER_COUNT = 8;
+
+   private static final int RECORD_SIZE = 128;
+   private static final int RECORD_ID = 0;
+   private static final int RECORD_STATE = RECORD_ID + Constants.OBJECT_ID_LENGTH;
+   private static final int RECORD_TIMESTAMP = RECORD_STATE + 1;
+   private static final int RECORD_NAME_LENGTH = RECORD_TIMESTAMP + 8;
+   private static final int RECORD_NAME = RECORD_NAME_LENGTH + 2;
+   private static final int MAX_NAME_LENGTH = RECORD_SIZE - RECORD_NAME;
+
+   private static final Map<File, UndoJournal> journals = new HashMap<File, UndoJournal>();
+
+   private final File file;
+   /** number of the opens which were not closed yet */
+   private int users;
+   private RandomAccessFile raf;
+   private MappedByteBuffer buffer;
+   private int capacity;
+   private int count;
+
+   /**
+    * Index of the newest record which is not {@link NoteState#DELETED}, -1 if there is none.
+    */
+   private int newestLive;
+
+   private UndoJournal(File file) throws IOException
+   {
+      this.file = file;
+      map();
+   }
+
+   /**
+    * Opens the journal stored in the given file, creating it if needed, and makes sure it matches the history branch.
+    *
+    * @param historyBranchRef full name of the history branch
+    * @param notes notes of the history branch
+    */
+   public static UndoJournal open(Repository repository, String historyBranchRef, NoteIndex notes)
+            throws IOException
+   {
+      File file = new File(new File(repository.getDirectory(), "forge-undo"), "journal").getCanonicalFile();
+
+      // every facet of the same repository has to see the same records
+      UndoJournal journal;
+      synchronized (journals)
+      {
+         journal = journals.get(file);
+         if (journal == null)
+         {
+            journal = new UndoJournal(file);
+            journals.put(file, journal);
+         }
+         synchronized (journal)
+         {
+            journal.users++;
+         }
+      }
+
+      boolean opened = false;
+      try
+      {
+         synchronized (journal)
+         {
+            // the file was deleted while the journal was open, the users keep the same instance
+            if (!file.isFile())
+               journal.reopen();
+            journal.recover(repository, historyBranchRef, notes);
+         }
+         opened = true;
+      }
+      finally
+      {
+         if (!opened)
+            journal.close();
+      }
+      return journal;
+   }
+
+   /**
+    * Closes the file of the journal once every user closed it. The journal must not be used anymore by the caller.
+    */
+   public void close() throws IOException
+   {
+      synchronized (journals)
+      {
+         synchronized (this)
+         {
+            if (users == 0 || --users > 0)
+               return;
+
+            journals.remove(file);
+            release();
+         }
+      }
+   }
+
+   /**
+    * Closes every open journal, e.g. when the shell shuts down.
+    */
+   public static void closeAll() throws IOException
+   {
+      synchronized (journals)
+      {
+         for (UndoJournal journal : journals.values())
+            synchronized (journal)
+            {
+               journal.users = 0;
+               journal.release();
+            }
+         journals.clear();
+      }
+   }
+
+   /**
+    * A single record of the journal.
+    */
+   public static class Entry
+   {
+      private final ObjectId commitId;
+      private final NoteState noteState;
+      private final long timestamp;
+      private final String commandName;
+
+      private Entry(ObjectId commitId, NoteState noteState, long timestamp, String commandName)
+      {
+         this.commitId = commitId;
+         this.noteState = noteState;
+         this.timestamp = timestamp;
+         this.commandName = commandName;
+      }
+
+      public ObjectId getCommitId()
+      {
+         return commitId;
+      }
+
+      public NoteState getNoteState()
+      {
+         return noteState;
+      }
+
+      /**
+       * @return when the commit was stored, in milliseconds since the epoch
+       */
+      public long getTimestamp()
+      {
+         return timestamp;
+      }
+
+      /**
+       * @return the command(s) which introduced the changes, possibly truncated
+       */
+      public String getCommandName()
+      {
+         return commandName;
+      }
+   }
+
+   /**
+    * @return number of commits on the history branch, including the undone ones
+    */
+   public synchronized int size()
+   {
+      return count;
+   }
+
+   public synchronized void append(AnyObjectId commitId, NoteState state, String commandName) throws IOException
+   {
+      if (count == capacity)
+      {
+         capacity *= 2;
+         map();
+      }
+
+      int offset = offsetOf(count);
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      commitId.copyRawTo(id, 0);
+      byte[] name = encodeName(commandName);
+
+      buffer.position(offset + RECORD_ID);
+      buffer.put(id);
+      buffer.put((byte) state.ordinal());
+      buffer.putLong(System.currentTimeMillis());
+      buffer.putShort((short) name.length);
+      buffer.put(name);
+
+      // the record only becomes visible once it is complete
+      buffer.putInt(HEADER_COUNT, ++count);
+      if (state != NoteState.DELETED)
+         newestLive = count - 1;
+   }
+
+   /**
+    * Changes the state of the newest record of the given commit.
+    *
+    * @return false if the commit is not in the journal
+    */
+   public synchronized boolean setNoteState(AnyObjectId commitId, NoteState state)
+   {
+      for (int i = count - 1; i >= 0; i--)
+      {
+         if (readId(i).equals(commitId))
+         {
+            writeState(i, state);
+            updateNewestLive(i, state);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Moves every record in the {@code from} state to the {@code to} state.
+    */
+   public synchronized void changeNoteStates(NoteState from, NoteState to)
+   {
+      for (int i = count - 1; i >= 0; i--)
+      {
+         if (readState(i) == from)
+         {
+            writeState(i, to);
+            updateNewestLive(i, to);
+         }
+      }
+   }
+
+   /**
+    * @return the commit of the newest record, or null if the journal is empty
+    */
+   public synchronized ObjectId getNewestCommitId()
+   {
+      return (count > 0) ? readId(count - 1) : null;
+   }
+
+   /**
+    * @return the newest record which was not undone yet, or null if there is none
+    */
+   public synchronized Entry getNewestLiveEntry()
+   {
+      return (newestLive >= 0) ? read(newestLive) : null;
+   }
+
+   /**
+    * @param index position of the record counted from the newest one, which is 0
+    * @return the record, or null if there are not that many records
+    */
+   public synchronized Entry getEntry(int index)
+   {
+      return (index >= 0 && index < count) ? read(count - 1 - index) : null;
+   }
+
+   /**
+    * Iterates over the records from the newest one which was not undone yet down to the oldest one. The records are
+    * read one at a time, a lookup which stops at the first match reads only the records it passes. The journal must
+    * not change while iterating, the caller holds the lock of the history.
+    *
+    * @return the records, newest first, without the undone records newer than every live one
+    */
+   public Iterable<Entry> newestLiveFirst()
+   {
+      return new Iterable<Entry>()
+      {
+         @Override
+         public Iterator<Entry> iterator()
+         {
+            return new RecordIterator();
+         }
+      };
+   }
+
+   /**
+    * @return all records, newest first
+    */
+   public synchronized List<Entry> getEntries()
+   {
+      List<Entry> entries = new ArrayList<Entry>(count);
+      for (int i = count - 1; i >= 0; i--)
+         entries.add(read(i));
+      return entries;
+   }
+
+   /**
+    * Drops the oldest records after the history branch was compacted. The remaining records keep their state,
+    * timestamp and command name but get the ids of the rewritten commits.
+    *
+    * @param expired number of the oldest records to drop
+    * @param newIds ids of the rewritten commits, oldest first, one for every remaining record
+    */
+   public synchronized void compact(int expired, List<? extends AnyObjectId> newIds)
+   {
+      int remaining = count - expired;
+      if (newIds.size() != remaining)
+         throw new IllegalArgumentException("Expected " + remaining + " commit ids, got " + newIds.size());
+
+      byte[] record = new byte[RECORD_SIZE];
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < remaining; i++)
+      {
+         buffer.position(offsetOf(i + expired));
+         buffer.get(record);
+         newIds.get(i).copyRawTo(id, 0);
+         System.arraycopy(id, 0, record, RECORD_ID, id.length);
+
+         buffer.position(offsetOf(i));
+         buffer.put(record);
+      }
+
+      count = remaining;
+      buffer.putInt(HEADER_COUNT, count);
+      findNewestLive();
+   }
+
+   /**
+    * Removes all records.
+    */
+   public synchronized void clear()
+   {
+      count = 0;
+      newestLive = -1;
+      buffer.putInt(HEADER_COUNT, 0);
+   }
+
+   private class RecordIterator implements Iterator<Entry>
+   {
+      private int next;
+
+      RecordIterator()
+      {
+         synchronized (UndoJournal.this)
+         {
+            next = newestLive;
+         }
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+         return next >= 0;
+      }
+
+      @Override
+      public Entry next()
+      {
+         synchronized (UndoJournal.this)
+         {
+            if (next < 0 || next >= count)
+               throw new NoSuchElementException();
+            return read(next--);
+         }
+      }
+
+      @Override
+      public void remove()
+      {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   private void recover(Repository repository, String historyBranchRef, NoteIndex notes) throws IOException
+   {
+      Ref ref = repository.getRef(historyBranchRef);
+      ObjectId tip = (ref != null) ? ref.getObjectId() : null;
+      if (tip != null && count > 0 && readId(count - 1).equals(tip))
+      {
+         // the notes are updated after the journal, bring the states up to date with them
+         for (int i = 0; i < count; i++)
+            writeState(i, toNoteState(notes.getNoteMessage(readId(i))));
+         findNewestLive();
+         return;
+      }
+
+      clear();
+      if (tip == null)
+         return;
+
+      // every commit stored by the plugin has a note, the commit the history branch started from does not
+      List<RevCommit> stored = new ArrayList<RevCommit>();
+      RevWalk revWalk = new RevWalk(repository);
+      try
+      {
+         for (RevCommit commit = revWalk.parseCommit(tip); notes.hasNote(commit); commit = commit.getParent(0))
+         {
+            stored.add(commit);
+            if (commit.getParentCount() == 0)
+               break;
+            revWalk.parseHeaders(commit.getParent(0));
+         }
+      }
+      finally
+      {
+         revWalk.release();
+      }
+
+      for (int i = stored.size() - 1; i >= 0; i--)
+      {
+         RevCommit commit = stored.get(i);
+         append(commit, toNoteState(notes.getNoteMessage(commit)), commandNameOf(commit));
+      }
+   }
+
+   private void reopen() throws IOException
+   {
+      release();
+      capacity = 0;
+      map();
+   }
+
+   /**
+    * Closes the file, the mapping is released once it is garbage collected.
+    */
+   private void release() throws IOException
+   {
+      buffer = null;
+      if (raf != null)
+      {
+         raf.close();
+         raf = null;
+      }
+   }
+
+   private void map() throws IOException
+   {
+      File directory = file.getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+         throw new IOException("Failed to create " + directory);
+
+      if (raf == null)
+         raf = new RandomAccessFile(file, "rw");
+
+      long length = raf.length();
+      boolean fresh = length < HEADER_SIZE;
+      if (capacity == 0)
+         capacity = fresh ? INITIAL_CAPACITY : Math.max(INITIAL_CAPACITY, (int) ((length - HEADER_SIZE) / RECORD_SIZE));
+
+      long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+      if (length < size)
+         raf.setLength(size);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+      if (fresh || buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION)
+      {
+         buffer.putInt(HEADER_MAGIC, MAGIC);
+         buffer.putInt(HEADER_VERSION, VERSION);
+         buffer.putInt(HEADER_COUNT, 0);
+      }
+
+      count = Math.min(Math.max(buffer.getInt(HEADER_COUNT), 0), capacity);
+      findNewestLive();
+   }
+
+   private void findNewestLive()
+   {
+      newestLive = count - 1;
+      while (newestLive >= 0 && readState(newestLive) == NoteState.DELETED)
+         newestLive--;
+   }
+
+   private void updateNewestLive(int index, NoteState state)
+   {
+      if (state != NoteState.DELETED && index > newestLive)
+         newestLive = index;
+      else if (state == NoteState.DELETED && index == newestLive)
+         findNewestLive();
+   }
+
+   private Entry read(int index)
+   {
+      int offset = offsetOf(index);
+      int nameLength = buffer.getShort(offset + RECORD_NAME_LENGTH);
+      byte[] name = new byte[nameLength];
+      buffer.position(offset + RECORD_NAME);
+      buffer.get(name);
+
+      return new Entry(readId(index), readState(index), buffer.getLong(offset + RECORD_TIMESTAMP),
+               RawParseUtils.decode(name));
+   }
+
+   private ObjectId readId(int index)
+   {
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      buffer.position(offsetOf(index) + RECORD_ID);
+      buffer.get(id);
+      return ObjectId.fromRaw(id);
+   }
+
+   private NoteState readState(int index)
+   {
+      return NoteState.values()[buffer.get(offsetOf(index) + RECORD_STATE)];
+   }
+
+   private void writeState(int index, NoteState state)
+   {
+      buffer.put(offsetOf(index) + RECORD_STATE, (byte) state.ordinal());
+   }
+
+   private static int offsetOf(int index)
+   {
+      return HEADER_SIZE + index * RECORD_SIZE;
+   }
+
+   static NoteState toNoteState(String noteMessage)
+   {
+      if (UndoFacet.DEFAULT_NOTE.equals(noteMessage))
+         return NoteState.WORKING_TREE;
+      if (UndoFacet.DELETED_COMMIT_NOTE.equals(noteMessage))
+         return NoteState.DELETED;
+      return NoteState.COMMITTED;
+   }
+
+   private static String commandNameOf(RevCommit commit)
+   {
+      String msg = commit.getShortMessage();
+      if (!msg.startsWith(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX))
+         return msg;
+
+      // the names are quoted in the commit message
+      msg = msg.substring(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX.length()).replace("\"", "");
+      if (msg.endsWith(" group"))
+         return msg.substring(0, msg.length() - " group".length());
+      if (msg.endsWith(" commands"))
+         return msg.substring(0, msg.length() - " commands".length());
+      if (msg.endsWith(" command"))
+         return msg.substring(0, msg.length() - " command".length());
+      return msg;
+   }
+
+   /**
+    * @return UTF-8 bytes of the name, cut at a character boundary to fit into a record
+    */
+   private static byte[] encodeName(String name)
+   {
+      byte[] bytes = Constants.encode(name != null ? name : "");
+      if (bytes.length <= MAX_NAME_LENGTH)
+         return bytes;
+
+      int length = MAX_NAME_LENGTH;
+      while (length > 0 && (bytes[length] & 0xC0) == 0x80)
+         length--;
+
+      byte[] truncated = new byte[length];
+      System.arraycopy(bytes, 0, truncated, 0, length);
+      return truncated;
+   }
+}
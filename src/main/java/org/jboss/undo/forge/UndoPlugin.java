@@ -16,14 +16,15 @@
 
 package org.jboss.undo.forge;
 
-import java.util.Map;
-import java.util.Map.Entry;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.enterprise.event.Event;
 import javax.inject.Inject;
 
 import org.jboss.forge.env.Configuration;
-import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.lib.ObjectId;
 import org.jboss.forge.parser.java.util.Strings;
 import org.jboss.forge.project.Project;
 import org.jboss.forge.project.facets.events.InstallFacets;
@@ -49,6 +50,7 @@ import org.jboss.forge.shell.plugins.SetupCommand;
 public class UndoPlugin implements Plugin
 {
    private static final int GIT_HASH_ABBREV_SIZE = 7;
+   private static final int MAX_STAT_WIDTH = 40;
 
    @Inject
    private Configuration config;
@@ -59,6 +61,9 @@ public class UndoPlugin implements Plugin
    @Inject
    private Event<InstallFacets> install;
 
+   @Inject
+   private HistoryBranchUpdater historyBranchUpdater;
+
    @SetupCommand()
    public void setup(@Option(name = "branchName") String branchName,
             PipeOut out)
@@ -76,33 +81,180 @@ public class UndoPlugin implements Plugin
    }
 
    @Command(value = "list", help = "list changes stored in the undo branch")
-   public void listCommand(PipeOut out) throws Exception
+   public void listCommand(
+            @Option(name = "limit", help = "maximal number of changes to show") Integer limit,
+            @Option(name = "skip", help = "number of the latest changes to leave out") Integer skip,
+            final PipeOut out) throws Exception
    {
-      Map<RevCommit, String> commitsWithNotes = project.getFacet(UndoFacet.class).getStoredCommitsWithNotesOnHistoryBranch();
-
-      for (Entry<RevCommit, String > each : commitsWithNotes.entrySet())
+      if (limit != null && limit < 1)
       {
-         RevCommit commit = each.getKey();
-         String note = (each.getValue() != null) ? each.getValue() : "*NULL*";
-         if(Strings.areEqual(note, UndoFacet.DEFAULT_NOTE))
-            note = "*uncommitted*";
-
-         String line = commit.getId().abbreviate(GIT_HASH_ABBREV_SIZE).name() + " [" + note + "] " + commit.getShortMessage();
-         out.println(line);
+         ShellMessages.error(out, "--limit must be at least 1.");
+         return;
       }
+      if (skip != null && skip < 0)
+      {
+         ShellMessages.error(out, "--skip must not be negative.");
+         return;
+      }
+
+      // every line is printed as soon as it is read, nothing is collected
+      project.getFacet(UndoFacet.class).visitStoredCommits(skip != null ? skip : 0,
+               limit != null ? limit : Integer.MAX_VALUE, new UndoFacet.HistoryVisitor()
+               {
+                  @Override
+                  public void visit(ObjectId commitId, String note, String shortMessage)
+                  {
+                     if (Strings.areEqual(note, UndoFacet.DEFAULT_NOTE))
+                        note = "*uncommitted*";
+
+                     out.println(commitId.abbreviate(GIT_HASH_ABBREV_SIZE).name() + " [" + note + "] " + shortMessage);
+                  }
+               });
    }
 
    @Command(value = "restore", help = "reverts the changes introduced by the last forge command")
-   public void undoCommand(PipeOut out) throws Exception
+   public void undoCommand(
+            @Option(name = "count", help = "number of the latest forge commands to revert at once") Integer count,
+            @Option(name = "to", help = "revert all forge commands down to and including the one with this id")
+            String to,
+            PipeOut out) throws Exception
    {
-      boolean isReverted = project.getFacet(UndoFacet.class).undoLastChange();
+      if (count != null && count < 1)
+      {
+         ShellMessages.error(out, "--count must be at least 1.");
+         return;
+      }
+
+      UndoFacet undoFacet = project.getFacet(UndoFacet.class);
+      boolean isReverted;
+      String message;
+
+      if (!Strings.isNullOrEmpty(to))
+      {
+         isReverted = undoFacet.undoChangesUpTo(to);
+         message = "forge commands down to " + to + " are reverted.";
+      }
+      else if (count != null && count > 1)
+      {
+         isReverted = undoFacet.undoLastChanges(count);
+         message = "latest forge commands are reverted.";
+      }
+      else
+      {
+         isReverted = undoFacet.undoLastChange();
+         message = "latest forge command is reverted.";
+      }
 
       if (isReverted)
-         ShellMessages.success(out, "latest forge command is reverted.");
+         ShellMessages.success(out, message);
       else
          ShellMessages.info(out, "nothing happened.");
    }
 
+   @Command(value = "diff", help = "shows the changes undo restore would revert")
+   public void diffCommand(
+            @Option(help = "id of the change as shown by undo list, the latest one by default") String id,
+            @Option(name = "stat", flagOnly = true, help = "list the changed files only") boolean stat,
+            PipeOut out) throws Exception
+   {
+      UndoFacet undoFacet = project.getFacet(UndoFacet.class);
+      String commitId = Strings.isNullOrEmpty(id) ? null : id;
+      if (!stat)
+      {
+         ByteArrayOutputStream patch = new ByteArrayOutputStream();
+         if (undoFacet.formatStoredChange(commitId, patch))
+            out.print(patch.toString("UTF-8"));
+         else
+            ShellMessages.info(out, "nothing happened. There is no such change.");
+         return;
+      }
+
+      List<HistoryDiff.FileStat> files = undoFacet.statStoredChange(commitId);
+      if (files == null)
+      {
+         ShellMessages.info(out, "nothing happened. There is no such change.");
+         return;
+      }
+
+      int insertions = 0;
+      int deletions = 0;
+      for (HistoryDiff.FileStat file : files)
+      {
+         if (file.isBinary())
+         {
+            out.println(" " + file.getPath() + " | Bin");
+            continue;
+         }
+
+         out.println(String.format(" %s | %d %s%s", file.getPath(), file.getInsertions() + file.getDeletions(),
+                  repeat('+', file.getInsertions()), repeat('-', file.getDeletions())));
+         insertions += file.getInsertions();
+         deletions += file.getDeletions();
+      }
+      out.println(String.format(" %d files changed, %d insertions(+), %d deletions(-)", files.size(), insertions,
+               deletions));
+   }
+
+   @Command(value = "redo", help = "applies the changes reverted by the last undo restore again")
+   public void redoCommand(PipeOut out) throws Exception
+   {
+      boolean isRedone = project.getFacet(UndoFacet.class).redoLastUndo();
+
+      if (isRedone)
+         ShellMessages.success(out, "last undo is redone.");
+      else
+         ShellMessages.info(out, "nothing happened.");
+   }
+
+   @Command(value = "begin-group",
+            help = "stores the changes of the following commands as one change, until undo end-group")
+   public void beginGroupCommand(
+            @Option(name = "name", help = "label of the change in undo list") String name,
+            PipeOut out) throws Exception
+   {
+      String label = Strings.isNullOrEmpty(name) ? "group" : name;
+      historyBranchUpdater.beginGroup(project.getFacet(UndoFacet.class), label);
+      ShellMessages.success(out, "changes are grouped until undo end-group.");
+   }
+
+   @Command(value = "end-group", help = "stores the changes of the commands since undo begin-group as one change")
+   public void endGroupCommand(PipeOut out) throws Exception
+   {
+      boolean isStored = historyBranchUpdater.endGroup(project.getFacet(UndoFacet.class));
+
+      if (isStored)
+         ShellMessages.success(out, "grouped changes are stored.");
+      else
+         ShellMessages.info(out, "nothing happened. No group is open.");
+   }
+
+   @Command(value = "stats", help = "shows how long storing and undoing changes took, per phase")
+   public void statsCommand(
+            @Option(name = "reset", flagOnly = true, help = "clear the collected numbers") boolean reset,
+            PipeOut out) throws Exception
+   {
+      UndoStats stats = UndoStats.get();
+
+      if (reset)
+      {
+         stats.reset();
+         ShellMessages.success(out, "statistics are cleared.");
+         return;
+      }
+
+      out.println(String.format("%-20s %8s %10s %10s %10s", "phase", "count", "mean ms", "p99 ms", "max ms"));
+      for (UndoStats.Phase phase : UndoStats.Phase.values())
+      {
+         UndoStats.Histogram histogram = stats.getHistogram(phase);
+         if (histogram.getCount() == 0)
+            continue;
+
+         out.println(String.format("%-20s %8d %10.2f %10.2f %10.2f", phase.getLabel(), histogram.getCount(),
+                  histogram.getMeanMillis(), histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+      }
+      out.println("files hashed: " + stats.getFilesHashed() + ", bytes hashed: " + stats.getBytesHashed());
+   }
+
    @Command(value = "reset", help = "remove all stored changesets in the history branch. It's only possible to reset undo branch from the clean state.")
    public void resetCommand(PipeOut out) throws Exception
    {
@@ -114,4 +266,11 @@ public class UndoPlugin implements Plugin
          ShellMessages.info(out, "Nothing happened. History branch is either empty already or your git repository is not in clean state.");
    }
 
+   private static String repeat(char c, int count)
+   {
+      // long changes are cut off, the number in front tells the rest
+      char[] chars = new char[Math.min(count, MAX_STAT_WIDTH)];
+      Arrays.fill(chars, c);
+      return new String(chars);
+   }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the phases of storing and undoing changes, shared by all projects of the shell.
+ *
+ * Recording a sample costs two atomic increments and an atomic max, so the timers stay in place in production. The
+ * numbers are shown by {@code undo stats} and exported over JMX as {@link #OBJECT_NAME} from the moment the plugin is
+ * installed or found installed in a project until the shell shuts down.
+ */
+public class UndoStats implements UndoStatsMXBean
+{
+   public static final String OBJECT_NAME = "org.jboss.undo.forge:type=UndoStats";
+
+   /**
+    * Timed phases. The totals contain the other phases.
+    */
+   public enum Phase
+   {
+      CAPTURE("capture total"),
+      UNDO("undo total"),
+      REDO("redo total"),
+      RESET("reset total"),
+      STATUS_SCAN("status scan"),
+      BASELINE("stat baseline"),
+      CHECKOUT("checkout"),
+      SNAPSHOT("snapshot"),
+      MERGE("in-memory merge"),
+      COMMIT("commit"),
+      NOTES("notes"),
+      COMMIT_MONITOR("commit monitor walk");
+
+      private final String label;
+
+      private Phase(String label)
+      {
+         this.label = label;
+      }
+
+      public String getLabel()
+      {
+         return label;
+      }
+   }
+
+   private static final UndoStats instance = new UndoStats();
+   private static boolean registered = false;
+
+   private final Map<Phase, Histogram> histograms = new LinkedHashMap<Phase, Histogram>();
+   private final AtomicLong filesHashed = new AtomicLong();
+   private final AtomicLong bytesHashed = new AtomicLong();
+
+   private UndoStats()
+   {
+      for (Phase phase : Phase.values())
+         histograms.put(phase, new Histogram());
+   }
+
+   /**
+    * @return the statistics of the shell
+    */
+   public static UndoStats get()
+   {
+      return instance;
+   }
+
+   /**
+    * Records a phase which started at the given {@link System#nanoTime()} and has just finished.
+    */
+   public static void record(Phase phase, long startNanos)
+   {
+      instance.histograms.get(phase).record(System.nanoTime() - startNanos);
+   }
+
+   /**
+    * Counts a file which was read and hashed into a blob.
+    */
+   public static void countHashed(long bytes)
+   {
+      instance.filesHashed.incrementAndGet();
+      instance.bytesHashed.addAndGet(bytes);
+   }
+
+   public Histogram getHistogram(Phase phase)
+   {
+      return histograms.get(phase);
+   }
+
+   @Override
+   public Map<String, Long> getCounts()
+   {
+      Map<String, Long> result = new LinkedHashMap<String, Long>();
+      for (Map.Entry<Phase, Histogram> each : histograms.entrySet())
+         result.put(each.getKey().getLabel(), each.getValue().getCount());
+      return result;
+   }
+
+   @Override
+   public Map<String, Double> getMeanMillis()
+   {
+      Map<String, Double> result = new LinkedHashMap<String, Double>();
+      for (Map.Entry<Phase, Histogram> each : histograms.entrySet())
+         result.put(each.getKey().getLabel(), each.getValue().getMeanMillis());
+      return result;
+   }
+
+   @Override
+   public Map<String, Double> getP99Millis()
+   {
+      Map<String, Double> result = new LinkedHashMap<String, Double>();
+      for (Map.Entry<Phase, Histogram> each : histograms.entrySet())
+         result.put(each.getKey().getLabel(), each.getValue().getPercentileMillis(0.99));
+      return result;
+   }
+
+   @Override
+   public Map<String, Double> getMaxMillis()
+   {
+      Map<String, Double> result = new LinkedHashMap<String, Double>();
+      for (Map.Entry<Phase, Histogram> each : histograms.entrySet())
+         result.put(each.getKey().getLabel(), each.getValue().getMaxMillis());
+      return result;
+   }
+
+   @Override
+   public long getFilesHashed()
+   {
+      return filesHashed.get();
+   }
+
+   @Override
+   public long getBytesHashed()
+   {
+      return bytesHashed.get();
+   }
+
+   @Override
+   public void reset()
+   {
+      for (Histogram histogram : histograms.values())
+         histogram.reset();
+      filesHashed.set(0);
+      bytesHashed.set(0);
+   }
+
+   /**
+    * Registers the statistics with the platform MBean server, unless they are registered already.
+    */
+   public static synchronized void register()
+   {
+      if (registered)
+         return;
+
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         server.registerMBean(instance, new ObjectName(OBJECT_NAME));
+         registered = true;
+      }
+      catch (InstanceAlreadyExistsException e)
+      {
+         // registered by another class loader of the plugin, which also unregisters it
+      }
+      catch (JMException e)
+      {
+         throw new RuntimeException("Failed to register " + OBJECT_NAME, e);
+      }
+   }
+
+   /**
+    * Removes the statistics from the platform MBean server if {@link #register()} registered them.
+    */
+   public static synchronized void unregister()
+   {
+      if (!registered)
+         return;
+
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+      }
+      catch (InstanceNotFoundException e)
+      {
+         // unregistered by somebody else
+      }
+      catch (JMException e)
+      {
+         throw new RuntimeException("Failed to unregister " + OBJECT_NAME, e);
+      }
+      finally
+      {
+         registered = false;
+      }
+   }
+
+   /**
+    * Histogram with one bucket per power of two of nanoseconds. Percentiles are reported as the upper bound of the
+    * bucket they fall into, i.e. with at most 2x error.
+    */
+   public static class Histogram
+   {
+      private static final int BUCKETS = 64;
+
+      private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+      private final AtomicLong count = new AtomicLong();
+      private final AtomicLong totalNanos = new AtomicLong();
+      private final AtomicLong maxNanos = new AtomicLong();
+
+      public void record(long nanos)
+      {
+         nanos = Math.max(nanos, 0);
+         // bucket i holds [2^i, 2^(i+1)), zero goes to the first bucket
+         buckets.incrementAndGet(Math.max(BUCKETS - 1 - Long.numberOfLeadingZeros(nanos), 0));
+         count.incrementAndGet();
+         totalNanos.addAndGet(nanos);
+
+         long max = maxNanos.get();
+         while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+      }
+
+      public long getCount()
+      {
+         return count.get();
+      }
+
+      public double getMeanMillis()
+      {
+         long n = count.get();
+         return (n == 0) ? 0 : toMillis(totalNanos.get() / n);
+      }
+
+      public double getMaxMillis()
+      {
+         return toMillis(maxNanos.get());
+      }
+
+      /**
+       * @param fraction e.g. 0.5 for the median
+       */
+      public double getPercentileMillis(double fraction)
+      {
+         long n = count.get();
+         if (n == 0)
+            return 0;
+
+         long rank = (long) Math.ceil(n * fraction);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; i++)
+         {
+            seen += buckets.get(i);
+            if (seen >= rank)
+               return toMillis(Math.min((i == BUCKETS - 1) ? Long.MAX_VALUE : (2L << i) - 1, maxNanos.get()));
+         }
+         return getMaxMillis();
+      }
+
+      private void reset()
+      {
+         for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+         count.set(0);
+         totalNanos.set(0);
+         maxNanos.set(0);
+      }
+
+      private static double toMillis(long nanos)
+      {
+         return nanos / 1000000.0;
+      }
+   }
+}
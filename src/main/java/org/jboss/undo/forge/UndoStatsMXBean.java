@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link UndoStats}. The maps are keyed by the phase labels.
+ */
+public interface UndoStatsMXBean
+{
+   Map<String, Long> getCounts();
+
+   Map<String, Double> getMeanMillis();
+
+   Map<String, Double> getP99Millis();
+
+   Map<String, Double> getMaxMillis();
+
+   long getFilesHashed();
+
+   long getBytesHashed();
+
+   void reset();
+}
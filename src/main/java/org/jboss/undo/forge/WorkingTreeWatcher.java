@@ -0,0 +1,395 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.forge.jgit.dircache.DirCacheIterator;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.treewalk.FileTreeIterator;
+import org.jboss.forge.jgit.treewalk.TreeWalk;
+import org.jboss.forge.jgit.treewalk.WorkingTreeIterator;
+import org.jboss.forge.jgit.treewalk.filter.PathFilter;
+
+/**
+ * Keeps the set of working tree paths touched since the last snapshot, using a {@link WatchService}.
+ *
+ * The set is only trusted while it is known to be complete: right after the watcher starts, after an overflow event or
+ * when the history branch moved to a tree the watcher was not told about, {@link #getDirtyPaths(ObjectId)} returns
+ * null and the caller has to fall back to a full scan of the working tree.
+ *
+ * Directories ignored by git and not tracked (e.g. {@code target}) are not watched. Nothing is ever written to the
+ * working tree: to wait for the pending events, a marker file is created in {@code .git/forge-undo}, which is watched
+ * as well. File systems which only offer a polling {@link WatchService} get no watcher, see
+ * {@link #start(Repository)}.
+ *
+ * The watcher keeps no repository open, the directories created later are looked at through the
+ * {@link RepositoryPool}. The watchers run until {@link #stopAll()}.
+ */
+public class WorkingTreeWatcher
+{
+   private static final String SYNC_DIRECTORY = "forge-undo";
+   private static final String SYNC_MARKER_PREFIX = "sync-";
+   private static final long SYNC_TIMEOUT_MILLIS = 1000;
+
+   private static final Map<File, WorkingTreeWatcher> watchers = new HashMap<File, WorkingTreeWatcher>();
+
+   private final File gitDir;
+   private final Path workTree;
+   private final Path syncDirectory;
+   private final WatchService watchService;
+   private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+   private final Thread poller;
+
+   private final Object lock = new Object();
+   private Set<String> dirtyPaths = new HashSet<String>();
+   private boolean complete = false;
+   private ObjectId cleanTree = null;
+   private String pendingSyncMarker = null;
+   private long syncCounter = 0;
+
+   private WorkingTreeWatcher(Repository repository, WatchService watchService) throws IOException
+   {
+      this.gitDir = repository.getDirectory().getCanonicalFile();
+      this.workTree = repository.getWorkTree().getCanonicalFile().toPath();
+      this.syncDirectory = new File(repository.getDirectory(), SYNC_DIRECTORY).toPath();
+      this.watchService = watchService;
+      this.poller = new Thread(new Poller(), "forge-undo-watcher [" + workTree.getFileName() + "]");
+      this.poller.setDaemon(true);
+   }
+
+   /**
+    * @return the watcher of the working tree of the given repository, started if it was not running yet, or null if
+    *         the file system only offers a polling {@link WatchService}. Waiting for the events of such a service
+    *         takes seconds, a scan of the working tree is faster.
+    */
+   public static synchronized WorkingTreeWatcher start(Repository repository) throws IOException
+   {
+      File key = repository.getDirectory().getCanonicalFile();
+      WorkingTreeWatcher watcher = watchers.get(key);
+      if (watcher == null)
+      {
+         WatchService watchService = repository.getWorkTree().toPath().getFileSystem().newWatchService();
+         if (watchService.getClass().getName().endsWith("PollingWatchService"))
+         {
+            watchService.close();
+            return null;
+         }
+
+         watcher = new WorkingTreeWatcher(repository, watchService);
+         try
+         {
+            Files.createDirectories(watcher.syncDirectory);
+            watcher.register(watcher.syncDirectory);
+            watcher.registerAll(repository, "");
+         }
+         catch (IOException e)
+         {
+            watchService.close();
+            throw e;
+         }
+         watcher.poller.start();
+         watchers.put(key, watcher);
+      }
+      return watcher;
+   }
+
+   /**
+    * Stops all the watchers and closes their {@link WatchService}s, the next {@link #start(Repository)} starts a new
+    * one.
+    */
+   public static synchronized void stopAll() throws IOException
+   {
+      try
+      {
+         for (WorkingTreeWatcher watcher : watchers.values())
+            watcher.watchService.close();
+      }
+      finally
+      {
+         watchers.clear();
+      }
+   }
+
+   /**
+    * Returns the paths changed since the working tree matched the given snapshot tree. Paths are relative to the
+    * working tree and may denote directories.
+    *
+    * @param historyTree tree the history branch currently points to
+    * @return the changed paths, or null if they are not known and the whole working tree has to be scanned
+    */
+   public Set<String> getDirtyPaths(ObjectId historyTree)
+   {
+      boolean synced = sync();
+      synchronized (lock)
+      {
+         if (!synced || !complete || cleanTree == null || !cleanTree.equals(historyTree))
+            return null;
+         return Collections.unmodifiableSet(new HashSet<String>(dirtyPaths));
+      }
+   }
+
+   /**
+    * Tells the watcher the working tree was stored as the given tree.
+    *
+    * @param storedPaths the dirty paths which were stored, or null if the whole working tree was scanned
+    */
+   public void markClean(ObjectId snapshotTree, Set<String> storedPaths)
+   {
+      // the events caused by storing the snapshot itself (e.g. checkouts) must not show up as changes
+      boolean synced = sync();
+      synchronized (lock)
+      {
+         if (storedPaths == null)
+            dirtyPaths.clear();
+         else
+            dirtyPaths.removeAll(storedPaths);
+
+         cleanTree = snapshotTree.copy();
+         complete = synced;
+      }
+   }
+
+   /**
+    * Forgets what is known about the working tree, the next snapshot scans it completely.
+    */
+   public void invalidate()
+   {
+      synchronized (lock)
+      {
+         complete = false;
+         cleanTree = null;
+      }
+   }
+
+   /**
+    * Waits until every file system event which happened before this call has been processed, by creating a marker
+    * file in {@code .git/forge-undo} and waiting for its event.
+    */
+   private boolean sync()
+   {
+      String marker;
+      synchronized (lock)
+      {
+         marker = SYNC_MARKER_PREFIX + (++syncCounter);
+         pendingSyncMarker = marker;
+      }
+
+      File markerFile = syncDirectory.resolve(marker).toFile();
+      try
+      {
+         if (!markerFile.createNewFile())
+            return false;
+      }
+      catch (IOException e)
+      {
+         return false;
+      }
+      finally
+      {
+         markerFile.delete();
+      }
+
+      long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+      synchronized (lock)
+      {
+         try
+         {
+            while (pendingSyncMarker != null)
+            {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+               {
+                  pendingSyncMarker = null;
+                  return false;
+               }
+               lock.wait(remaining);
+            }
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Watches the given directory of the working tree and every directory below it, except the ones git ignores. The
+    * walk follows the same rules as {@code git add .}, tracked directories are watched even when ignored.
+    *
+    * @param start path of the directory relative to the working tree, empty for the whole working tree
+    */
+   private void registerAll(Repository repository, String start) throws IOException
+   {
+      if (start.isEmpty())
+         register(workTree);
+
+      TreeWalk walk = new TreeWalk(repository);
+      try
+      {
+         int indexTree = walk.addTree(new DirCacheIterator(repository.readDirCache()));
+         int workingTree = walk.addTree(new FileTreeIterator(repository));
+         if (!start.isEmpty())
+            walk.setFilter(PathFilter.create(start));
+
+         while (walk.next())
+         {
+            WorkingTreeIterator dir = walk.getTree(workingTree, WorkingTreeIterator.class);
+            if (!walk.isSubtree() || dir == null)
+               continue;
+            if (walk.getTree(indexTree, DirCacheIterator.class) == null && dir.isEntryIgnored())
+               continue;
+
+            // the parents of the start directory are watched already
+            String path = walk.getPathString();
+            if (start.isEmpty() || path.equals(start) || path.startsWith(start + "/"))
+               register(workTree.resolve(path));
+            walk.enterSubtree();
+         }
+      }
+      finally
+      {
+         walk.release();
+      }
+   }
+
+   private void register(Path dir) throws IOException
+   {
+      WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+               StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      synchronized (watchedDirectories)
+      {
+         watchedDirectories.put(key, dir);
+      }
+   }
+
+   private void process(WatchKey key)
+   {
+      Path dir;
+      synchronized (watchedDirectories)
+      {
+         dir = watchedDirectories.get(key);
+      }
+
+      for (WatchEvent<?> event : key.pollEvents())
+      {
+         if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+         {
+            invalidate();
+            continue;
+         }
+
+         if (dir.equals(syncDirectory))
+         {
+            String marker = event.context().toString();
+            synchronized (lock)
+            {
+               if (marker.equals(pendingSyncMarker) && event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+               {
+                  pendingSyncMarker = null;
+                  lock.notifyAll();
+               }
+            }
+            continue;
+         }
+
+         Path child = dir.resolve((Path) event.context());
+         String path = toRepositoryPath(child);
+         if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child))
+         {
+            try
+            {
+               Repository repository = RepositoryPool.acquire(gitDir);
+               try
+               {
+                  registerAll(repository, path);
+               }
+               finally
+               {
+                  RepositoryPool.release(repository);
+               }
+            }
+            catch (IOException e)
+            {
+               invalidate();
+            }
+         }
+
+         synchronized (lock)
+         {
+            dirtyPaths.add(path);
+         }
+      }
+
+      if (!key.reset())
+      {
+         synchronized (watchedDirectories)
+         {
+            watchedDirectories.remove(key);
+         }
+      }
+   }
+
+   private String toRepositoryPath(Path path)
+   {
+      StringBuilder result = new StringBuilder();
+      for (Path element : workTree.relativize(path))
+      {
+         if (result.length() > 0)
+            result.append('/');
+         result.append(element.toString());
+      }
+      return result.toString();
+   }
+
+   private class Poller implements Runnable
+   {
+      @Override
+      public void run()
+      {
+         try
+         {
+            while (true)
+               process(watchService.take());
+         }
+         catch (InterruptedException e)
+         {
+            invalidate();
+         }
+         catch (ClosedWatchServiceException e)
+         {
+            invalidate();
+         }
+      }
+   }
+}
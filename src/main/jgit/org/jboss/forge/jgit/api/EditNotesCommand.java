@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012, Red Hat, Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.jboss.forge.jgit.api;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.forge.jgit.api.errors.ConcurrentRefUpdateException;
+import org.jboss.forge.jgit.api.errors.GitAPIException;
+import org.jboss.forge.jgit.api.errors.JGitInternalException;
+import org.jboss.forge.jgit.lib.AnyObjectId;
+import org.jboss.forge.jgit.lib.CommitBuilder;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.ObjectInserter;
+import org.jboss.forge.jgit.lib.PersonIdent;
+import org.jboss.forge.jgit.lib.Ref;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.notes.NoteMap;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.revwalk.RevWalk;
+
+/**
+ * Adds, replaces and removes the notes of many objects at once.
+ * <p>
+ * Unlike {@link AddNoteCommand} and {@link RemoveNoteCommand}, which read and
+ * write the whole note map for a single note, this command reads the note map
+ * once, applies all edits and writes one tree and one commit on the notes ref.
+ *
+ * @see <a href="http://www.kernel.org/pub/software/scm/git/docs/git-notes.html"
+ *      >Git documentation about Notes</a>
+ */
+public class EditNotesCommand extends GitCommand<RevCommit> {
+
+	private final Map<ObjectId, String> edits = new LinkedHashMap<ObjectId, String>();
+
+	private String notesRef = Constants.R_NOTES_COMMITS;
+
+	private String message = "Notes added by 'git notes add'";
+
+	/**
+	 * @param repo
+	 */
+	protected EditNotesCommand(Repository repo) {
+		super(repo);
+	}
+
+	/**
+	 * @return the new commit on the notes ref, or null if there was nothing
+	 *         to edit
+	 * @throws ConcurrentRefUpdateException
+	 *             if the notes ref was moved by someone else in the meantime
+	 */
+	public RevCommit call() throws GitAPIException {
+		checkCallable();
+		setCallable(false);
+		if (edits.isEmpty())
+			return null;
+
+		RevWalk walk = new RevWalk(repo);
+		ObjectInserter inserter = repo.newObjectInserter();
+		try {
+			Ref ref = repo.getRef(notesRef);
+			RevCommit notesCommit = null;
+			NoteMap map = NoteMap.newEmptyMap();
+			if (ref != null) {
+				notesCommit = walk.parseCommit(ref.getObjectId());
+				map = NoteMap.read(walk.getObjectReader(), notesCommit);
+			}
+
+			for (Map.Entry<ObjectId, String> edit : edits.entrySet())
+				map.set(edit.getKey(), edit.getValue(), inserter);
+
+			CommitBuilder builder = new CommitBuilder();
+			builder.setTreeId(map.writeTree(inserter));
+			builder.setAuthor(new PersonIdent(repo));
+			builder.setCommitter(builder.getAuthor());
+			builder.setMessage(message);
+			if (notesCommit != null)
+				builder.setParentIds(notesCommit);
+			ObjectId commit = inserter.insert(builder);
+			inserter.flush();
+
+			RefUpdate refUpdate = repo.updateRef(notesRef);
+			if (notesCommit != null)
+				refUpdate.setExpectedOldObjectId(notesCommit);
+			else
+				refUpdate.setExpectedOldObjectId(ObjectId.zeroId());
+			refUpdate.setNewObjectId(commit);
+			RefUpdate.Result result = refUpdate.update(walk);
+			switch (result) {
+			case NEW:
+			case FAST_FORWARD:
+				return walk.parseCommit(commit);
+			default:
+				throw new ConcurrentRefUpdateException(
+						"Could not update " + notesRef, refUpdate.getRef(),
+						result);
+			}
+		} catch (IOException e) {
+			throw new JGitInternalException(e.getMessage(), e);
+		} finally {
+			inserter.release();
+			walk.release();
+		}
+	}
+
+	/**
+	 * Sets the note of an object, replacing an existing note.
+	 *
+	 * @param id
+	 *            the object to annotate
+	 * @param note
+	 *            the note message, null to remove the note
+	 * @return {@code this}
+	 */
+	public EditNotesCommand setNote(AnyObjectId id, String note) {
+		checkCallable();
+		edits.put(id.copy(), note);
+		return this;
+	}
+
+	/**
+	 * Removes the note of an object, if it has one.
+	 *
+	 * @param id
+	 * @return {@code this}
+	 */
+	public EditNotesCommand removeNote(AnyObjectId id) {
+		return setNote(id, null);
+	}
+
+	/**
+	 * @param message
+	 *            the message of the commit on the notes ref
+	 * @return {@code this}
+	 */
+	public EditNotesCommand setMessage(String message) {
+		checkCallable();
+		this.message = message;
+		return this;
+	}
+
+	/**
+	 * @param notesRef
+	 *            the ref to edit the notes of. Note, the default value of
+	 *            {@link Constants#R_NOTES_COMMITS} will be used if nothing is
+	 *            set
+	 * @return {@code this}
+	 *
+	 * @see Constants#R_NOTES_COMMITS
+	 */
+	public EditNotesCommand setNotesRef(String notesRef) {
+		checkCallable();
+		this.notesRef = notesRef;
+		return this;
+	}
+
+}
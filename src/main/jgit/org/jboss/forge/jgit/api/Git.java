@@ -463,6 +463,15 @@ public class Git {
 		return new RemoveNoteCommand(repo);
 	}
 
+	/**
+	 * Returns a command to add, replace and remove many notes in one commit
+	 *
+	 * @return a {@link EditNotesCommand}
+	 */
+	public EditNotesCommand notesEdit() {
+		return new EditNotesCommand(repo);
+	}
+
 	/**
 	 * Returns a command to list all notes
 	 *
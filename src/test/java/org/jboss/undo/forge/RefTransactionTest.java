@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.api.ResetCommand.ResetType;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.RefUpdate;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.util.FileUtils;
+import org.jboss.forge.jgit.util.IO;
+import org.jboss.forge.jgit.util.RawParseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RefTransactionTest
+{
+   private static final String MASTER = Constants.R_HEADS + "master";
+   private static final String OTHER_REF = "refs/forge-undo/test";
+
+   private File root = null;
+   private Git git = null;
+   private Repository repository = null;
+   private RevCommit before = null;
+   private RevCommit after = null;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      root = File.createTempFile("ref-transaction", "");
+      root.delete();
+      git = Git.init().setDirectory(root).call();
+      repository = git.getRepository();
+
+      write("a.txt", "1");
+      write("b.txt", "1");
+      git.add().addFilepattern(".").call();
+      before = git.commit().setMessage("before").call();
+
+      write("a.txt", "2");
+      write("b.txt", "2");
+      git.add().addFilepattern(".").call();
+      after = git.commit().setMessage("after").call();
+
+      // the operation to recover moves master and creates OTHER_REF, both to the second commit
+      git.reset().setMode(ResetType.HARD).setRef(before.name()).call();
+   }
+
+   @After
+   public void destroy() throws Exception
+   {
+      repository.close();
+      FileUtils.delete(root, FileUtils.RECURSIVE);
+      root = null;
+      git = null;
+      repository = null;
+   }
+
+   @Test
+   public void shouldNotRewriteWorkingTreeWhenRefsArePublished() throws Exception
+   {
+      planOperation();
+      move(MASTER, after);
+      move(OTHER_REF, after);
+
+      Assert.assertTrue("the interrupted operation should be found", RefTransaction.recover(repository));
+      Assert.assertFalse("the recovery file should be removed", getRecoveryFile().exists());
+      Assert.assertEquals("master should stay where it is", after, repository.getRef(MASTER).getObjectId());
+      Assert.assertEquals("a.txt should not be rewritten", "1", read("a.txt"));
+      Assert.assertEquals("b.txt should not be rewritten", "1", read("b.txt"));
+   }
+
+   @Test
+   public void shouldFinishPartlyPublishedOperationWithoutOverwritingEdits() throws Exception
+   {
+      planOperation();
+      write("a.txt", "2");
+      write("b.txt", "edited");
+      move(MASTER, after);
+
+      Assert.assertTrue("the interrupted operation should be found", RefTransaction.recover(repository));
+      Assert.assertEquals("master should stay where it is", after, repository.getRef(MASTER).getObjectId());
+      Assert.assertEquals("the pending ref should be moved", after, repository.getRef(OTHER_REF).getObjectId());
+      Assert.assertEquals("a.txt should keep the new content", "2", read("a.txt"));
+      Assert.assertEquals("the edited file should be left alone", "edited", read("b.txt"));
+   }
+
+   @Test
+   public void shouldFinishUnpublishedOperationWithoutOverwritingEdits() throws Exception
+   {
+      planOperation();
+      write("b.txt", "edited");
+
+      Assert.assertTrue("the interrupted operation should be found", RefTransaction.recover(repository));
+      Assert.assertEquals("master should be moved", after, repository.getRef(MASTER).getObjectId());
+      Assert.assertEquals("the other ref should be moved", after, repository.getRef(OTHER_REF).getObjectId());
+      Assert.assertEquals("the unchanged file should be rewritten", "2", read("a.txt"));
+      Assert.assertEquals("the edited file should be left alone", "edited", read("b.txt"));
+      Assert.assertTrue("a reflog message should tell about the recovery", repository.getReflogReader(MASTER)
+               .getLastEntry().getComment().endsWith("(recovered)"));
+   }
+
+   @Test
+   public void shouldDropOperationWhoseObjectsAreMissing() throws Exception
+   {
+      ObjectId missing = ObjectId.fromString("0123456789012345678901234567890123456789");
+      RefTransaction transaction = new RefTransaction(repository, "forge-undo: test");
+      transaction.checkout(before.getTree(), missing);
+      transaction.update(MASTER, missing);
+      transaction.writeRecoveryFile(getRecoveryFile());
+
+      Assert.assertTrue("the interrupted operation should be found", RefTransaction.recover(repository));
+      Assert.assertFalse("the recovery file should be removed", getRecoveryFile().exists());
+      Assert.assertEquals("master should not be moved", before, repository.getRef(MASTER).getObjectId());
+      Assert.assertEquals("the working tree should not be touched", "1", read("a.txt"));
+   }
+
+   @Test
+   public void shouldRollBackWhenRefCannotBeMoved() throws Exception
+   {
+      RefTransaction transaction = new RefTransaction(repository, "forge-undo: test");
+      transaction.checkout(before.getTree(), after.getTree());
+      transaction.update(MASTER, after);
+      transaction.update(OTHER_REF, after);
+
+      File lock = new File(repository.getDirectory(), OTHER_REF + ".lock");
+      lock.getParentFile().mkdirs();
+      lock.createNewFile();
+      try
+      {
+         transaction.commit();
+         Assert.fail("the locked ref should fail the transaction");
+      }
+      catch (IOException e)
+      {
+      }
+      finally
+      {
+         lock.delete();
+      }
+
+      Assert.assertFalse("the recovery file should be removed", getRecoveryFile().exists());
+      Assert.assertEquals("master should be moved back", before, repository.getRef(MASTER).getObjectId());
+      Assert.assertNull("the other ref should not exist", repository.getRef(OTHER_REF));
+      Assert.assertEquals("the working tree should be restored", "1", read("a.txt"));
+   }
+
+   @Test
+   public void shouldRefuseToCommitWhileOperationIsPending() throws Exception
+   {
+      planOperation();
+      RefTransaction transaction = new RefTransaction(repository, "forge-undo: next");
+      transaction.checkout(before.getTree(), after.getTree());
+      transaction.update(MASTER, after);
+      try
+      {
+         transaction.commit();
+         Assert.fail("a pending operation should fail the transaction");
+      }
+      catch (IOException e)
+      {
+      }
+
+      Assert.assertTrue("the pending operation should be kept for recovery", getRecoveryFile().exists());
+      Assert.assertEquals("master should not be moved", before, repository.getRef(MASTER).getObjectId());
+      Assert.assertEquals("the working tree should not be touched", "1", read("a.txt"));
+   }
+
+   private void planOperation() throws IOException
+   {
+      RefTransaction transaction = new RefTransaction(repository, "forge-undo: test");
+      transaction.checkout(before.getTree(), after.getTree());
+      transaction.update(MASTER, after);
+      transaction.update(OTHER_REF, after);
+      transaction.writeRecoveryFile(getRecoveryFile());
+   }
+
+   private void move(String refName, ObjectId id) throws IOException
+   {
+      RefUpdate update = repository.updateRef(refName);
+      update.setNewObjectId(id);
+      update.forceUpdate();
+   }
+
+   private File getRecoveryFile()
+   {
+      File file = new File(repository.getDirectory(), RefTransaction.RECOVERY_FILE);
+      file.getParentFile().mkdirs();
+      return file;
+   }
+
+   private void write(String path, String content) throws IOException
+   {
+      FileWriter writer = new FileWriter(new File(root, path));
+      writer.write(content);
+      writer.close();
+   }
+
+   private String read(String path) throws IOException
+   {
+      return RawParseUtils.decode(IO.readFully(new File(root, path)));
+   }
+}
@@ -16,6 +16,7 @@
 
 package org.jboss.undo.forge;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -26,6 +27,7 @@ import org.jboss.forge.jgit.lib.RepositoryBuilder;
 import org.jboss.forge.project.Project;
 import org.jboss.forge.test.AbstractShellTest;
 import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.undo.forge.RepositoryCommitsMonitor.BranchChange;
 import org.jboss.undo.forge.RepositoryCommitsMonitor.RepositoryCommitState;
 import org.junit.After;
 import org.junit.Assert;
@@ -208,6 +210,36 @@ public class RepositoryCommitsMonitorTest extends AbstractShellTest
       verifyMultipleChanges();
    }
 
+   @Test
+   public void testNewBranchWithOneCommit() throws Exception
+   {
+      monitor.updateCommitCounters(git);
+
+      git.branchCreate().setName(BRANCH_TWO).call();
+      git.checkout().setName(BRANCH_TWO).call();
+      commitNewFile(FILENAMES[0]);
+      git.checkout().setName(BRANCH_MASTER).call();
+
+      state = monitor.updateCommitCounters(git);
+      verifyOneChangeOnBranch(BRANCH_TWO);
+      Assert.assertEquals(BranchChange.CREATED_WITH_ONE_COMMIT, monitor.getBranchChanges().get(BRANCH_TWO));
+   }
+
+   @Test
+   public void testNewBranchWithTwoCommits() throws Exception
+   {
+      monitor.updateCommitCounters(git);
+
+      git.branchCreate().setName(BRANCH_TWO).call();
+      git.checkout().setName(BRANCH_TWO).call();
+      commitNewFile(FILENAMES[0]);
+      commitNewFile(FILENAMES[1]);
+      git.checkout().setName(BRANCH_MASTER).call();
+
+      state = monitor.updateCommitCounters(git);
+      verifyMultipleChanges();
+   }
+
    @Test
    public void testMerge() throws Exception
    {
@@ -268,6 +300,21 @@ public class RepositoryCommitsMonitorTest extends AbstractShellTest
       verifyMultipleChanges();
    }
 
+   @Test
+   public void testBranchTipsSurviveRestart() throws Exception
+   {
+      File tipsFile = new File(git.getRepository().getDirectory(), "forge-undo/branch-tips");
+      monitor.setBranchTipsFile(tipsFile);
+      monitor.updateCommitCounters(git);
+      Assert.assertTrue("branch tips should be stored", tipsFile.isFile());
+
+      commitNewFile(FILENAMES[0]);
+      monitor = new RepositoryCommitsMonitor();
+      monitor.setBranchTipsFile(tipsFile);
+      state = monitor.updateCommitCounters(git);
+      verifyOneChangeOnBranch(BRANCH_MASTER);
+   }
+
    private Git getGit(Project project) throws IOException
    {
       RepositoryBuilder db = new RepositoryBuilder().findGitDir(project.getProjectRoot().getUnderlyingResourceObject());
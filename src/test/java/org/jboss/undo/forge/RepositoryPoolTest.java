@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.util.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepositoryPoolTest
+{
+   private final List<File> gitDirs = new ArrayList<File>();
+   private File root = null;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      RepositoryPool.clear();
+      root = File.createTempFile("repository-pool", "");
+      root.delete();
+      for (int i = 0; i <= RepositoryPool.MAX_OPEN; i++)
+      {
+         Git git = Git.init().setDirectory(new File(root, "repo" + i)).call();
+         gitDirs.add(git.getRepository().getDirectory());
+         git.getRepository().close();
+      }
+   }
+
+   @After
+   public void destroy() throws Exception
+   {
+      RepositoryPool.clear();
+      gitDirs.clear();
+      FileUtils.delete(root, FileUtils.RECURSIVE);
+      root = null;
+   }
+
+   @Test
+   public void shouldShareOneRepositoryPerGitDirectory() throws Exception
+   {
+      Repository repository = RepositoryPool.get(gitDirs.get(0));
+      Assert.assertSame("the same repository should be returned", repository, RepositoryPool.get(gitDirs.get(0)));
+      Assert.assertSame("acquire should return the open repository", repository,
+               RepositoryPool.acquire(gitDirs.get(0)));
+      RepositoryPool.release(repository);
+      Assert.assertEquals("one repository should be open", 1, RepositoryPool.size());
+   }
+
+   @Test
+   public void shouldKeepAcquiredRepositoryUntilLastRelease() throws Exception
+   {
+      Repository repository = RepositoryPool.acquire(gitDirs.get(0));
+      RepositoryPool.acquire(gitDirs.get(0));
+
+      RepositoryPool.release(repository);
+      RepositoryPool.sweep(afterIdleTimeout());
+      Assert.assertSame("a repository acquired twice should stay open after one release", repository,
+               RepositoryPool.get(gitDirs.get(0)));
+
+      RepositoryPool.release(repository);
+      RepositoryPool.sweep(afterIdleTimeout());
+      Assert.assertEquals("a released repository should be closed once idle", 0, RepositoryPool.size());
+      Assert.assertNotSame("a closed repository should be opened again", repository,
+               RepositoryPool.get(gitDirs.get(0)));
+   }
+
+   @Test
+   public void shouldEvictLeastRecentlyUsedBeyondMaxOpen() throws Exception
+   {
+      Repository acquired = RepositoryPool.acquire(gitDirs.get(0));
+      try
+      {
+         Repository oldest = RepositoryPool.get(gitDirs.get(1));
+         for (int i = 2; i < gitDirs.size(); i++)
+            RepositoryPool.get(gitDirs.get(i));
+
+         Assert.assertEquals("at most MAX_OPEN repositories should be open", RepositoryPool.MAX_OPEN,
+                  RepositoryPool.size());
+         Assert.assertSame("the acquired repository should not be evicted", acquired,
+                  RepositoryPool.get(gitDirs.get(0)));
+         Assert.assertNotSame("the least recently used repository should be evicted", oldest,
+                  RepositoryPool.get(gitDirs.get(1)));
+      }
+      finally
+      {
+         RepositoryPool.release(acquired);
+      }
+   }
+
+   @Test
+   public void shouldCloseIdleRepositoriesInSweep() throws Exception
+   {
+      RepositoryPool.get(gitDirs.get(0));
+      RepositoryPool.get(gitDirs.get(1));
+
+      RepositoryPool.sweep(System.currentTimeMillis());
+      Assert.assertEquals("repositories used just now should stay open", 2, RepositoryPool.size());
+
+      RepositoryPool.sweep(afterIdleTimeout());
+      Assert.assertEquals("idle repositories should be closed", 0, RepositoryPool.size());
+   }
+
+   private static long afterIdleTimeout()
+   {
+      return System.currentTimeMillis() + RepositoryPool.IDLE_TIMEOUT_MILLIS + 1;
+   }
+}
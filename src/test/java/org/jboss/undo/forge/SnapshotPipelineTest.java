@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.forge.jgit.util.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotPipelineTest
+{
+   private File gitDir = null;
+   private final List<List<String>> captured = Collections.synchronizedList(new ArrayList<List<String>>());
+   private final CountDownLatch failed = new CountDownLatch(1);
+   private volatile int failures = 0;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      gitDir = new File(File.createTempFile("snapshot-pipeline", ""), ".git");
+      gitDir.getParentFile().delete();
+      gitDir.mkdirs();
+   }
+
+   @After
+   public void destroy() throws Exception
+   {
+      FileUtils.delete(gitDir.getParentFile(), FileUtils.RECURSIVE);
+      gitDir = null;
+   }
+
+   @Test
+   public void shouldStoreBurstOfCommandsAsOneSnapshot() throws Exception
+   {
+      SnapshotPipeline pipeline = SnapshotPipeline.start(gitDir, new RecordingTask());
+
+      // a script is running, its lines are not stored one by one
+      SnapshotPipeline.commandStarting(gitDir);
+      pipeline.submit("first");
+      pipeline.submit("second");
+      SnapshotPipeline.commandFinished(gitDir);
+      pipeline.awaitDrained();
+
+      Assert.assertEquals("the burst should be stored once", 1, captured.size());
+      Assert.assertEquals("wrong commands", Arrays.asList("first", "second"), captured.get(0));
+   }
+
+   @Test
+   public void shouldReportFailureOnceAndKeepNextSnapshot() throws Exception
+   {
+      failures = 1;
+      SnapshotPipeline pipeline = SnapshotPipeline.start(gitDir, new RecordingTask());
+
+      pipeline.submit("failing");
+      Assert.assertTrue("the snapshot should be attempted", failed.await(10, TimeUnit.SECONDS));
+      // the worker stores under the gate, once a command passes it the failure is recorded
+      SnapshotPipeline.commandStarting(gitDir);
+      SnapshotPipeline.commandFinished(gitDir);
+      try
+      {
+         pipeline.submit("next");
+         Assert.fail("the failed snapshot should be reported");
+      }
+      catch (RuntimeException e)
+      {
+      }
+
+      pipeline.awaitDrained();
+      Assert.assertEquals("the command after the failure should be stored", Arrays.asList("next"),
+               captured.get(captured.size() - 1));
+   }
+
+   @Test
+   public void shouldReportFailureWhenDrained() throws Exception
+   {
+      failures = 1;
+      SnapshotPipeline pipeline = SnapshotPipeline.start(gitDir, new RecordingTask());
+
+      pipeline.submit("failing");
+      try
+      {
+         pipeline.awaitDrained();
+         Assert.fail("the failed snapshot should be reported");
+      }
+      catch (RuntimeException e)
+      {
+      }
+
+      // reported once only
+      pipeline.awaitDrained();
+   }
+
+   private class RecordingTask implements SnapshotPipeline.SnapshotTask
+   {
+      @Override
+      public void capture(List<String> commandNames) throws Exception
+      {
+         if (failures > 0)
+         {
+            failures--;
+            failed.countDown();
+            throw new Exception("failed on purpose");
+         }
+         captured.add(new ArrayList<String>(commandNames));
+      }
+   }
+}
@@ -16,15 +16,21 @@
 
 package org.jboss.undo.forge;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.inject.Inject;
+
 import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.forge.env.Configuration;
 import org.jboss.forge.jgit.api.Git;
 import org.jboss.forge.jgit.api.errors.ConcurrentRefUpdateException;
 import org.jboss.forge.jgit.api.errors.GitAPIException;
@@ -33,6 +39,8 @@ import org.jboss.forge.jgit.api.errors.NoHeadException;
 import org.jboss.forge.jgit.api.errors.NoMessageException;
 import org.jboss.forge.jgit.api.errors.UnmergedPathsException;
 import org.jboss.forge.jgit.api.errors.WrongRepositoryStateException;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
 import org.jboss.forge.jgit.lib.RepositoryBuilder;
 import org.jboss.forge.jgit.revwalk.RevCommit;
 import org.jboss.forge.parser.java.util.Strings;
@@ -71,6 +79,12 @@ public class UndoFacetMultipleOpsTest extends AbstractShellTest
    private static FileResource<?> file = null;
    private static String dirPath = null;
 
+   @Inject
+   private Configuration config;
+
+   @Inject
+   private UndoFacet secondFacet;
+
    @Before
    public void setUp() throws Exception
    {
@@ -403,6 +417,536 @@ public class UndoFacetMultipleOpsTest extends AbstractShellTest
       undoRestore(false);
    }
 
+   @Test
+   public void shouldUndoTwoChangesAtOnce() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+      executeForgeCommand(FILENAMES[2]);
+
+      boolean isRestored = myProject.getFacet(UndoFacet.class).undoLastChanges(2);
+      Assert.assertTrue("last two changes should be restored", isRestored);
+      verifyFilesExistance(true, false, false);
+      verifyCommitNumber(1);
+   }
+
+   @Test
+   public void shouldUndoChangesUpToGivenCommit() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+      executeForgeCommand(FILENAMES[2]);
+
+      List<RevCommit> stored = myProject.getFacet(UndoFacet.class).getStoredCommitsOnHistoryBranch();
+      String secondCommitId = stored.get(1).getId().abbreviate(7).name();
+
+      boolean isRestored = myProject.getFacet(UndoFacet.class).undoChangesUpTo(secondCommitId);
+      Assert.assertTrue("changes up to the second one should be restored", isRestored);
+      verifyFilesExistance(true, false, false);
+      verifyCommitNumber(1);
+   }
+
+   @Test
+   public void shouldRejectUnknownIdsAndCounts() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      try
+      {
+         undoFacet.undoChangesUpTo("0000000");
+         Assert.fail("an unknown id should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+      try
+      {
+         undoFacet.undoLastChanges(0);
+         Assert.fail("a count below 1 should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+      verifyFilesExistance(true, true, false);
+      verifyCommitNumber(2);
+
+      String firstCommitId = undoFacet.getStoredCommitsOnHistoryBranch().get(1).getId().name();
+      Assert.assertTrue("changes up to a full id should be restored", undoFacet.undoChangesUpTo(firstCommitId));
+      verifyFilesExistance(false, false, false);
+   }
+
+   @Test
+   public void shouldUndoChangesOutsideOfModuleWithTheirCommand() throws Exception
+   {
+      DirectoryResource moduleDir = dir.getOrCreateChildDirectory("module");
+      getShell().setCurrentResource(moduleDir);
+      queueInputLines("y");
+      getShell().execute("new-project --named module --topLevelPackage com.test.module");
+      Project module = getProject();
+      Assert.assertEquals("the module should be the current project", moduleDir.getFullyQualifiedName(), module
+               .getProjectRoot().getFullyQualifiedName());
+      getShell().execute("undo setup");
+
+      UndoFacet moduleFacet = module.getFacet(UndoFacet.class);
+      Assert.assertNull("module scope should be off by default", moduleFacet.getModulePath());
+
+      File outside = new File(dirPath, "outside.txt");
+      FileWriter writer = new FileWriter(outside);
+      writer.write("changed outside of the module");
+      writer.close();
+      getShell().execute(COMMAND_NAME + " inside.txt");
+
+      Assert.assertTrue("undo should succeed", moduleFacet.undoLastChange());
+      Assert.assertFalse("the change inside the module should be undone", moduleDir.getChild("inside.txt").exists());
+      Assert.assertFalse("the change outside the module should be undone with its command", outside.exists());
+
+      config.setProperty(UndoFacet.MODULE_SCOPE_CONFIG_KEY, true);
+      try
+      {
+         Assert.assertEquals("wrong module path", "module", moduleFacet.getModulePath());
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.MODULE_SCOPE_CONFIG_KEY);
+         getShell().setCurrentResource(dir);
+      }
+   }
+
+   @Test
+   public void shouldShareHistoryBetweenFacetsOfOneRepository() throws Exception
+   {
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      secondFacet.setProject(myProject);
+      Assert.assertEquals("both facets should start from the same branch tips", undoFacet.getCommitMonitorState(),
+               secondFacet.getCommitMonitorState());
+
+      executeForgeCommand(FILENAMES[0]);
+      gitCommitAll();
+      Assert.assertEquals("the first facet should see the new commit", RepositoryCommitState.ONE_NEW_COMMIT,
+               undoFacet.checkAndUpdateRepositoryForNewCommits());
+      Assert.assertEquals("the second facet should not see the same commit again", RepositoryCommitState.NO_CHANGES,
+               secondFacet.checkAndUpdateRepositoryForNewCommits());
+
+      executeForgeCommand(FILENAMES[1]);
+      List<RevCommit> stored = undoFacet.getStoredCommitsOnHistoryBranch();
+      Assert.assertEquals("both facets should list the same changes", stored,
+               secondFacet.getStoredCommitsOnHistoryBranch());
+
+      Assert.assertTrue("the second facet should undo the change stored by the first", secondFacet.undoLastChange());
+      verifyFilesExistance(true, false);
+      Assert.assertEquals("the first facet should see the undo", stored.subList(1, stored.size()),
+               undoFacet.getStoredCommitsOnHistoryBranch());
+   }
+
+   @Test
+   public void shouldListStoredChangesPageByPage() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+      executeForgeCommand(FILENAMES[2]);
+      executeForgeCommand(FILENAMES[3]);
+      undoRestore(true);
+
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      List<RevCommit> stored = undoFacet.getStoredCommitsOnHistoryBranch();
+      Assert.assertEquals("the undone change should not be listed", 3, stored.size());
+
+      Assert.assertEquals("wrong first page", stored.subList(0, 2), listStoredCommits(undoFacet, 0, 2));
+      Assert.assertEquals("wrong last page", stored.subList(2, 3), listStoredCommits(undoFacet, 2, 2));
+      Assert.assertEquals("a page past the end should be empty", 0, listStoredCommits(undoFacet, 3, 2).size());
+      Assert.assertEquals("a large limit should list everything", stored,
+               listStoredCommits(undoFacet, 0, Integer.MAX_VALUE));
+
+      try
+      {
+         listStoredCommits(undoFacet, 0, 0);
+         Assert.fail("a limit below 1 should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+      try
+      {
+         listStoredCommits(undoFacet, -1, 2);
+         Assert.fail("a negative skip should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   @Test
+   public void shouldRedoLastUndo() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      Assert.assertTrue("last change should be restored", undoFacet.undoLastChange());
+      verifyFilesExistance(true, false, false);
+
+      Assert.assertTrue("last undo should be redone", undoFacet.redoLastUndo());
+      verifyFilesExistance(true, true, false);
+      verifyCommitNumber(2);
+      Assert.assertFalse("there should be nothing left to redo", undoFacet.redoLastUndo());
+   }
+
+   @Test
+   public void shouldNotRedoAfterNewCommand() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      Assert.assertTrue("last change should be restored", undoFacet.undoLastChange());
+      executeForgeCommand(FILENAMES[2]);
+
+      Assert.assertFalse("new command should drop the redo history", undoFacet.redoLastUndo());
+      verifyFilesExistance(true, false, true);
+   }
+
+   @Test
+   public void shouldNotRedoAfterManualEdit() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      Assert.assertTrue("last change should be restored", undoFacet.undoLastChange());
+      dir.getChild(FILENAMES[0]).reify(FileResource.class).setContents("edited");
+
+      Assert.assertFalse("an edit after the undo should drop the redo history", undoFacet.redoLastUndo());
+      verifyFilesExistance(true, false, false);
+   }
+
+   @Test
+   public void shouldSquashEntriesBeyondMaxEntries() throws Exception
+   {
+      config.setProperty(UndoFacet.MAX_ENTRIES_CONFIG_KEY, 2);
+      try
+      {
+         executeForgeCommand(FILENAMES[0]);
+         executeForgeCommand(FILENAMES[1]);
+         executeForgeCommand(FILENAMES[2]);
+
+         boolean isCompacted = myProject.getFacet(UndoFacet.class).compactHistory();
+         Assert.assertTrue("the oldest change should be squashed", isCompacted);
+         verifyFilesExistance(true, true, true);
+         verifyCommitNumber(2);
+
+         undoRestore(true);
+         undoRestore(true);
+         undoRestore(false);
+         verifyFilesExistance(true, false, false);
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.MAX_ENTRIES_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldScanAfterReadOnlyCommandsOnlyWhenAskedTo() throws Exception
+   {
+      UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+      Assert.assertFalse("read-only commands should be scanned by default", undoFacet.skipsReadOnlyCommands());
+
+      config.setProperty(UndoFacet.SKIP_READ_ONLY_COMMANDS_CONFIG_KEY, true);
+      try
+      {
+         Assert.assertTrue("the flag should be read from the configuration", undoFacet.skipsReadOnlyCommands());
+
+         File workTree = dir.getUnderlyingResourceObject();
+         File index = new File(new File(workTree, Constants.DOT_GIT), "index");
+         CommandProfile profile = undoFacet.getCommandProfile();
+         for (int i = 0; i < CommandProfile.MIN_CLEAN_RUNS; i++)
+            profile.recordRun(Arrays.asList("ls"), false);
+
+         profile.commandStarting(workTree, index);
+         Assert.assertTrue("a command which never changed anything should be skipped", profile.isReadOnly("ls"));
+
+         profile.recordRun(Arrays.asList("ls"), true);
+         profile.commandStarting(workTree, index);
+         Assert.assertFalse("a command which changed something should be scanned", profile.isReadOnly("ls"));
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.SKIP_READ_ONLY_COMMANDS_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldStoreBackgroundSnapshotsBeforeListingAndUndo() throws Exception
+   {
+      config.setProperty(UndoFacet.ASYNC_CAPTURE_CONFIG_KEY, true);
+      try
+      {
+         UndoFacet undoFacet = myProject.getFacet(UndoFacet.class);
+         File gitDir = getGit(myProject).getRepository().getDirectory();
+
+         // the commands of a running script form one burst
+         SnapshotPipeline.commandStarting(gitDir);
+         executeForgeCommand(FILENAMES[0]);
+         executeForgeCommand(FILENAMES[1]);
+         SnapshotPipeline.commandFinished(gitDir);
+         Assert.assertEquals("the burst should be stored as one change once listed", 1, undoFacet
+                  .getStoredCommitsOnHistoryBranch().size());
+
+         executeForgeCommand(FILENAMES[2]);
+         undoRestore(true);
+         verifyFilesExistance(true, true, false);
+         undoRestore(true);
+         verifyFilesExistance(false, false, false);
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.ASYNC_CAPTURE_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldLeaveIndexUntouchedInDirectMode() throws Exception
+   {
+      config.setProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY, "direct");
+      try
+      {
+         verifyIndexUntouched();
+         Git repo = getGit(myProject);
+         Assert.assertTrue("private index should be written", new File(repo.getRepository().getDirectory(),
+                  HistorySnapshotWriter.PRIVATE_INDEX).isFile());
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldLeaveIndexUntouchedInStashMode() throws Exception
+   {
+      verifyIndexUntouched();
+   }
+
+   @Test
+   public void shouldKeepNotesOutOfDefaultNotesRef() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+
+      Git git = getGit(myProject);
+      Assert.assertNotNull("undo notes should be stored under their own ref",
+               git.getRepository().getRef(UndoFacet.NOTES_REF));
+      Assert.assertNull("default notes ref should not be used", git.getRepository().getRef(Constants.R_NOTES_COMMITS));
+      verifyNotes(UndoFacet.DEFAULT_NOTE);
+   }
+
+   @Test
+   public void shouldRecordPhaseTimings() throws Exception
+   {
+      UndoStats stats = UndoStats.get();
+      stats.reset();
+
+      executeForgeCommand(FILENAMES[0]);
+      undoRestore(true);
+
+      Assert.assertEquals("capture should be timed", 1, stats.getHistogram(UndoStats.Phase.CAPTURE).getCount());
+      Assert.assertEquals("undo should be timed", 1, stats.getHistogram(UndoStats.Phase.UNDO).getCount());
+      Assert.assertTrue("notes should be timed", stats.getHistogram(UndoStats.Phase.NOTES).getCount() > 0);
+   }
+
+   @Test
+   public void shouldStoreGroupAsOneChange() throws Exception
+   {
+      getShell().execute("undo begin-group --name both");
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+      verifyCommitNumber(0);
+      getShell().execute("undo end-group");
+      verifyFilesExistance(true, true);
+
+      commitMsgs = extractCommitMsgs(myProject.getFacet(UndoFacet.class).getStoredCommitsOnHistoryBranch());
+      Assert.assertEquals("number of commit don't match", 1, commitMsgs.size());
+      Assert.assertTrue("group label is missing", commitMsgs.get(0).startsWith(
+               UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + Strings.enquote("both") + " group"));
+
+      undoRestore(true);
+      verifyFilesExistance(false, false, false);
+   }
+
+   @Test
+   public void shouldStoreScriptAsOneChange() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+
+      // the script lives outside of the project, its own creation is no change of the project
+      File script = File.createTempFile("undo-script", ".fsh");
+      try
+      {
+         FileWriter writer = new FileWriter(script);
+         try
+         {
+            writer.write(COMMAND_NAME + " " + FILENAMES[1] + "\n" + COMMAND_NAME + " " + FILENAMES[2] + "\n");
+         }
+         finally
+         {
+            writer.close();
+         }
+         getShell().execute("run " + script.getAbsolutePath());
+      }
+      finally
+      {
+         script.delete();
+      }
+      verifyFilesExistance(true, true, true);
+
+      commitMsgs = extractCommitMsgs(myProject.getFacet(UndoFacet.class).getStoredCommitsOnHistoryBranch());
+      Assert.assertEquals("number of commit don't match", 2, commitMsgs.size());
+      Assert.assertTrue("script label is missing",
+               commitMsgs.get(0).startsWith(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + "\"run "));
+
+      undoRestore(true);
+      verifyFilesExistance(true, false, false);
+   }
+
+   @Test
+   public void shouldShowStoredChangeAsDiff() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+
+      UndoFacet undo = myProject.getFacet(UndoFacet.class);
+      RevCommit latest = undo.findStoredCommit(null);
+      Assert.assertEquals("latest change should be shown by default",
+               undo.getStoredCommitsOnHistoryBranch().get(0), latest);
+
+      HistoryDiff diff = new HistoryDiff(undo.getGitObject().getRepository());
+      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+      diff.format(latest, patch);
+      Assert.assertTrue("added file should be in the diff", patch.toString("UTF-8").contains("+++ b/" + FILENAMES[1]));
+
+      List<HistoryDiff.FileStat> stat = diff.stat(latest);
+      Assert.assertEquals("one file should be changed", 1, stat.size());
+      Assert.assertEquals("wrong path", FILENAMES[1], stat.get(0).getPath());
+
+      String firstCommitId = undo.getStoredCommitsOnHistoryBranch().get(1).getId().abbreviate(7).name();
+      Assert.assertEquals("wrong file for the given id", FILENAMES[0],
+               diff.stat(undo.findStoredCommit(firstCommitId)).get(0).getPath());
+
+      try
+      {
+         undo.findStoredCommit("0000000");
+         Assert.fail("an unknown id should be rejected");
+      }
+      catch (IllegalArgumentException e)
+      {
+      }
+   }
+
+   @Test
+   public void shouldLeaveLargeFilesOutOfSnapshots() throws Exception
+   {
+      config.setProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY, "direct");
+      config.setProperty(UndoFacet.LARGE_FILE_SIZE_CONFIG_KEY, 10);
+      config.setProperty(UndoFacet.LARGE_FILE_POLICY_CONFIG_KEY, "skip");
+      try
+      {
+         dir.getChild(FILENAMES[0]).reify(FileResource.class).setContents("more than ten bytes");
+         executeForgeCommand(FILENAMES[1]);
+
+         RevCommit latest = myProject.getFacet(UndoFacet.class).findStoredCommit(null);
+         Assert.assertNotNull("small file should be stored", latest);
+         Assert.assertTrue("large file should be listed as not stored", latest.getFullMessage().contains(
+                  HistoryBranchUpdater.SKIPPED_FILES_MSG + "\n" + FILENAMES[0]));
+
+         undoRestore(true);
+         Assert.assertTrue("large file should stay", dir.getChild(FILENAMES[0]).exists());
+         Assert.assertFalse("small file should be reverted", dir.getChild(FILENAMES[1]).exists());
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY);
+         config.clearProperty(UndoFacet.LARGE_FILE_SIZE_CONFIG_KEY);
+         config.clearProperty(UndoFacet.LARGE_FILE_POLICY_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldStoreChangesFoundByStatBaseline() throws Exception
+   {
+      config.setProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY, "direct");
+      config.setProperty(UndoFacet.STAT_BASELINE_CONFIG_KEY, true);
+      try
+      {
+         executeForgeCommand(FILENAMES[0]);
+         executeForgeCommand(FILENAMES[1]);
+         verifyCommitNumber(2);
+         Assert.assertTrue("baseline should be timed",
+                  UndoStats.get().getHistogram(UndoStats.Phase.BASELINE).getCount() > 0);
+
+         undoRestore(true);
+         verifyFilesExistance(true, false);
+      }
+      finally
+      {
+         config.clearProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY);
+         config.clearProperty(UndoFacet.STAT_BASELINE_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldStoreChangesReportedByWatcher() throws Exception
+   {
+      config.setProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY, "direct");
+      config.setProperty(UndoFacet.WATCH_WORKING_TREE_CONFIG_KEY, true);
+      try
+      {
+         executeForgeCommand(FILENAMES[0]);
+
+         // a directory created outside of forge is watched as well, the pool may have closed the repository since
+         RepositoryPool.clear();
+         File outside = new File(dirPath, "watched/deep/outside.txt");
+         outside.getParentFile().mkdirs();
+         FileWriter writer = new FileWriter(outside);
+         writer.write("changed outside of forge");
+         writer.close();
+         executeForgeCommand(FILENAMES[1]);
+         verifyCommitNumber(2);
+
+         undoRestore(true);
+         verifyFilesExistance(true, false);
+         Assert.assertFalse("the change outside of forge should be undone with the command", outside.exists());
+
+         executeForgeCommand(FILENAMES[2]);
+         verifyCommitNumber(2);
+         verifyFilesExistance(true, false, true);
+      }
+      finally
+      {
+         WorkingTreeWatcher.stopAll();
+         config.clearProperty(UndoFacet.CAPTURE_MODE_CONFIG_KEY);
+         config.clearProperty(UndoFacet.WATCH_WORKING_TREE_CONFIG_KEY);
+      }
+   }
+
+   @Test
+   public void shouldPublishRefsWithoutLeavingPendingFile() throws Exception
+   {
+      executeForgeCommand(FILENAMES[0]);
+      executeForgeCommand(FILENAMES[1]);
+      undoRestore(true);
+
+      Git git = getGit(myProject);
+      File pending = new File(git.getRepository().getDirectory(), RefTransaction.RECOVERY_FILE);
+      Assert.assertFalse("no pending ref updates should be left", pending.exists());
+      Assert.assertEquals("HEAD should stay on master", "master", git.getRepository().getBranch());
+      Assert.assertTrue("undo should have one reflog message", git.getRepository()
+               .getReflogReader(Constants.R_HEADS + "master").getLastEntry().getComment()
+               .startsWith("forge-undo: "));
+      Assert.assertFalse("nothing should be left to recover", RefTransaction.recover(git.getRepository()));
+      verifyFilesExistance(true, false);
+   }
+
    // helper methods
    private void executeForgeCommand(String filename)
             throws Exception
@@ -414,6 +958,36 @@ public class UndoFacetMultipleOpsTest extends AbstractShellTest
       getShell().execute(command);
    }
 
+   private List<ObjectId> listStoredCommits(UndoFacet undoFacet, int skip, int limit)
+   {
+      final List<ObjectId> listed = new ArrayList<ObjectId>();
+      undoFacet.visitStoredCommits(skip, limit, new UndoFacet.HistoryVisitor()
+      {
+         @Override
+         public void visit(ObjectId commitId, String note, String shortMessage)
+         {
+            listed.add(commitId);
+         }
+      });
+      return listed;
+   }
+
+   private void verifyIndexUntouched() throws Exception
+   {
+      Git repo = getGit(myProject);
+      dir.getChild(FILENAMES[0]).reify(FileResource.class).setContents("staged");
+      repo.add().addFilepattern(FILENAMES[0]).call();
+      dir.getChild(FILENAMES[0]).reify(FileResource.class).setContents("modified");
+
+      executeForgeCommand(FILENAMES[1]);
+      Assert.assertTrue("staged file should stay staged", repo.status().call().getAdded().contains(FILENAMES[0]));
+      Assert.assertTrue("modification should stay unstaged", repo.status().call().getModified().contains(FILENAMES[0]));
+      Assert.assertTrue("new file should stay untracked", repo.status().call().getUntracked().contains(FILENAMES[1]));
+
+      undoRestore(true);
+      verifyFilesExistance(true, false);
+   }
+
    private void gitCommitAll() throws IOException, GitAPIException, NoFilepatternException, NoHeadException,
             NoMessageException, UnmergedPathsException, ConcurrentRefUpdateException, WrongRepositoryStateException
    {
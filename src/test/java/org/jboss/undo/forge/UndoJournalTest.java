@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Red Hat, Inc. and/or its affiliates.
+ *
+ * Licensed under the Eclipse Public License Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.undo.forge;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.forge.jgit.api.Git;
+import org.jboss.forge.jgit.lib.Constants;
+import org.jboss.forge.jgit.lib.ObjectId;
+import org.jboss.forge.jgit.lib.Repository;
+import org.jboss.forge.jgit.revwalk.RevCommit;
+import org.jboss.forge.jgit.util.FileUtils;
+import org.jboss.undo.forge.UndoJournal.NoteState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UndoJournalTest
+{
+   private static final String HISTORY_BRANCH = "forge-history";
+   private static final String HISTORY_REF = Constants.R_HEADS + HISTORY_BRANCH;
+
+   private File root = null;
+   private Git git = null;
+   private Repository repository = null;
+   private RevCommit committed = null;
+   private RevCommit workingTree = null;
+   private RevCommit undone = null;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      root = File.createTempFile("undo-journal", "");
+      root.delete();
+      git = Git.init().setDirectory(root).call();
+      repository = git.getRepository();
+
+      // the commit the history branch starts from has no note
+      write("a.txt", "base");
+      git.add().addFilepattern(".").call();
+      git.commit().setMessage("base").call();
+      git.branchCreate().setName(HISTORY_BRANCH).call();
+      git.checkout().setName(HISTORY_BRANCH).call();
+
+      committed = store("a.txt", "1", "master");
+      workingTree = store("a.txt", "2", UndoFacet.DEFAULT_NOTE);
+      undone = store("a.txt", "3", UndoFacet.DELETED_COMMIT_NOTE);
+   }
+
+   @After
+   public void destroy() throws Exception
+   {
+      UndoJournal.closeAll();
+      repository.close();
+      FileUtils.delete(root, FileUtils.RECURSIVE);
+      root = null;
+      git = null;
+      repository = null;
+   }
+
+   @Test
+   public void shouldRebuildMissingJournalFromHistoryBranch() throws Exception
+   {
+      UndoJournal journal = open();
+      verifyJournal(journal, committed, workingTree, undone);
+      journal.close();
+
+      Assert.assertTrue("the journal should be written", getJournalFile().delete());
+      journal = open();
+      verifyJournal(journal, committed, workingTree, undone);
+      Assert.assertEquals("the command name should be read from the commit", "touch", journal.getEntry(0)
+               .getCommandName());
+      journal.close();
+   }
+
+   @Test
+   public void shouldRebuildJournalWhenHistoryBranchMovedWithoutIt() throws Exception
+   {
+      UndoJournal journal = open();
+      journal.close();
+
+      // the shell was killed between moving the history branch and appending the record
+      RevCommit unjournaled = store("a.txt", "4", UndoFacet.DEFAULT_NOTE);
+      journal = open();
+      verifyJournal(journal, committed, workingTree, undone, unjournaled);
+      Assert.assertEquals("the unjournaled commit should be the newest live one", unjournaled, journal
+               .getNewestLiveEntry().getCommitId());
+      journal.close();
+   }
+
+   @Test
+   public void shouldTakeNoteStatesFromNotesOnOpen() throws Exception
+   {
+      UndoJournal journal = open();
+      journal.close();
+
+      // the notes are updated after the journal
+      new NoteIndex(repository, UndoFacet.NOTES_REF).setNotes(Collections.singletonMap(workingTree,
+               UndoFacet.DELETED_COMMIT_NOTE));
+      journal = open();
+      Assert.assertEquals("the state should follow the note", NoteState.DELETED, journal.getEntry(1).getNoteState());
+      Assert.assertEquals("the newest live entry should move", committed, journal.getNewestLiveEntry()
+               .getCommitId());
+      journal.close();
+   }
+
+   @Test
+   public void shouldIterateFromNewestLiveEntry() throws Exception
+   {
+      UndoJournal journal = open();
+      List<ObjectId> ids = new ArrayList<ObjectId>();
+      for (UndoJournal.Entry entry : journal.newestLiveFirst())
+         ids.add(entry.getCommitId());
+      journal.close();
+
+      Assert.assertEquals("the undone newest entry should be left out", Arrays.<ObjectId> asList(workingTree,
+               committed), ids);
+   }
+
+   private UndoJournal open() throws IOException
+   {
+      return UndoJournal.open(repository, HISTORY_REF, new NoteIndex(repository, UndoFacet.NOTES_REF).refresh());
+   }
+
+   private void verifyJournal(UndoJournal journal, RevCommit... oldestFirst)
+   {
+      Assert.assertEquals("wrong number of records", oldestFirst.length, journal.size());
+      for (int i = 0; i < oldestFirst.length; i++)
+      {
+         UndoJournal.Entry entry = journal.getEntry(oldestFirst.length - 1 - i);
+         Assert.assertEquals("wrong commit", oldestFirst[i], entry.getCommitId());
+      }
+      Assert.assertEquals("wrong state", NoteState.COMMITTED, journal.getEntry(oldestFirst.length - 1)
+               .getNoteState());
+   }
+
+   private RevCommit store(String path, String content, String note) throws Exception
+   {
+      write(path, content);
+      git.add().addFilepattern(path).call();
+      RevCommit commit = git.commit().setMessage(UndoFacet.UNDO_STORE_COMMIT_MSG_PREFIX + "\"touch\" command").call();
+      new NoteIndex(repository, UndoFacet.NOTES_REF).setNotes(Collections.singletonMap(commit, note));
+      return commit;
+   }
+
+   private File getJournalFile()
+   {
+      return new File(new File(repository.getDirectory(), "forge-undo"), "journal");
+   }
+
+   private void write(String path, String content) throws IOException
+   {
+      FileWriter writer = new FileWriter(new File(root, path));
+      writer.write(content);
+      writer.close();
+   }
+}